@@ -29,6 +29,7 @@ import org.helm.notation.model.Monomer;
 import org.jdom.JDOMException;
 import org.roche.antibody.model.antibody.Domain;
 import org.roche.plugin.reactions.rest.ADCUtils;
+import org.roche.plugin.reactions.rest.DetectionWarmUp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +64,7 @@ public class ADCDesignerMenuItem extends EditorPopupMenuItem {
   @Override
   public void onInit() {
     super.onInit();
+    DetectionWarmUp.getInstance().start();
 
     LOG.info("Init ADC designer. ");
     try {
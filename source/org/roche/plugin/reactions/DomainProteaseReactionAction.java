@@ -26,10 +26,10 @@ import org.roche.antibody.model.antibody.Antibody;
 import org.roche.antibody.model.antibody.Domain;
 import org.roche.antibody.services.ProteaseDescription;
 import org.roche.antibody.services.UIService;
-import org.roche.antibody.services.tools.ProteaseTools;
 import org.roche.antibody.ui.components.AntibodyEditorAccess;
 import org.roche.antibody.ui.components.AntibodyEditorPane;
 import org.roche.plugin.reactions.rest.ADCReactions;
+import org.roche.plugin.reactions.rest.ProteaseRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,7 +65,7 @@ public class DomainProteaseReactionAction extends AbstractAction {
 
     this.domain = domain;
     this.description = description;
-    this.setEnabled(ProteaseTools.sequenceHasCleaveSite(domain.getPeptide().getSequence(), description));
+    this.setEnabled(ProteaseRegistry.getInstance().sequenceHasCleaveSite(domain.getPeptide().getSequence(), description));
   }
 
   /**
@@ -26,8 +26,9 @@ import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
 
 import org.roche.antibody.model.antibody.Domain;
-import org.roche.antibody.services.ConfigFileService;
 import org.roche.antibody.services.ProteaseDescription;
+import org.roche.plugin.reactions.rest.DetectionWarmUp;
+import org.roche.plugin.reactions.rest.ProteaseRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,6 +58,9 @@ public class DomainProteaseReactionMenu extends EditorPopupMenu {
 
   private List<ProteaseDescription> cachedDescriptions;
 
+  /** whether the descriptions of the warm-up were taken already */
+  private boolean isWarmUpUsed = false;
+
   public DomainProteaseReactionMenu(JFrame parentFrame) {
     super(parentFrame, "Protease Reaction...");
 
@@ -90,6 +94,7 @@ public class DomainProteaseReactionMenu extends EditorPopupMenu {
   @Override
   public void onInit() {
     super.onInit();
+    DetectionWarmUp.getInstance().start();
   }
 
   @Override
@@ -111,7 +116,14 @@ public class DomainProteaseReactionMenu extends EditorPopupMenu {
   public void loadProteaseDescriptions() {
     cachedDescriptions = new LinkedList<ProteaseDescription>();
     try {
-      cachedDescriptions = ConfigFileService.getInstance().getProteaseDescriptions();
+      // the warm-up started in onInit usually loaded them for the first load, later loads re-read the configuration.
+      // Never wait for the warm-up here, the menu is loaded on the event dispatch thread.
+      List<ProteaseDescription> warmedUp = null;
+      if (!isWarmUpUsed) {
+        isWarmUpUsed = true;
+        warmedUp = DetectionWarmUp.getInstance().getProteaseDescriptions();
+      }
+      cachedDescriptions = warmedUp != null ? warmedUp : ProteaseRegistry.getInstance().reload();
 
     } catch (Exception e) {
       JOptionPane.showMessageDialog(parentFrame, "Could not load protease descriptions. Maybe database access failed.", "Protease Descriptions unavailable.", JOptionPane.ERROR_MESSAGE);
@@ -18,10 +18,17 @@
 package org.roche.plugin.reactions.rest;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -29,18 +36,22 @@ import org.roche.antibody.model.antibody.Antibody;
 import org.roche.antibody.model.antibody.ChemElement;
 import org.roche.antibody.model.antibody.Connection;
 import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
 import org.roche.antibody.model.antibody.GeneralConnection;
 import org.roche.antibody.model.antibody.Peptide;
+import org.roche.antibody.services.AbConst;
 import org.roche.antibody.services.DomainService;
 import org.roche.antibody.services.ProteaseDescription;
 import org.roche.antibody.services.helmnotation.HELM;
 import org.roche.antibody.services.tools.ProteaseCleavageResult;
-import org.roche.antibody.services.tools.ProteaseTools;
 import org.roche.plugin.file.InvalidInputException;
 import org.roche.plugin.reactions.models.ReactiveMolecule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.quattroresearch.antibody.SingleMutation;
+import com.quattroresearch.antibody.UnknownMutation;
+
 /**
  * 
  * {@code ADCUtils} contains various helper functions concerning ADC reactions.
@@ -60,6 +71,32 @@ public class ADCUtils {
 	/** The Logger for this class */
 	private static final Logger LOG = LoggerFactory.getLogger(ADCUtils.class);
 
+	/**
+	 * Whether the peptides of an antibody are cleaved and their fragments
+	 * detected in parallel.
+	 */
+	public static final String PARALLEL_CLEAVAGE = "detection.cleavage.parallel";
+
+	/**
+	 * Whether identical peptides are cleaved and re-annotated only once and
+	 * the results copied to the other peptides.
+	 */
+	public static final String DEDUPLICATE_CHAINS = "detection.cleavage.deduplicate-chains";
+
+	/**
+	 * Whether domains trimmed by a cleavage keep their annotation instead of
+	 * being re-annotated, see {@link #MIN_TEMPLATE_COVERAGE}.
+	 */
+	public static final String SHIFT_TRIMMED_DOMAINS = "detection.cleavage.shift-trimmed-domains";
+
+	/**
+	 * Percentage of the library entry a trimmed domain must still cover to
+	 * keep its annotation.
+	 */
+	public static final String MIN_TEMPLATE_COVERAGE = "detection.cleavage.min-template-coverage";
+
+	public static final int DEFAULT_MIN_TEMPLATE_COVERAGE = 90;
+
 	public static final String BIOTIN_COUPLING_DEFAULT_SMILES = "[H][C@]12CS[C@@H](CCCCC([*])=O)[C@@]1([H])NC(=O)N2 |$;;;;;;;;;;_R1;;;;;;;$|";
 
 	public static final String BIOTIN_COUPLING_DEFAULT_MOL = "\n"
@@ -437,33 +474,222 @@ public class ADCUtils {
 	}
 
 	public static void cleaveAntibody(Antibody antibody, int index,
-			ProteaseDescription protease) throws Exception {
+			final ProteaseDescription protease) throws Exception {
+		// the peptides may be a linked list
+		List<Peptide> peptides = new ArrayList<Peptide>(antibody.getPeptides());
+		boolean deduplicate = DetectionPreferences.getBoolean(
+				DEDUPLICATE_CHAINS, true);
+		List<PeptideCleavage> cleavages = cleavePeptides(peptides, index,
+				deduplicate, new PeptideCleaver() {
+					@Override
+					public PeptideCleavage cleave(Peptide peptide)
+							throws Exception {
+						return cleavePeptide(peptide, protease);
+					}
+				});
+
+		// the antibody is changed in the order of the peptides
 		List<Peptide> retainedPeptides = new LinkedList<Peptide>();
-		for (int i = 0; i < antibody.getPeptides().size(); i++) {
-			Peptide peptide = antibody.getPeptides().get(i);
+		Set<Domain> truncatedDomains = Collections
+				.newSetFromMap(new IdentityHashMap<Domain, Boolean>());
+		for (int i = 0; i < peptides.size(); i++) {
+			Peptide peptide = peptides.get(i);
 			retainedPeptides.add(peptide);
-			if (i == index || index < 0) {
-				ProteaseCleavageResult result = ProteaseTools
-						.doProteaseCleavage(peptide.getSequence(), protease);
-				String modifiedSequence = result.getCleavageResult();
-
-				if (!modifiedSequence.equals(peptide.getSequence())) {
-					modifySequence(peptide, result);
-					if (result.getAppendedAfter() != null
-							&& result.getAppendedAfter().length() > 0) {
-						DomainService.getInstance().addAsLastDomain(
-								result.getAppendedAfter(), peptide);
-					}
-					retainedPeptides.addAll(retainPreAndPostPeptide(peptide,
-							result));
+			PeptideCleavage cleavage = cleavages.get(i);
+			if (cleavage != null && cleavage.isCleaved()) {
+				ProteaseCleavageResult result = cleavage.getResult();
+				truncatedDomains.addAll(modifySequence(peptide, result));
+				if (result.getAppendedAfter() != null
+						&& result.getAppendedAfter().length() > 0) {
+					DomainService.getInstance().addAsLastDomain(
+							result.getAppendedAfter(), peptide);
 				}
+				retainedPeptides.addAll(cleavage.getFragments());
 			}
 		}
 
+		annotateTruncatedDomains(truncatedDomains, deduplicate,
+				new DomainAnnotator() {
+					@Override
+					public void annotate(List<Domain> domains,
+							List<String> peptideSequences) throws Exception {
+						new DomainDetectionMutationProcessor().annotateDomains(
+								domains, peptideSequences);
+					}
+				});
 		antibody.setPeptides(retainedPeptides);
 
 	}
 
+	/**
+	 * Cleaves the selected peptides. The cleavages only read their peptide, so
+	 * they may run in parallel. Identical peptides, e.g. the chains of a
+	 * symmetric antibody, are cleaved once unless {@code deduplicate} is
+	 * false; the other peptides get copies of the cleavage.
+	 * 
+	 * @param peptides
+	 *            peptides of the antibody
+	 * @param index
+	 *            index of the peptide to cleave, negative for all
+	 * @param deduplicate
+	 *            whether identical peptides are cleaved once
+	 * @param cleaver
+	 *            cleaves one peptide
+	 * @return for every peptide its own cleavage, null for the peptides not
+	 *         selected
+	 * @throws Exception
+	 */
+	static List<PeptideCleavage> cleavePeptides(List<Peptide> peptides,
+			int index, boolean deduplicate, final PeptideCleaver cleaver)
+			throws Exception {
+		List<Callable<PeptideCleavage>> cleavages = new ArrayList<Callable<PeptideCleavage>>();
+		Map<String, Integer> cleavageBySequence = new HashMap<String, Integer>();
+		int[] cleavageOfPeptide = new int[peptides.size()];
+		for (int i = 0; i < peptides.size(); i++) {
+			cleavageOfPeptide[i] = -1;
+			if (i == index || index < 0) {
+				final Peptide peptide = peptides.get(i);
+				Integer cleavage = deduplicate ? cleavageBySequence
+						.get(peptide.getSequence()) : null;
+				if (cleavage == null) {
+					cleavage = cleavages.size();
+					cleavageBySequence.put(peptide.getSequence(), cleavage);
+					cleavages.add(new Callable<PeptideCleavage>() {
+						@Override
+						public PeptideCleavage call() throws Exception {
+							return cleaver.cleave(peptide);
+						}
+					});
+				}
+				cleavageOfPeptide[i] = cleavage;
+			}
+		}
+
+		List<PeptideCleavage> results = runCleavages(cleavages);
+		boolean[] used = new boolean[results.size()];
+		List<PeptideCleavage> cleavageByPeptide = new ArrayList<PeptideCleavage>();
+		for (int i = 0; i < peptides.size(); i++) {
+			int cleavage = cleavageOfPeptide[i];
+			if (cleavage < 0) {
+				cleavageByPeptide.add(null);
+			} else if (used[cleavage]) {
+				cleavageByPeptide.add(results.get(cleavage).copy());
+			} else {
+				used[cleavage] = true;
+				cleavageByPeptide.add(results.get(cleavage));
+			}
+		}
+		return cleavageByPeptide;
+	}
+
+	/**
+	 * Cleaves the sequence of the peptide and detects the cut off fragments.
+	 * The peptide itself is not changed.
+	 */
+	private static PeptideCleavage cleavePeptide(Peptide peptide,
+			ProteaseDescription protease) throws Exception {
+		ProteaseCleavageResult result = ProteaseRegistry.getInstance()
+				.doProteaseCleavage(peptide.getSequence(), protease);
+		String modifiedSequence = result.getCleavageResult();
+		if (modifiedSequence.equals(peptide.getSequence())) {
+			return new PeptideCleavage(result, null);
+		}
+		return new PeptideCleavage(result, retainPreAndPostPeptide(peptide,
+				result));
+	}
+
+	/**
+	 * Runs the cleavages of several peptides on the
+	 * {@link ChainDetectionExecutor}, unless disabled with
+	 * {@link #PARALLEL_CLEAVAGE}.
+	 * 
+	 * @return results in the order of the cleavages
+	 */
+	private static List<PeptideCleavage> runCleavages(
+			List<Callable<PeptideCleavage>> cleavages) throws Exception {
+		if (cleavages.size() > 1
+				&& DetectionPreferences.getBoolean(PARALLEL_CLEAVAGE, true)) {
+			return ChainDetectionExecutor.getInstance().invokeAll(cleavages);
+		}
+		List<PeptideCleavage> results = new ArrayList<PeptideCleavage>();
+		for (Callable<PeptideCleavage> cleavage : cleavages) {
+			results.add(cleavage.call());
+		}
+		return results;
+	}
+
+	/**
+	 * Re-annotates all domains truncated by a cleavage with one detection run.
+	 * Domains that were removed from their peptide after truncation are
+	 * skipped. Domains at the same position of identical peptides are
+	 * annotated once unless {@code deduplicate} is false; the others get a
+	 * copy of the annotation.
+	 * 
+	 * @param truncatedDomains
+	 *            domains truncated by the cleavage
+	 * @param deduplicate
+	 *            whether identical domains are annotated once
+	 * @param annotator
+	 *            annotates the domains
+	 * @throws Exception
+	 */
+	static void annotateTruncatedDomains(Collection<Domain> truncatedDomains,
+			boolean deduplicate, DomainAnnotator annotator) throws Exception {
+		List<Domain> domains = new ArrayList<Domain>();
+		List<String> peptideSequences = new ArrayList<String>();
+		Map<String, Domain> annotatedBySite = new HashMap<String, Domain>();
+		Map<Domain, Domain> duplicates = new IdentityHashMap<Domain, Domain>();
+		for (Domain domain : truncatedDomains) {
+			Peptide peptide = domain.getPeptide();
+			if (peptide != null && containsDomain(peptide, domain)) {
+				String site = domain.getStartPosition() + ":"
+						+ domain.getEndPosition() + ":" + peptide.getSequence();
+				Domain annotated = deduplicate ? annotatedBySite.get(site)
+						: null;
+				if (annotated != null) {
+					duplicates.put(domain, annotated);
+				} else {
+					annotatedBySite.put(site, domain);
+					domains.add(domain);
+					peptideSequences.add(peptide.getSequence());
+				}
+			}
+		}
+		annotator.annotate(domains, peptideSequences);
+		for (Map.Entry<Domain, Domain> duplicate : duplicates.entrySet()) {
+			copyAnnotation(duplicate.getValue(), duplicate.getKey());
+		}
+	}
+
+	/**
+	 * Copies the values set by a re-annotation from one domain to another
+	 * with the same sequence.
+	 */
+	private static void copyAnnotation(Domain source, Domain target) {
+		target.setName(source.getName());
+		target.setUserLabel(source.getUserLabel());
+		target.setUserComment(source.getUserComment());
+		target.setLongName(source.getLongName());
+		target.setIdentity(source.getIdentity());
+		target.setCoverage(source.getCoverage());
+		target.setChainType(source.getChainType());
+		target.setDomainType(source.getDomainType());
+		target.setSpecies(source.getSpecies());
+		target.setHumanessType(source.getHumanessType());
+		target.setLibraryValues(source.getLibraryValues());
+		target.setStartTemplatePos(source.getStartTemplatePos());
+		target.setEndTemplatePos(source.getEndTemplatePos());
+	}
+
+	private static boolean containsDomain(Peptide peptide, Domain domain) {
+		for (Domain candidate : peptide.getDomains()) {
+			if (candidate == domain) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * method to retain the preCut sequence and the postCut sequence as peptides
 	 * to the same antibody as the cut sequence
@@ -505,8 +731,21 @@ public class ADCUtils {
 		return retainedPeptides;
 	}
 
-	private static void modifySequence(Peptide peptide,
+	/**
+	 * Removes the parts of the peptide outside the cleavage result. Domains
+	 * that are cut are truncated and returned for re-annotation.
+	 * 
+	 * @param peptide
+	 *            Peptide to cut
+	 * @param cleavageResult
+	 *            ProteaseCleavageResult
+	 * @return truncated domains, which have to be re-annotated
+	 * @throws Exception
+	 * @see #shiftAnnotation(Domain, int, int)
+	 */
+	private static List<Domain> modifySequence(Peptide peptide,
 			ProteaseCleavageResult cleavageResult) throws Exception {
+		List<Domain> truncatedDomains = new ArrayList<Domain>();
 
 		// Sort domains to simplify cutting
 		List<Domain> domains = peptide.getDomains();
@@ -520,30 +759,27 @@ public class ADCUtils {
 		int rightCutPos = cleavageResult.getRightCut() + 1;
 		int leftCutPos = cleavageResult.getLeftCut() + 1;
 		for (int i = domains.size() - 1; i >= 0; i--) {
+			boolean reannotate = false;
 			if (leftCutPos > domains.get(i).getEndPosition()) {
 				DomainService.getInstance().deleteDomain(domains.get(i));
 			} else if (leftCutPos > domains.get(i).getStartPosition()
 					&& leftCutPos <= domains.get(i).getEndPosition()) {
-				/* re-annotate domain */
+				/* re-annotate domain, unless only few residues are cut off */
+				int trimmed = leftCutPos - domains.get(i).getStartPosition();
 
 				DomainService.getInstance().changeDomainSequence(
 						domains.get(i),
-						domains.get(i)
-								.getSequence()
-								.substring(
-										leftCutPos
-												- domains.get(i)
-														.getStartPosition()));
+						domains.get(i).getSequence().substring(trimmed));
 
-				new DomainDetectionMutationProcessor().annotateDomain(
-						domains.get(i), peptide.getSequence());
+				reannotate = !shiftAnnotation(domains.get(i), trimmed, 0);
 
 			}
 			if (rightCutPos <= domains.get(i).getStartPosition()) {
 				DomainService.getInstance().deleteDomain(domains.get(i));
 			} else if (rightCutPos > domains.get(i).getStartPosition()
 					&& rightCutPos <= domains.get(i).getEndPosition()) {
-				/* re-annotate domain */
+				/* re-annotate domain, unless only few residues are cut off */
+				int trimmed = domains.get(i).getEndPosition() - rightCutPos + 1;
 
 				DomainService.getInstance().changeDomainSequence(
 						domains.get(i),
@@ -555,13 +791,124 @@ public class ADCUtils {
 												- domains.get(i)
 														.getStartPosition()));
 
-				new DomainDetectionMutationProcessor().annotateDomain(
-						domains.get(i), peptide.getSequence());
+				reannotate = reannotate
+						|| !shiftAnnotation(domains.get(i), 0, trimmed);
 
 			}
+			if (reannotate) {
+				truncatedDomains.add(domains.get(i));
+			}
 
 		}
 
+		return truncatedDomains;
+	}
+
+	/**
+	 * Keeps the annotation of a domain that lost residues at its ends, so no
+	 * BLAST search is needed. The template positions are shifted by the
+	 * removed residues, mutations outside the remaining template are dropped
+	 * and coverage and identity are computed for the remaining part. This is
+	 * only possible if the domain is aligned to its library entry without gaps
+	 * and still covers {@link #MIN_TEMPLATE_COVERAGE} of it; otherwise the
+	 * best library entry for the domain may have changed. Registered
+	 * mutations are numbered from the start of the domain and named in its
+	 * label, so a domain is re-annotated as well, if it lost residues at the
+	 * start or one of its registered mutations.
+	 * 
+	 * @param domain
+	 *            domain with its already truncated sequence
+	 * @param trimmedStart
+	 *            number of residues removed at the start
+	 * @param trimmedEnd
+	 *            number of residues removed at the end
+	 * @return true, if the annotation was kept, false if the domain has to be
+	 *         re-annotated
+	 */
+	static boolean shiftAnnotation(Domain domain, int trimmedStart,
+			int trimmedEnd) {
+		if (!DetectionPreferences.getBoolean(SHIFT_TRIMMED_DOMAINS, true)) {
+			return false;
+		}
+		DomainLibraryValues libraryValues = domain.getLibraryValues();
+		if (libraryValues == null || libraryValues.getSequence() == null
+				|| libraryValues.getSequence().isEmpty()) {
+			return false;
+		}
+		int startTemplatePos = domain.getStartTemplatePos() + trimmedStart;
+		int endTemplatePos = domain.getEndTemplatePos() - trimmedEnd;
+		if (!isAlignedWithoutGaps(domain, libraryValues.getSequence(),
+				startTemplatePos, endTemplatePos)) {
+			// the cut cannot be mapped onto the template
+			return false;
+		}
+		double coverage = (double) (endTemplatePos - startTemplatePos + 1)
+				/ libraryValues.getSequence().length();
+		if (coverage * 100 < DetectionPreferences.getInt(
+				MIN_TEMPLATE_COVERAGE, DEFAULT_MIN_TEMPLATE_COVERAGE)) {
+			return false;
+		}
+		if (!domain.getSingleMutations().isEmpty()) {
+			if (trimmedStart > 0) {
+				return false;
+			}
+			for (SingleMutation singleMutation : domain.getSingleMutations()) {
+				if (!singleMutation.isMutated(libraryValues.getName(),
+						domain.getSequence())) {
+					return false;
+				}
+			}
+		}
+
+		domain.setStartTemplatePos(startTemplatePos);
+		domain.setEndTemplatePos(endTemplatePos);
+		domain.setCoverage(coverage);
+		for (Iterator<UnknownMutation> it = domain.getAllMutations().iterator(); it
+				.hasNext();) {
+			int position = it.next().getPosition();
+			if (position < startTemplatePos || position > endTemplatePos) {
+				it.remove();
+			}
+		}
+		// without gaps every remaining mutation is a mismatch of the alignment
+		int length = domain.getSequence().length();
+		domain.setIdentity((double) (length - domain.getAllMutations().size())
+				/ length);
+		domain.setUserComment(AbConst.PERCENT.format(domain.getIdentity())
+				+ " ID; " + AbConst.PERCENT.format(domain.getCoverage())
+				+ " Cov");
+		LOG.debug("Kept annotation of trimmed domain " + domain.getName());
+		return true;
+	}
+
+	/**
+	 * Checks that the truncated domain is aligned to the given template range
+	 * without gaps. The alignment lines are not kept with the domain, so the
+	 * alignment is rebuilt from the template: every residue has to match the
+	 * template, or the new residue of the unknown mutation at its position.
+	 */
+	private static boolean isAlignedWithoutGaps(Domain domain,
+			String template, int startTemplatePos, int endTemplatePos) {
+		String sequence = domain.getSequence();
+		if (startTemplatePos < 1 || endTemplatePos > template.length()
+				|| endTemplatePos - startTemplatePos + 1 != sequence.length()) {
+			return false;
+		}
+		Map<Integer, Character> mutated = new HashMap<Integer, Character>();
+		for (UnknownMutation mutation : domain.getAllMutations()) {
+			mutated.put(mutation.getPosition(), mutation.getNewAA());
+		}
+		for (int i = 0; i < sequence.length(); i++) {
+			int position = startTemplatePos + i;
+			Character newAA = mutated.get(position);
+			char expected = newAA != null ? newAA : template
+					.charAt(position - 1);
+			if (Character.toUpperCase(sequence.charAt(i)) != Character
+					.toUpperCase(expected)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	public static Antibody performPeptideCleavageAndSortaseCoupling(
@@ -617,4 +964,59 @@ public class ADCUtils {
 		return peptide;
 	}
 
+	/**
+	 * Cleaves one peptide without changing it.
+	 */
+	interface PeptideCleaver {
+
+		PeptideCleavage cleave(Peptide peptide) throws Exception;
+	}
+
+	/**
+	 * Re-annotates domains, see
+	 * {@link DomainDetectionMutationProcessor#annotateDomains(List, List)}.
+	 */
+	interface DomainAnnotator {
+
+		void annotate(List<Domain> domains, List<String> peptideSequences)
+				throws Exception;
+	}
+
+	/**
+	 * The cleavage of one peptide together with the detected fragments.
+	 */
+	static final class PeptideCleavage {
+
+		private final ProteaseCleavageResult result;
+
+		/** null, if the peptide is not cleaved */
+		private final List<Peptide> fragments;
+
+		PeptideCleavage(ProteaseCleavageResult result, List<Peptide> fragments) {
+			this.result = result;
+			this.fragments = fragments;
+		}
+
+		boolean isCleaved() {
+			return fragments != null;
+		}
+
+		/**
+		 * Copies the cleavage for an identical peptide. The fragments are
+		 * copied together with the cystein bridges between them, the cleavage
+		 * result is only read and therefore shared.
+		 */
+		PeptideCleavage copy() {
+			return new PeptideCleavage(result, fragments == null ? null
+					: PeptideCopier.copyAll(fragments));
+		}
+
+		ProteaseCleavageResult getResult() {
+			return result;
+		}
+
+		List<Peptide> getFragments() {
+			return fragments;
+		}
+	}
 }
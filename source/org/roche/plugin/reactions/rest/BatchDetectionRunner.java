@@ -0,0 +1,487 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.Peptide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code BatchDetectionRunner} detects domains and mutations for all chains of
+ * a FASTA file without user interface. Consecutive records whose ids share
+ * the part before the first {@code |}, e.g. {@code >mAb1|HC} and
+ * {@code >mAb1|LC}, form one construct and are detected together.
+ * <p>
+ * The file is read while detecting. At most {@link #MAX_IN_FLIGHT}
+ * constructs are read ahead of the first unfinished one, so memory does not
+ * grow with the input. Results are passed to the {@link ResultHandler} in the
+ * order they finish, together with the number of records completely done,
+ * from which a later run can be resumed.
+ * 
+ * @version $Id$
+ */
+public class BatchDetectionRunner {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(BatchDetectionRunner.class);
+
+	/** Number of parallel detections, defaults to the number of processors. */
+	public static final String WORKERS = "detection.batch.workers";
+
+	/** Number of constructs read ahead of the first unfinished one. */
+	public static final String MAX_IN_FLIGHT = "detection.batch.max-in-flight";
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int workers;
+
+	private final int maxInFlight;
+
+	/**
+	 * @param workers
+	 *            number of parallel detections
+	 * @param maxInFlight
+	 *            number of constructs read ahead of the first unfinished one
+	 */
+	public BatchDetectionRunner(int workers, int maxInFlight) {
+		this.workers = Math.max(1, workers);
+		this.maxInFlight = Math.max(this.workers, maxInFlight);
+	}
+
+	/**
+	 * Creates a runner with the configured number of workers.
+	 * 
+	 * @return batch runner
+	 */
+	public static BatchDetectionRunner create() {
+		return new BatchDetectionRunner(DetectionPreferences.getInt(WORKERS,
+				Runtime.getRuntime().availableProcessors()),
+				DetectionPreferences.getInt(MAX_IN_FLIGHT,
+						DEFAULT_MAX_IN_FLIGHT));
+	}
+
+	/**
+	 * Detects all constructs of the FASTA input. The handler is only called
+	 * from the calling thread.
+	 * 
+	 * @param fasta
+	 *            FASTA input
+	 * @param resumeOffset
+	 *            number of records to skip, as passed to
+	 *            {@link ResultHandler#checkpoint(long)} by an earlier run
+	 * @param handler
+	 *            receives the results
+	 * @return number of records done, including the skipped ones
+	 * @throws Exception
+	 *             when the input cannot be read or the handler fails
+	 */
+	public long run(Reader fasta, long resumeOffset, ResultHandler handler)
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(workers,
+				new BatchThreadFactory());
+		CompletionService<List<Peptide>> completionService = new ExecutorCompletionService<List<Peptide>>(
+				executor);
+		Map<Future<List<Peptide>>, Construct> running = new HashMap<Future<List<Peptide>>, Construct>();
+		// constructs not yet below the checkpoint, by ordinal
+		TreeMap<Long, Construct> pending = new TreeMap<Long, Construct>();
+		long checkpoint = resumeOffset;
+		try {
+			FastaConstructReader reader = new FastaConstructReader(fasta);
+			Construct construct;
+			while ((construct = reader.next()) != null) {
+				if (construct.getRecordOffset() < resumeOffset) {
+					continue;
+				}
+				while (pending.size() >= maxInFlight) {
+					checkpoint = complete(completionService, running, pending,
+							checkpoint, handler);
+				}
+				final Construct submitted = construct;
+				pending.put(submitted.getOrdinal(), submitted);
+				running.put(completionService
+						.submit(new Callable<List<Peptide>>() {
+							@Override
+							public List<Peptide> call() throws Exception {
+								return new DomainDetectionMutationProcessor()
+										.processDomainAndMutationDetection(
+												submitted.getChainNames(),
+												submitted.getChainSequences());
+							}
+						}), submitted);
+			}
+			while (!running.isEmpty()) {
+				checkpoint = complete(completionService, running, pending,
+						checkpoint, handler);
+			}
+			return checkpoint;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for the next finished construct, hands its result to the handler
+	 * and advances the checkpoint over all leading finished constructs.
+	 */
+	private long complete(CompletionService<List<Peptide>> completionService,
+			Map<Future<List<Peptide>>, Construct> running,
+			TreeMap<Long, Construct> pending, long checkpoint,
+			ResultHandler handler) throws Exception {
+		Future<List<Peptide>> future = completionService.take();
+		Construct construct = running.remove(future);
+		try {
+			handler.detected(construct, future.get());
+		} catch (ExecutionException e) {
+			LOG.warn("Detection of " + construct.getName() + " failed.",
+					e.getCause());
+			handler.failed(construct, e.getCause() instanceof Exception ? (Exception) e
+					.getCause() : e);
+		}
+		construct.done = true;
+
+		long advanced = checkpoint;
+		while (!pending.isEmpty() && pending.firstEntry().getValue().done) {
+			Construct first = pending.pollFirstEntry().getValue();
+			advanced = first.getRecordOffset() + first.getChainNames().size();
+		}
+		if (advanced != checkpoint) {
+			handler.checkpoint(advanced);
+		}
+		return advanced;
+	}
+
+	/**
+	 * Runs a batch detection from the command line:
+	 * {@code BatchDetectionRunner <input.fasta> <output.tsv>}. Results are
+	 * appended to the output. The checkpoint is kept next to it in
+	 * {@code <output.tsv>.checkpoint}, so running the same command again after
+	 * a crash continues with the first unfinished construct.
+	 * 
+	 * @param args
+	 *            input and output file
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.err.println("Usage: BatchDetectionRunner <input.fasta> <output.tsv>");
+			System.exit(2);
+		}
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		File checkpointFile = new File(output.getPath() + ".checkpoint");
+		long resumeOffset = 0;
+		if (checkpointFile.isFile()) {
+			resumeOffset = Long.parseLong(FileUtils.readFileToString(
+					checkpointFile, "UTF-8").trim());
+			LOG.info("Resuming " + input + " after " + resumeOffset
+					+ " records.");
+		}
+
+		try (Reader reader = new InputStreamReader(new FileInputStream(input),
+				UTF8);
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+						new FileOutputStream(output, resumeOffset > 0), UTF8))) {
+			long done = create().run(reader, resumeOffset,
+					new TsvResultWriter(writer, checkpointFile));
+			LOG.info("Detected " + done + " records of " + input + ".");
+		}
+	}
+
+	/**
+	 * Receives the results of a batch detection.
+	 */
+	public interface ResultHandler {
+
+		/**
+		 * @param construct
+		 *            detected construct
+		 * @param peptides
+		 *            one peptide per chain of the construct
+		 * @throws Exception
+		 */
+		void detected(Construct construct, List<Peptide> peptides)
+				throws Exception;
+
+		/**
+		 * @param construct
+		 *            construct whose detection failed
+		 * @param e
+		 *            cause of the failure
+		 * @throws Exception
+		 */
+		void failed(Construct construct, Exception e) throws Exception;
+
+		/**
+		 * Called when all records before the given offset are done. Results
+		 * of later records may already have been passed to the handler and
+		 * are passed again when resuming from the offset.
+		 * 
+		 * @param recordOffset
+		 *            number of records done
+		 * @throws Exception
+		 */
+		void checkpoint(long recordOffset) throws Exception;
+	}
+
+	/**
+	 * Writes one tab separated line per chain: construct, chain, sequence and
+	 * the domains with their positions, or the error of a failed construct.
+	 */
+	public static class TsvResultWriter implements ResultHandler {
+
+		private final PrintWriter writer;
+
+		private final File checkpointFile;
+
+		/**
+		 * @param writer
+		 *            output
+		 * @param checkpointFile
+		 *            file receiving the checkpoint, may be null
+		 */
+		public TsvResultWriter(PrintWriter writer, File checkpointFile) {
+			this.writer = writer;
+			this.checkpointFile = checkpointFile;
+		}
+
+		@Override
+		public void detected(Construct construct, List<Peptide> peptides) {
+			for (int i = 0; i < peptides.size(); i++) {
+				StringBuilder domains = new StringBuilder();
+				for (Domain domain : peptides.get(i).getDomains()) {
+					if (domains.length() > 0) {
+						domains.append(';');
+					}
+					domains.append(domain.getUserLabel()).append(':')
+							.append(domain.getStartPosition()).append('-')
+							.append(domain.getEndPosition());
+				}
+				writer.println(construct.getName() + "\t"
+						+ construct.getChainNames().get(i) + "\t"
+						+ construct.getChainSequences().get(i) + "\t"
+						+ domains);
+			}
+		}
+
+		@Override
+		public void failed(Construct construct, Exception e) {
+			for (int i = 0; i < construct.getChainNames().size(); i++) {
+				writer.println(construct.getName() + "\t"
+						+ construct.getChainNames().get(i) + "\t"
+						+ construct.getChainSequences().get(i) + "\tERROR: "
+						+ e.getMessage());
+			}
+		}
+
+		@Override
+		public void checkpoint(long recordOffset) throws IOException {
+			// the results must be on disk before the checkpoint passes them
+			writer.flush();
+			if (checkpointFile != null) {
+				File temporary = new File(checkpointFile.getPath() + ".tmp");
+				FileUtils.writeStringToFile(temporary,
+						String.valueOf(recordOffset), "UTF-8");
+				if (!temporary.renameTo(checkpointFile)) {
+					FileUtils.copyFile(temporary, checkpointFile);
+					FileUtils.deleteQuietly(temporary);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Consecutive FASTA records of one construct.
+	 */
+	public static final class Construct {
+
+		private final long ordinal;
+
+		private final long recordOffset;
+
+		private final String name;
+
+		private final List<String> chainNames = new ArrayList<String>();
+
+		private final List<String> chainSequences = new ArrayList<String>();
+
+		/** only accessed by the thread running the batch */
+		private boolean done;
+
+		Construct(long ordinal, long recordOffset, String name) {
+			this.ordinal = ordinal;
+			this.recordOffset = recordOffset;
+			this.name = name;
+		}
+
+		/**
+		 * @return number of the construct in the input, starting with 0
+		 */
+		public long getOrdinal() {
+			return ordinal;
+		}
+
+		/**
+		 * @return number of records before the construct in the input
+		 */
+		public long getRecordOffset() {
+			return recordOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<String> getChainNames() {
+			return chainNames;
+		}
+
+		public List<String> getChainSequences() {
+			return chainSequences;
+		}
+	}
+
+	/**
+	 * Reads FASTA records and groups them to constructs, one construct ahead.
+	 */
+	static final class FastaConstructReader {
+
+		private final BufferedReader reader;
+
+		private String header;
+
+		private long ordinal;
+
+		private long recordOffset;
+
+		private String nextId;
+
+		private String nextSequence;
+
+		FastaConstructReader(Reader reader) {
+			this.reader = reader instanceof BufferedReader ? (BufferedReader) reader
+					: new BufferedReader(reader);
+		}
+
+		/**
+		 * @return the next construct or null at the end of the input
+		 * @throws IOException
+		 */
+		Construct next() throws IOException {
+			if (nextId == null && !readRecord()) {
+				return null;
+			}
+			String constructName = getConstructName(nextId);
+			Construct construct = new Construct(ordinal++, recordOffset,
+					constructName);
+			do {
+				construct.chainNames.add(getChainName(nextId));
+				construct.chainSequences.add(nextSequence);
+				recordOffset++;
+				nextId = null;
+			} while (readRecord()
+					&& constructName.equals(getConstructName(nextId)));
+			return construct;
+		}
+
+		/**
+		 * Reads the next record into {@code nextId} and {@code nextSequence}.
+		 */
+		private boolean readRecord() throws IOException {
+			String line;
+			while (header == null && (line = reader.readLine()) != null) {
+				if (line.startsWith(">")) {
+					header = line;
+				}
+			}
+			if (header == null) {
+				return false;
+			}
+
+			StringBuilder sequence = new StringBuilder();
+			String followingHeader = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(">")) {
+					followingHeader = line;
+					break;
+				}
+				sequence.append(line.replaceAll("\\s", ""));
+			}
+			nextId = header.substring(1).trim();
+			nextSequence = sequence.toString().toUpperCase();
+			header = followingHeader;
+			return true;
+		}
+
+		private static String getConstructName(String id) {
+			int separator = id.indexOf('|');
+			return separator < 0 ? id : id.substring(0, separator);
+		}
+
+		private static String getChainName(String id) {
+			int separator = id.indexOf('|');
+			return separator < 0 ? id : id.substring(separator + 1);
+		}
+	}
+
+	/**
+	 * Creates daemon threads, so an aborted batch never keeps the
+	 * application alive.
+	 */
+	private static class BatchThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "batch-detection-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+import org.roche.plugin.reactions.rest.DetectionTimings.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quattroresearch.blastws.BlastSearchService;
+import com.quattroresearch.blastws.LocalConfig;
+import com.quattroresearch.blastws.NCBIBlastAPI;
+
+/**
+ * 
+ * {@code BlastDatabaseStore} keeps indexed BLAST databases of domain libraries
+ * on disk. Every database lives in its own directory named by the checksum of
+ * the library content, so a database is built only once per library version
+ * and survives restarts.
+ * <p>
+ * A database is built in a temporary directory and then renamed to its final
+ * name. A directory with the final name is therefore always complete.
+ * <p>
+ * Every library version has its own lock, so the domain and the antigen
+ * library share it whenever they resolve to the same directory. Building a
+ * version requires the write lock, searching it only the read lock, see
+ * {@link #acquireDatabaseDirectory(List, String)}. A reader additionally holds
+ * a shared lock on the {@link #LOCK_FILE} of the directory, so that no process
+ * removes a version another process is searching.
+ * 
+ * @version $Id$
+ */
+public class BlastDatabaseStore {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(BlastDatabaseStore.class);
+
+	/** Number of library versions kept in the store. */
+	public static final String MAX_DATABASES = "detection.blast-store.max-databases";
+
+	public static final int DEFAULT_MAX_DATABASES = 4;
+
+	static final String STORE_DIRECTORY = "blastdb-store";
+
+	static final String CORE_SUFFIX = "_CORE";
+
+	static final String GENERAL_SUFFIX = "_GENERAL";
+
+	private static final String COMPLETE_MARKER = "COMPLETE";
+
+	private static final String TEMP_PREFIX = ".tmp-";
+
+	/** Locked by the readers of a version, never copied into workspaces. */
+	static final String LOCK_FILE = ".lock";
+
+	private static BlastDatabaseStore _instance;
+
+	private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<String, Version>();
+
+	private BlastDatabaseStore() {
+	}
+
+	public static synchronized BlastDatabaseStore getInstance() {
+		if (_instance == null) {
+			_instance = new BlastDatabaseStore();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Returns the directory containing the indexed databases of the given
+	 * library and holds the read lock of this library version. The databases
+	 * are built under the write lock when they do not exist yet. The caller
+	 * must release the version with
+	 * {@link #releaseDatabaseDirectory(String)} after searching, in the same
+	 * thread.
+	 * 
+	 * @param library
+	 *            domain library
+	 * @param checksum
+	 *            checksum of the library content
+	 * @return database directory
+	 * @throws Exception
+	 *             when the databases could not be built
+	 */
+	public File acquireDatabaseDirectory(List<DomainLibraryValues> library,
+			String checksum) throws Exception {
+		Version version = getVersion(checksum);
+		File directory = new File(getStoreRoot(), checksum);
+
+		long start = System.nanoTime();
+		version.lock.readLock().lock();
+		DetectionTimings.getInstance().record(Stage.LOCK_WAIT, start);
+		if (version.retain(directory)) {
+			return directory;
+		}
+		version.lock.readLock().unlock();
+
+		start = System.nanoTime();
+		version.lock.writeLock().lock();
+		DetectionTimings.getInstance().record(Stage.LOCK_WAIT, start);
+		try {
+			if (!version.retain(directory)) {
+				start = System.nanoTime();
+				build(library, directory);
+				DetectionTimings.getInstance().record(Stage.DATABASE_BUILD,
+						start);
+				prune(directory);
+				if (!version.retain(directory)) {
+					throw new IOException("BLAST databases in " + directory
+							+ " were removed right after the build.");
+				}
+			}
+			// downgrade: the read lock is taken before the write lock is
+			// released, so no other build can interfere
+			version.lock.readLock().lock();
+			return directory;
+		} finally {
+			version.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Releases a library version taken with
+	 * {@link #acquireDatabaseDirectory(List, String)}.
+	 * 
+	 * @param checksum
+	 *            checksum of the library content
+	 */
+	public void releaseDatabaseDirectory(String checksum) {
+		Version version = getVersion(checksum);
+		version.release();
+		version.lock.readLock().unlock();
+	}
+
+	/**
+	 * Checks whether the given database directory has been built completely.
+	 * 
+	 * @param directory
+	 *            database directory
+	 * @return true, if the databases can be searched
+	 */
+	public boolean isComplete(File directory) {
+		return new File(directory, COMPLETE_MARKER).isFile();
+	}
+
+	/**
+	 * Returns the root directory of the store below the BLAST working
+	 * directory.
+	 * 
+	 * @return store root
+	 * @throws IOException
+	 */
+	public File getStoreRoot() throws IOException {
+		return new File(LocalConfig.getInstance().getWorkingDirectory()
+				.toFile(), STORE_DIRECTORY);
+	}
+
+	private void build(List<DomainLibraryValues> library, File directory)
+			throws Exception {
+		LOG.info("Building BLAST databases in " + directory);
+		File root = directory.getParentFile();
+		File tempDirectory = new File(root, TEMP_PREFIX + directory.getName()
+				+ "-" + UUID.randomUUID());
+		if (!tempDirectory.mkdirs()) {
+			throw new IOException("Could not create " + tempDirectory);
+		}
+
+		try {
+			BlastSearchService bss = new BlastSearchService();
+			writeDatabase(tempDirectory, CORE_SUFFIX,
+					bss.getDomainLibAsFA(library, DomainUsage.CORE));
+			writeDatabase(tempDirectory, GENERAL_SUFFIX, bss.getDomainLibAsFA(
+					library, DomainUsage.GENERAL, DomainUsage.ANTIGEN));
+			FileUtils.writeStringToFile(new File(tempDirectory,
+					COMPLETE_MARKER), String.valueOf(library.size()));
+
+			if (isComplete(directory)) {
+				// another process finished the same version meanwhile
+				return;
+			}
+			if (directory.exists()) {
+				// left over from an interrupted build or removal
+				FileUtils.deleteDirectory(directory);
+			}
+			try {
+				Files.move(tempDirectory.toPath(), directory.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempDirectory.toPath(), directory.toPath());
+			} catch (IOException e) {
+				// FileAlreadyExistsException or DirectoryNotEmptyException
+				if (!isComplete(directory)) {
+					throw e;
+				}
+			}
+		} finally {
+			FileUtils.deleteQuietly(tempDirectory);
+		}
+	}
+
+	private void writeDatabase(File directory, String suffix, String content)
+			throws Exception {
+		File fastaFile = new File(directory, String.format("db%s.fa", suffix));
+		FileUtils.writeStringToFile(fastaFile, content);
+		if (!content.isEmpty()
+				&& !new NCBIBlastAPI().createIndexOnFile(fastaFile, "Protein")) {
+			throw new IOException("Indexing of " + fastaFile + " failed.");
+		}
+	}
+
+	/**
+	 * Removes the oldest library versions, so that at most
+	 * {@link #MAX_DATABASES} versions are kept. The given directory and the
+	 * versions still searched by this or another process are never removed.
+	 * 
+	 * @param current
+	 *            directory of the current library version
+	 */
+	private void prune(File current) {
+		int maxDatabases = Math.max(1, DetectionPreferences.getInt(
+				MAX_DATABASES, DEFAULT_MAX_DATABASES));
+		File[] directories = current.getParentFile().listFiles(
+				new FileFilter() {
+					@Override
+					public boolean accept(File file) {
+						return file.isDirectory()
+								&& !file.getName().startsWith(TEMP_PREFIX);
+					}
+				});
+		if (directories == null || directories.length <= maxDatabases) {
+			return;
+		}
+		Arrays.sort(directories, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Long.compare(o2.lastModified(), o1.lastModified());
+			}
+		});
+		for (int i = maxDatabases; i < directories.length; i++) {
+			if (!directories[i].equals(current)) {
+				remove(directories[i]);
+			}
+		}
+	}
+
+	/**
+	 * Removes the given library version unless a reader of this or another
+	 * process holds it.
+	 * 
+	 * @param directory
+	 *            directory of the version
+	 * @return true, if the version was removed
+	 */
+	boolean remove(File directory) {
+		Version version = getVersion(directory.getName());
+		if (!version.lock.writeLock().tryLock()) {
+			LOG.debug("Keeping BLAST database " + directory
+					+ ", it is searched.");
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(new File(directory,
+				LOCK_FILE).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				LOG.debug("Keeping BLAST database " + directory
+						+ ", another process searches it.");
+				return false;
+			}
+			LOG.debug("Removing outdated BLAST database " + directory);
+			// readers waiting for the lock find the version incomplete
+			FileUtils.deleteQuietly(new File(directory, COMPLETE_MARKER));
+			FileUtils.deleteQuietly(directory);
+			return true;
+		} catch (OverlappingFileLockException | IOException e) {
+			LOG.debug("Keeping BLAST database " + directory, e);
+			return false;
+		} finally {
+			version.lock.writeLock().unlock();
+		}
+	}
+
+	private Version getVersion(String checksum) {
+		Version version = versions.get(checksum);
+		if (version == null) {
+			Version created = new Version();
+			version = versions.putIfAbsent(checksum, created);
+			if (version == null) {
+				version = created;
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * Locks of one library version. The shared file lock is held as long as
+	 * a thread of this process searches the version.
+	 */
+	private static final class Version {
+
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/** guarded by this */
+		private int readers;
+
+		/** guarded by this */
+		private FileLock fileLock;
+
+		/**
+		 * Registers a reader, called with the read or the write lock held.
+		 * 
+		 * @return false, if the version is incomplete or being removed
+		 */
+		synchronized boolean retain(File directory) {
+			if (readers == 0) {
+				fileLock = lockShared(directory);
+				if (fileLock == null) {
+					return false;
+				}
+			}
+			readers++;
+			return true;
+		}
+
+		synchronized void release() {
+			if (--readers == 0) {
+				try {
+					fileLock.channel().close();
+				} catch (IOException e) {
+					LOG.debug("Could not unlock " + fileLock, e);
+				}
+				fileLock = null;
+			}
+		}
+
+		private static FileLock lockShared(File directory) {
+			if (!new File(directory, COMPLETE_MARKER).isFile()) {
+				return null;
+			}
+			FileChannel channel = null;
+			try {
+				channel = FileChannel.open(
+						new File(directory, LOCK_FILE).toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				// waits only while another process removes the version
+				FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+				// a removal may have finished before the lock was taken
+				if (new File(directory, COMPLETE_MARKER).isFile()) {
+					return lock;
+				}
+			} catch (IOException e) {
+				LOG.debug("Could not lock " + directory, e);
+			}
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					LOG.debug("Could not close " + directory, e);
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quattroresearch.blastws.LocalConfig;
+
+/**
+ * 
+ * {@code BlastWorkspacePool} hands out isolated working directories for BLAST
+ * searches. Every workspace has its own copy of the databases of the
+ * {@link BlastDatabaseStore}, hard linked where the file system allows it,
+ * and its own directory for query and output files. Searches in different
+ * workspaces therefore never share a file and can run in parallel.
+ * <p>
+ * A workspace is taken with {@link #checkout(File, String)} and must be
+ * returned with {@link #release(BlastWorkspace)}. The databases of a
+ * workspace are only replaced when a different library version is checked
+ * out or the health check fails.
+ * <p>
+ * The slot directories are created per process and locked while the process
+ * runs, so several editors or batch runs sharing the working directory never
+ * touch each other's files. Slots whose lock is not held anymore are left
+ * over by ended processes and removed when the first slot is created.
+ * 
+ * @version $Id$
+ */
+public class BlastWorkspacePool {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(BlastWorkspacePool.class);
+
+	/** Number of workspaces, defaults to the number of processors. */
+	public static final String SIZE = "detection.blast-workspaces.size";
+
+	/** Milliseconds to wait for a free workspace. */
+	public static final String CHECKOUT_TIMEOUT = "detection.blast-workspaces.checkout-timeout";
+
+	public static final long DEFAULT_CHECKOUT_TIMEOUT = 10 * 60 * 1000L;
+
+	static final String POOL_DIRECTORY = "blast-workspaces";
+
+	static final String SLOT_PREFIX = "slot-";
+
+	static final String LOCK_FILE = ".lock";
+
+	/** age after which a slot without lock file is removed */
+	static final long STALE_AGE = 60 * 60 * 1000L;
+
+	private static boolean staleRemoved;
+
+	private static BlastWorkspacePool _instance;
+
+	private final int size;
+
+	private final long checkoutTimeout;
+
+	private final BlockingQueue<BlastWorkspace> available;
+
+	BlastWorkspacePool(int size, long checkoutTimeout) {
+		this.size = Math.max(1, size);
+		this.checkoutTimeout = checkoutTimeout;
+		this.available = new ArrayBlockingQueue<BlastWorkspace>(this.size);
+		for (int i = 0; i < this.size; i++) {
+			available.add(new BlastWorkspace(i));
+		}
+	}
+
+	public static synchronized BlastWorkspacePool getInstance() {
+		if (_instance == null) {
+			_instance = new BlastWorkspacePool(DetectionPreferences.getInt(
+					SIZE, Runtime.getRuntime().availableProcessors()),
+					DetectionPreferences.getLong(CHECKOUT_TIMEOUT,
+							DEFAULT_CHECKOUT_TIMEOUT));
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Takes a free workspace and makes sure it contains the databases of the
+	 * given store directory. Blocks until a workspace is free.
+	 * 
+	 * @param storeDirectory
+	 *            complete database directory of the {@link BlastDatabaseStore}
+	 * @param checksum
+	 *            checksum of the library the databases were built from
+	 * @return workspace ready for searching
+	 * @throws Exception
+	 *             when no workspace became free in time or the databases
+	 *             could not be provided
+	 */
+	public BlastWorkspace checkout(File storeDirectory, String checksum)
+			throws Exception {
+		BlastWorkspace workspace = available.poll(checkoutTimeout,
+				TimeUnit.MILLISECONDS);
+		if (workspace == null) {
+			throw new Exception("No BLAST workspace became available within "
+					+ checkoutTimeout + " ms.");
+		}
+
+		try {
+			if (!checksum.equals(workspace.checksum)
+					|| !isHealthy(workspace, storeDirectory)) {
+				provision(workspace, storeDirectory, checksum);
+			}
+			return workspace;
+		} catch (Exception e) {
+			workspace.checksum = null;
+			available.offer(workspace);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a workspace to the pool. Left over query and output files are
+	 * removed.
+	 * 
+	 * @param workspace
+	 *            workspace taken with {@link #checkout(File, String)}
+	 */
+	public void release(BlastWorkspace workspace) {
+		try {
+			FileUtils.cleanDirectory(workspace.getTemporaryDirectory());
+		} catch (Exception e) {
+			LOG.warn("Cleaning " + workspace + " failed, it is provided again.",
+					e);
+			workspace.checksum = null;
+		}
+		available.offer(workspace);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getAvailableCount() {
+		return available.size();
+	}
+
+	/**
+	 * Checks that every database file of the store exists with the same size
+	 * in the workspace.
+	 * 
+	 * @param workspace
+	 *            workspace to check
+	 * @param storeDirectory
+	 *            database directory of the store
+	 * @return true, if the workspace can be searched
+	 * @throws IOException
+	 */
+	boolean isHealthy(BlastWorkspace workspace, File storeDirectory)
+			throws IOException {
+		if (!workspace.getTemporaryDirectory().isDirectory()) {
+			return false;
+		}
+		File[] storeFiles = listDatabaseFiles(storeDirectory);
+		for (File storeFile : storeFiles) {
+			File file = new File(workspace.getDatabaseDirectory(),
+					storeFile.getName());
+			if (!file.isFile() || file.length() != storeFile.length()) {
+				LOG.warn(workspace + " is missing " + storeFile.getName());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void provision(BlastWorkspace workspace, File storeDirectory,
+			String checksum) throws IOException {
+		LOG.debug("Providing databases " + checksum + " in " + workspace);
+		File databaseDirectory = workspace.getDatabaseDirectory();
+		FileUtils.deleteQuietly(databaseDirectory);
+		if (!databaseDirectory.mkdirs()) {
+			throw new IOException("Could not create " + databaseDirectory);
+		}
+		File temporaryDirectory = workspace.getTemporaryDirectory();
+		if (!temporaryDirectory.isDirectory() && !temporaryDirectory.mkdirs()) {
+			throw new IOException("Could not create " + temporaryDirectory);
+		}
+
+		for (File storeFile : listDatabaseFiles(storeDirectory)) {
+			File file = new File(databaseDirectory, storeFile.getName());
+			try {
+				Files.createLink(file.toPath(), storeFile.toPath());
+			} catch (IOException | UnsupportedOperationException e) {
+				LOG.debug("Hard link not possible, copying " + storeFile);
+				Files.copy(storeFile.toPath(), file.toPath());
+			}
+		}
+		workspace.checksum = checksum;
+	}
+
+	private File[] listDatabaseFiles(File storeDirectory) throws IOException {
+		File[] files = storeDirectory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return !file.getName().equals(BlastDatabaseStore.LOCK_FILE);
+			}
+		});
+		if (files == null) {
+			throw new IOException("Database directory " + storeDirectory
+					+ " cannot be read.");
+		}
+		return files;
+	}
+
+	private static File getPoolRoot() throws IOException {
+		return new File(LocalConfig.getInstance().getWorkingDirectory()
+				.toFile(), POOL_DIRECTORY);
+	}
+
+	/**
+	 * Creates a new slot directory in the pool root and locks it for the
+	 * lifetime of the process.
+	 */
+	private static synchronized Slot createSlot() throws IOException {
+		File root = getPoolRoot();
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new IOException("Could not create " + root);
+		}
+		if (!staleRemoved) {
+			removeStale(root, System.currentTimeMillis() - STALE_AGE);
+			staleRemoved = true;
+		}
+		File directory = Files.createTempDirectory(root.toPath(), SLOT_PREFIX)
+				.toFile();
+		FileChannel channel = FileChannel.open(
+				new File(directory, LOCK_FILE).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				throw new IOException("Could not lock " + directory);
+			}
+			return new Slot(directory, lock);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Removes the slots no running process holds the lock of. Slots without
+	 * lock file are only removed when they were not modified since the
+	 * given time, as another process may just be creating them.
+	 */
+	static void removeStale(File root, long modifiedBefore) {
+		File[] directories = root.listFiles();
+		if (directories == null) {
+			return;
+		}
+		for (File directory : directories) {
+			if (!directory.getName().startsWith(SLOT_PREFIX)) {
+				continue;
+			}
+			File lockFile = new File(directory, LOCK_FILE);
+			boolean stale;
+			if (lockFile.isFile()) {
+				stale = !isLocked(lockFile);
+			} else {
+				stale = directory.lastModified() < modifiedBefore;
+			}
+			if (stale) {
+				LOG.debug("Removing left over BLAST workspace " + directory);
+				FileUtils.deleteQuietly(directory);
+			}
+		}
+	}
+
+	private static boolean isLocked(File lockFile) {
+		try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+				StandardOpenOption.WRITE)) {
+			FileLock lock = channel.tryLock();
+			if (lock == null) {
+				return true;
+			}
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			// held by this process
+			return true;
+		} catch (IOException e) {
+			LOG.debug("Could not check " + lockFile, e);
+			return true;
+		}
+	}
+
+	/**
+	 * A locked slot directory of this process.
+	 */
+	private static final class Slot {
+
+		private final File directory;
+
+		/** held until the process ends */
+		private final FileLock lock;
+
+		Slot(File directory, FileLock lock) {
+			this.directory = directory;
+			this.lock = lock;
+		}
+
+		void close() {
+			try {
+				lock.channel().close();
+			} catch (IOException e) {
+				LOG.debug("Could not release " + directory, e);
+			}
+		}
+	}
+
+	/**
+	 * A working directory of the pool.
+	 */
+	public static final class BlastWorkspace {
+
+		private final int index;
+
+		private volatile String checksum;
+
+		private Slot slot;
+
+		BlastWorkspace(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * @return directory containing the databases of the workspace
+		 * @throws IOException
+		 */
+		public File getDatabaseDirectory() throws IOException {
+			return new File(getDirectory(), "db");
+		}
+
+		/**
+		 * @return directory for query and output files of the workspace
+		 * @throws IOException
+		 */
+		public File getTemporaryDirectory() throws IOException {
+			return new File(getDirectory(), "tmp");
+		}
+
+		private synchronized File getDirectory() throws IOException {
+			if (slot == null || !slot.directory.isDirectory()) {
+				if (slot != null) {
+					slot.close();
+				}
+				slot = createSlot();
+			}
+			return slot.directory;
+		}
+
+		@Override
+		public String toString() {
+			return "BLAST workspace " + index;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * {@code ChainDetectionExecutor} runs the detections of the chains of one
+ * construct in parallel, each with its own BLAST search, and other per chain
+ * work like the cleavage of the peptides of an antibody.
+ * <p>
+ * A caller waiting for its tasks runs those not started by the pool itself.
+ * Tasks may therefore submit tasks again without starving the pool.
+ * 
+ * @version $Id$
+ */
+public class ChainDetectionExecutor {
+
+	/**
+	 * Number of chains detected in parallel, defaults to the number of
+	 * processors. 1 detects all chains of a construct in one search.
+	 */
+	public static final String THREADS = "detection.chain-parallel.threads";
+
+	private static ChainDetectionExecutor _instance;
+
+	private final int threads;
+
+	private final ThreadPoolExecutor executor;
+
+	ChainDetectionExecutor(int threads) {
+		this.threads = Math.max(1, threads);
+		executor = new ThreadPoolExecutor(this.threads, this.threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ChainThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public static synchronized ChainDetectionExecutor getInstance() {
+		if (_instance == null) {
+			_instance = new ChainDetectionExecutor(DetectionPreferences.getInt(
+					THREADS, Runtime.getRuntime().availableProcessors()));
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Runs the given tasks on the pool and waits for all of them. Tasks not
+	 * started by the pool when the caller waits for them are run by the
+	 * caller. When a task fails, the remaining ones are cancelled and its
+	 * exception is thrown.
+	 * 
+	 * @param tasks
+	 *            tasks to run
+	 * @return results in the order of the tasks
+	 * @throws Exception
+	 *             exception of the first failed task in task order
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks)
+			throws Exception {
+		List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(
+				tasks.size());
+		try {
+			for (Callable<T> task : tasks) {
+				FutureTask<T> future = new FutureTask<T>(task);
+				futures.add(future);
+				executor.execute(future);
+			}
+			List<T> results = new ArrayList<T>(tasks.size());
+			for (FutureTask<T> future : futures) {
+				// no-op, if the pool started the task already
+				future.run();
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+			return results;
+		} finally {
+			// no-op for completed tasks, stops the BLAST runs of the others
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Creates daemon threads, so pending detections never keep the
+	 * application alive.
+	 */
+	private static class ChainThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "chain-detection-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,466 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code ConfigConnectionPool} keeps a bounded number of JDBC connections to
+ * the configuration database open. A borrowed connection is returned to the
+ * pool when it is closed; statements created on it are closed then, since
+ * the config loaders leave them open.
+ * <p>
+ * Idle connections are validated before they are handed out again, broken
+ * ones are replaced. A borrowed connection that is never closed, e.g.
+ * because a loader failed before its finally block, is taken back once it is
+ * garbage collected; its physical connection is closed then. A connection
+ * held longer than {@link #LONG_HELD_WARNING} is only reported, since a slow
+ * query may still be using it. Taking back connections held longer than
+ * {@link #LEAK_TIMEOUT} is off unless configured.
+ * 
+ * @version $Id$
+ */
+public class ConfigConnectionPool {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ConfigConnectionPool.class);
+
+	/** Maximal number of open connections, 0 disables pooling. */
+	public static final String SIZE = "detection.jdbc-pool.size";
+
+	/** Milliseconds to wait for a free connection. */
+	public static final String TIMEOUT = "detection.jdbc-pool.timeout";
+
+	public static final int DEFAULT_SIZE = 4;
+
+	public static final long DEFAULT_TIMEOUT = 30 * 1000L;
+
+	/** Milliseconds after which a borrowed connection is reported. */
+	public static final String LONG_HELD_WARNING = "detection.jdbc-pool.long-held-warning";
+
+	public static final long DEFAULT_LONG_HELD_WARNING = 60 * 1000L;
+
+	/**
+	 * Milliseconds after which a connection not given back is taken back and
+	 * closed, 0 never takes it back.
+	 */
+	public static final String LEAK_TIMEOUT = "detection.jdbc-pool.leak-timeout";
+
+	public static final long DEFAULT_LEAK_TIMEOUT = 0;
+
+	/** milliseconds between checks for leaked connections while waiting */
+	static final long RECLAIM_INTERVAL = 1000L;
+
+	/** seconds an idle connection may take to validate */
+	static final int VALIDATION_TIMEOUT = 2;
+
+	private final String jdbcDriver;
+
+	private final String url;
+
+	private final int size;
+
+	private final long timeout;
+
+	private final long longHeldWarning;
+
+	private final long leakTimeout;
+
+	private final Semaphore permits;
+
+	private final Set<Borrow> borrows = Collections
+			.newSetFromMap(new ConcurrentHashMap<Borrow, Boolean>());
+
+	/** borrowed connections garbage collected without being closed */
+	private final ReferenceQueue<Connection> unreachable = new ReferenceQueue<Connection>();
+
+	private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+	private final AtomicLong opened = new AtomicLong();
+
+	private volatile boolean closed;
+
+	/**
+	 * @param jdbcDriver
+	 *            class name of the JDBC driver
+	 * @param url
+	 *            JDBC URL of the database
+	 * @param size
+	 *            maximal number of open connections
+	 * @param timeout
+	 *            milliseconds to wait for a free connection
+	 * @param longHeldWarning
+	 *            milliseconds after which a borrowed connection is reported,
+	 *            0 never reports it
+	 * @param leakTimeout
+	 *            milliseconds after which a connection not given back is
+	 *            taken back, 0 never takes it back
+	 */
+	public ConfigConnectionPool(String jdbcDriver, String url, int size,
+			long timeout, long longHeldWarning, long leakTimeout) {
+		this.jdbcDriver = jdbcDriver;
+		this.url = url;
+		this.size = Math.max(1, size);
+		this.timeout = timeout;
+		this.longHeldWarning = longHeldWarning;
+		this.leakTimeout = leakTimeout;
+		this.permits = new Semaphore(this.size, true);
+	}
+
+	/**
+	 * Borrows a connection, blocking until one is free. Closing the returned
+	 * connection gives it back.
+	 * 
+	 * @return open connection
+	 * @throws SQLException
+	 *             when no connection became free in time or none could be
+	 *             opened
+	 */
+	public Connection borrow() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool for " + url
+					+ " is closed.");
+		}
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (!permits.tryAcquire(
+					Math.min(RECLAIM_INTERVAL, Math.max(0, deadline
+							- System.currentTimeMillis())),
+					TimeUnit.MILLISECONDS)) {
+				if (reclaimLeaked() == 0
+						&& System.currentTimeMillis() >= deadline) {
+					throw new SQLException("No connection to " + url
+							+ " became available within " + timeout + " ms.");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection.", e);
+		}
+
+		try {
+			Connection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (isUsable(connection)) {
+					return wrap(connection);
+				}
+				LOG.debug("Replacing broken connection to " + url);
+				closeQuietly(connection);
+			}
+			return wrap(open());
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes back the borrowed connections that were garbage collected without
+	 * being closed, and those held longer than the leak timeout if one is
+	 * configured. Connections held longer than the warning time are reported
+	 * once.
+	 * 
+	 * @return number of connections taken back
+	 */
+	int reclaimLeaked() {
+		int reclaimed = 0;
+		Reference<? extends Connection> reference;
+		while ((reference = unreachable.poll()) != null) {
+			if (((Borrow) reference).reclaim()) {
+				LOG.warn("A connection to " + url
+						+ " was not closed before it was discarded.");
+				reclaimed++;
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Borrow borrow : borrows) {
+			long held = now - borrow.since;
+			if (leakTimeout > 0 && held > leakTimeout && borrow.reclaim()) {
+				LOG.warn("A connection to " + url + " was not closed within "
+						+ leakTimeout + " ms and is taken back.");
+				reclaimed++;
+			} else if (longHeldWarning > 0 && held > longHeldWarning
+					&& !borrow.reported) {
+				borrow.reported = true;
+				LOG.warn("A connection to " + url + " has been borrowed for "
+						+ held + " ms.");
+			}
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Closes all idle connections. Borrowed connections are closed when they
+	 * are given back.
+	 */
+	public void close() {
+		closed = true;
+		Connection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			closeQuietly(connection);
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getBorrowedCount() {
+		return size - permits.availablePermits();
+	}
+
+	/**
+	 * @return number of physical connections opened so far
+	 */
+	public long getOpenedCount() {
+		return opened.get();
+	}
+
+	private Connection open() throws SQLException {
+		try {
+			Class.forName(jdbcDriver);
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("JDBC driver " + jdbcDriver
+					+ " not found.", e);
+		}
+		Connection connection = DriverManager.getConnection(url);
+		opened.incrementAndGet();
+		LOG.debug("Opened pooled connection to " + url);
+		return connection;
+	}
+
+	/**
+	 * Wraps a connection owned by someone else. Closing the returned
+	 * connection only closes the statements created on it.
+	 * 
+	 * @param connection
+	 *            connection to share
+	 * @return connection that cannot be closed
+	 */
+	static Connection share(Connection connection) {
+		return wrap(connection, null);
+	}
+
+	/**
+	 * Closes the physical connection of a leaked borrow and frees its permit.
+	 */
+	private void discard(Connection connection) {
+		closeQuietly(connection);
+		permits.release();
+	}
+
+	private void giveBack(Connection connection) {
+		boolean reusable = false;
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			reusable = !closed && !connection.isClosed();
+		} catch (SQLException e) {
+			LOG.debug("Discarding connection to " + url + ": "
+					+ e.getMessage());
+		}
+		if (reusable) {
+			idle.offerFirst(connection);
+		} else {
+			closeQuietly(connection);
+		}
+		permits.release();
+	}
+
+	private static boolean isUsable(Connection connection) {
+		try {
+			return connection.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException | AbstractMethodError e) {
+			// drivers before JDBC 4 cannot validate
+			try {
+				return !connection.isClosed();
+			} catch (SQLException e1) {
+				return false;
+			}
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			LOG.debug("Closing connection failed: " + e.getMessage());
+		}
+	}
+
+	private Connection wrap(Connection connection) {
+		BorrowedConnection handler = new BorrowedConnection(connection, this);
+		Connection proxy = createProxy(handler);
+		handler.borrow = new Borrow(proxy, handler, unreachable);
+		borrows.add(handler.borrow);
+		return proxy;
+	}
+
+	private static Connection wrap(Connection connection,
+			ConfigConnectionPool pool) {
+		return createProxy(new BorrowedConnection(connection, pool));
+	}
+
+	private static Connection createProxy(BorrowedConnection handler) {
+		return (Connection) Proxy.newProxyInstance(
+				ConfigConnectionPool.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, handler);
+	}
+
+	/**
+	 * Tracks a borrowed connection. Only the handler is referenced strongly,
+	 * so the borrow is enqueued when the caller drops the connection.
+	 */
+	private static final class Borrow extends WeakReference<Connection> {
+
+		private final BorrowedConnection handler;
+
+		private final long since = System.currentTimeMillis();
+
+		/** set once the long borrow has been logged */
+		private volatile boolean reported;
+
+		Borrow(Connection proxy, BorrowedConnection handler,
+				ReferenceQueue<Connection> queue) {
+			super(proxy, queue);
+			this.handler = handler;
+		}
+
+		boolean reclaim() {
+			return handler.reclaim();
+		}
+	}
+
+	/**
+	 * Gives the connection back to its pool on close, instead of closing it.
+	 */
+	private static final class BorrowedConnection implements
+			InvocationHandler {
+
+		private final Connection connection;
+
+		/** null for a shared connection */
+		private final ConfigConnectionPool pool;
+
+		/** null for a shared connection */
+		private Borrow borrow;
+
+		private final List<Statement> statements = new ArrayList<Statement>();
+
+		private boolean returned;
+
+		BorrowedConnection(Connection connection, ConfigConnectionPool pool) {
+			this.connection = connection;
+			this.pool = pool;
+		}
+
+		@Override
+		public synchronized Object invoke(Object proxy, Method method,
+				Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				if (!returned) {
+					returned = true;
+					closeStatements();
+					if (pool != null) {
+						untrack();
+						pool.giveBack(connection);
+					}
+				}
+				return null;
+			}
+			if (name.equals("isClosed")) {
+				return returned || connection.isClosed();
+			}
+			if (returned) {
+				throw new SQLException("Connection has been closed.");
+			}
+			try {
+				Object result = method.invoke(connection, args);
+				if (result instanceof Statement) {
+					statements.add((Statement) result);
+				}
+				return result;
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		/**
+		 * Takes the connection away from a borrower that did not close it.
+		 * 
+		 * @return false, if it was given back already
+		 */
+		synchronized boolean reclaim() {
+			if (returned) {
+				return false;
+			}
+			returned = true;
+			closeStatements();
+			untrack();
+			pool.discard(connection);
+			return true;
+		}
+
+		private void untrack() {
+			pool.borrows.remove(borrow);
+			borrow.clear();
+		}
+
+		private void closeStatements() {
+			for (Statement statement : statements) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					LOG.debug("Closing statement failed: " + e.getMessage());
+				}
+			}
+			statements.clear();
+		}
+	}
+}
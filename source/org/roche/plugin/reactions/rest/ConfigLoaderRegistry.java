@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+
+import org.roche.antibody.services.ConfigFileService;
+import org.roche.antibody.services.ConfigLoaderAutoconnectorConfig;
+import org.roche.antibody.services.ConfigLoaderMutationLibrary;
+import org.roche.antibody.services.ConfigLoaderSettings;
+import org.roche.antibody.services.DomainDetectionSettings;
+import org.roche.antibody.services.DomainDetectionSettingsService;
+import org.roche.antibody.services.PreferencesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quattroresearch.antibody.Mutation;
+import com.quattroresearch.antibody.SingleMutation;
+
+/**
+ * 
+ * {@code ConfigLoaderRegistry} creates the config loaders used by the domain
+ * detection once per distinct JDBC configuration and installs them on the
+ * {@link DomainDetectionSettingsService} and the {@link ConfigFileService}.
+ * <p>
+ * The loaders are only replaced when the configured JDBC driver or URL
+ * changes, or when {@link #reload()} is called. They connect through a
+ * {@link ConfigConnectionPool}, see {@link PooledConfigDriver}. Changes of the user
+ * preferences cause a reload of the detection settings on the next access.
+ * Changes of the configuration tables are found by a revalidation every
+ * {@link #REVALIDATE_INTERVAL}, which compares the checksum of the reloaded
+ * detection settings and mutation library with the installed one.
+ * 
+ * @version $Id$
+ */
+public class ConfigLoaderRegistry {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ConfigLoaderRegistry.class);
+
+	/**
+	 * Milliseconds after which the configuration tables are checked for
+	 * changes, 0 disables the check.
+	 */
+	public static final String REVALIDATE_INTERVAL = "detection.config.revalidate-interval";
+
+	public static final long DEFAULT_REVALIDATE_INTERVAL = 5 * 60 * 1000L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static ConfigLoaderRegistry _instance;
+
+	private final AtomicReference<LoaderSet> current = new AtomicReference<LoaderSet>();
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicBoolean settingsOutdated = new AtomicBoolean();
+
+	private boolean listenerRegistered;
+
+	private volatile long validatedAt;
+
+	/** fingerprint of the configuration the mutation library belongs to */
+	private String fingerprint;
+
+	private MutationLibrarySnapshot mutationLibrary;
+
+	private ConfigLoaderRegistry() {
+	}
+
+	public static synchronized ConfigLoaderRegistry getInstance() {
+		if (_instance == null) {
+			_instance = new ConfigLoaderRegistry();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Makes sure the loaders for the current preferences are installed. New
+	 * loaders are only created when the preferences changed since the last
+	 * call.
+	 * 
+	 * @return the installed loaders
+	 * @throws Exception
+	 *             when the loaders could not be created or the settings could
+	 *             not be loaded
+	 */
+	public LoaderSet ensureInstalled() throws Exception {
+		String jdbc = getPreference(PreferencesService.CONFIG_LOADER_JDBC);
+		String url = getPreference(PreferencesService.CONFIG_LOADER_URL);
+
+		LoaderSet loaders = current.get();
+		if (loaders != null && loaders.matches(jdbc, url)
+				&& !settingsOutdated.get() && !isRevalidationDue()) {
+			return loaders;
+		}
+
+		synchronized (this) {
+			loaders = current.get();
+			if (loaders == null || !loaders.matches(jdbc, url)) {
+				return install(jdbc, url);
+			}
+			if (settingsOutdated.getAndSet(false)) {
+				LOG.debug("User preferences changed, reloading detection settings.");
+				DomainDetectionSettingsService.getInstance().reloadSettings();
+				generation.incrementAndGet();
+			} else if (isRevalidationDue()) {
+				revalidate(loaders);
+			}
+			return loaders;
+		}
+	}
+
+	private boolean isRevalidationDue() {
+		long interval = DetectionPreferences.getLong(REVALIDATE_INTERVAL,
+				DEFAULT_REVALIDATE_INTERVAL);
+		return interval > 0
+				&& System.currentTimeMillis() - validatedAt >= interval;
+	}
+
+	/**
+	 * Reloads the detection settings and the mutation library and increases
+	 * the generation, unless their checksum equals the one of the current
+	 * generation.
+	 */
+	private void revalidate(LoaderSet loaders) throws Exception {
+		validatedAt = System.currentTimeMillis();
+		DomainDetectionSettingsService.getInstance().reloadSettings();
+		List<Mutation> mutations = fetchMutationLibrary();
+		String checksum = computeFingerprint(loaders, mutations);
+		boolean known = mutationLibrary != null
+				&& mutationLibrary.getVersion() == generation.get();
+		if (known && checksum.equals(fingerprint)) {
+			return;
+		}
+		if (known) {
+			LOG.info("Configuration tables changed, increasing generation.");
+		}
+		index(loaders, mutations, generation.incrementAndGet());
+	}
+
+	/**
+	 * Creates and installs new loaders, even when the preferences did not
+	 * change. Use this after the underlying configuration tables changed.
+	 * 
+	 * @return the installed loaders
+	 * @throws Exception
+	 *             when the loaders could not be created or the settings could
+	 *             not be loaded
+	 */
+	public synchronized LoaderSet reload() throws Exception {
+		return install(getPreference(PreferencesService.CONFIG_LOADER_JDBC),
+				getPreference(PreferencesService.CONFIG_LOADER_URL));
+	}
+
+	/**
+	 * Returns the generation of the installed configuration. It is increased
+	 * every time new loaders are installed or the detection settings are
+	 * reloaded, so results depending on the configuration can use it as
+	 * version.
+	 * 
+	 * @return loader generation, 0 when nothing was installed yet
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Returns a checksum over the installed configuration, i.e. the loader
+	 * source, the detection settings and the mutation library. In contrast to
+	 * the generation it is stable across sessions, so it can be used to
+	 * version persisted results. It is computed once per generation.
+	 * 
+	 * @return configuration checksum
+	 * @throws Exception
+	 *             when the configuration could not be loaded
+	 */
+	public synchronized String getFingerprint() throws Exception {
+		getMutationLibrary();
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the mutation library of the installed configuration. It is
+	 * fetched once per generation, so installing a new
+	 * {@link ConfigLoaderMutationLibrary}, calling {@link #reload()} or a
+	 * revalidation finding a changed library replaces the snapshot.
+	 * 
+	 * @return indexed snapshot of the mutation library
+	 * @throws Exception
+	 *             when the configuration could not be loaded
+	 */
+	public synchronized MutationLibrarySnapshot getMutationLibrary()
+			throws Exception {
+		LoaderSet loaders = ensureInstalled();
+		long currentGeneration = generation.get();
+		if (mutationLibrary == null
+				|| mutationLibrary.getVersion() != currentGeneration) {
+			index(loaders, fetchMutationLibrary(), currentGeneration);
+		}
+		return mutationLibrary;
+	}
+
+	private static List<Mutation> fetchMutationLibrary() throws Exception {
+		List<Mutation> mutations = ConfigFileService.getInstance()
+				.fetchMutationLibrary();
+		return mutations == null ? Collections.<Mutation> emptyList()
+				: mutations;
+	}
+
+	private void index(LoaderSet loaders, List<Mutation> mutations,
+			long version) {
+		mutationLibrary = new MutationLibrarySnapshot(mutations, version);
+		fingerprint = computeFingerprint(loaders, mutations);
+		LOG.debug("Indexed " + mutationLibrary.size()
+				+ " mutations (generation " + version + ")");
+	}
+
+	private String computeFingerprint(LoaderSet loaders,
+			List<Mutation> mutations) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		update(digest, loaders.jdbc);
+		update(digest, loaders.url);
+
+		DomainDetectionSettings settings = DomainDetectionSettingsService
+				.getInstance().getCurrentSettings();
+		if (settings != null) {
+			update(digest, settings.getDomainDetectionAlgorithm());
+			update(digest, settings.getMaxDomainDistance());
+			update(digest, settings.isSingleResidueTrimEnabled());
+			update(digest, settings.isMultipleResidueTrimEnabled());
+			update(digest, settings.isAutoextendDomainsEnabled());
+			update(digest, settings.isDomainConflictSolverEnabled());
+			update(digest, settings.getLowerSortingThreshold());
+			update(digest, settings.getUpperSortingThreshold());
+			update(digest, settings.isLowerSortingThresholdEnabled());
+			update(digest, settings.isUpperSortingThresholdEnabled());
+			update(digest, settings.getSkipHitCoverageThreshold());
+			update(digest, settings.getSkipHitIdentityThreshold());
+			update(digest, settings.getBlastParamNumAlignments());
+			update(digest, settings.getBlastParamEValue());
+		}
+
+		for (Mutation mutation : mutations) {
+			update(digest, mutation.getMutationName());
+			if (mutation.getSingleMutations() == null) {
+				continue;
+			}
+			for (SingleMutation singleMutation : mutation.getSingleMutations()) {
+				update(digest, singleMutation.getDomainName());
+				update(digest, singleMutation.getPosition());
+				update(digest, singleMutation.getOriAA());
+				update(digest, singleMutation.getNewAA());
+				update(digest, singleMutation.getShortname());
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest digest, Object value) {
+		digest.update(String.valueOf(value).getBytes(UTF8));
+		digest.update((byte) 0);
+	}
+
+	private LoaderSet install(String jdbc, String url) throws Exception {
+		registerPreferenceListener();
+
+		// the loaders connect through the pool, unless it is disabled
+		String loaderJdbc = jdbc;
+		String loaderUrl = PooledConfigDriver.register(jdbc, url);
+		if (loaderUrl != null) {
+			loaderJdbc = PooledConfigDriver.class.getName();
+		} else {
+			loaderUrl = url;
+		}
+
+		LoaderSet loaders;
+		ConfigLoaderSettings settingsLoader = new ConfigLoaderSettings();
+		try {
+			loaders = new LoaderSet(jdbc, url, settingsLoader,
+					new ConfigLoaderAutoconnectorConfig(loaderJdbc, loaderUrl,
+							null), new ConfigLoaderMutationLibrary(loaderJdbc,
+							loaderUrl, null), generation.get() + 1);
+		} catch (Exception e) {
+			LOG.error("Creating config loaders failed!", e);
+			throw e;
+		}
+
+		try {
+			DomainDetectionSettingsService.getInstance()
+					.setPrimaryDomainDetectionSettingsLoader(settingsLoader);
+		} catch (Exception e) {
+			LOG.error("Loading domain detection settings failed!", e);
+			throw e;
+		}
+		ConfigFileService.getInstance().setPrimaryAutoconnectorConfigLoader(
+				loaders.getAutoconnectorLoader());
+		ConfigFileService.getInstance().setPrimaryMutationLibraryLoader(
+				loaders.getMutationLibraryLoader());
+
+		settingsOutdated.set(false);
+		LoaderSet previous = current.getAndSet(loaders);
+		if (previous != null && !LoaderSet.equal(previous.url, url)) {
+			PooledConfigDriver.unregister(previous.url);
+		}
+		generation.set(loaders.getGeneration());
+		validatedAt = System.currentTimeMillis();
+		LOG.debug("Installed config loaders for " + url + " (generation "
+				+ loaders.getGeneration() + ")");
+		return loaders;
+	}
+
+	private void registerPreferenceListener() {
+		if (listenerRegistered) {
+			return;
+		}
+		try {
+			PreferencesService.getInstance().getUserPrefs()
+					.addPreferenceChangeListener(new PreferenceChangeListener() {
+						@Override
+						public void preferenceChange(PreferenceChangeEvent evt) {
+							settingsOutdated.set(true);
+						}
+					});
+			listenerRegistered = true;
+		} catch (Exception e) {
+			LOG.warn("Could not listen to user preference changes: "
+					+ e.getMessage());
+		}
+	}
+
+	private String getPreference(String key) {
+		return PreferencesService.getInstance().getApplicationPrefs()
+				.getString(key);
+	}
+
+	/**
+	 * An immutable set of loaders created for one JDBC configuration.
+	 */
+	public static final class LoaderSet {
+
+		private final String jdbc;
+
+		private final String url;
+
+		private final ConfigLoaderSettings settingsLoader;
+
+		private final ConfigLoaderAutoconnectorConfig autoconnectorLoader;
+
+		private final ConfigLoaderMutationLibrary mutationLibraryLoader;
+
+		private final long generation;
+
+		LoaderSet(String jdbc, String url,
+				ConfigLoaderSettings settingsLoader,
+				ConfigLoaderAutoconnectorConfig autoconnectorLoader,
+				ConfigLoaderMutationLibrary mutationLibraryLoader,
+				long generation) {
+			this.jdbc = jdbc;
+			this.url = url;
+			this.settingsLoader = settingsLoader;
+			this.autoconnectorLoader = autoconnectorLoader;
+			this.mutationLibraryLoader = mutationLibraryLoader;
+			this.generation = generation;
+		}
+
+		boolean matches(String otherJdbc, String otherUrl) {
+			return equal(jdbc, otherJdbc) && equal(url, otherUrl);
+		}
+
+		private static boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		public ConfigLoaderSettings getSettingsLoader() {
+			return settingsLoader;
+		}
+
+		public ConfigLoaderAutoconnectorConfig getAutoconnectorLoader() {
+			return autoconnectorLoader;
+		}
+
+		public ConfigLoaderMutationLibrary getMutationLibraryLoader() {
+			return mutationLibraryLoader;
+		}
+
+		public long getGeneration() {
+			return generation;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * {@code DetectionExecutor} runs asynchronous domain detections on a bounded
+ * thread pool. The number of threads and the number of waiting detections
+ * are configurable; a detection submitted to a full queue is rejected instead
+ * of piling up.
+ * <p>
+ * Cancelling a returned {@link Future} with interruption stops the running
+ * BLAST process of the detection.
+ * 
+ * @version $Id$
+ */
+public class DetectionExecutor {
+
+	/** Number of detection threads, defaults to the number of processors. */
+	public static final String THREADS = "detection.async.threads";
+
+	/** Number of detections waiting for a thread. */
+	public static final String QUEUE_SIZE = "detection.async.queue-size";
+
+	public static final int DEFAULT_QUEUE_SIZE = 100;
+
+	private static DetectionExecutor _instance;
+
+	private final ThreadPoolExecutor executor;
+
+	DetectionExecutor(int threads, int queueSize) {
+		threads = Math.max(1, threads);
+		executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+						queueSize)), new DetectionThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public static synchronized DetectionExecutor getInstance() {
+		if (_instance == null) {
+			_instance = new DetectionExecutor(DetectionPreferences.getInt(
+					THREADS, Runtime.getRuntime().availableProcessors()),
+					DetectionPreferences.getInt(QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Submits a detection.
+	 * 
+	 * @param task
+	 *            detection to run
+	 * @return future of the detection result
+	 * @throws RejectedExecutionException
+	 *             when the queue is full
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return executor.submit(task);
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Creates daemon threads, so pending detections never keep the
+	 * application alive.
+	 */
+	private static class DetectionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "domain-detection-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
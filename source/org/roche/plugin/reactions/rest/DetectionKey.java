@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+/**
+ * 
+ * {@code DetectionKey} identifies the detection result of one chain sequence.
+ * Besides the sequence it contains everything the result depends on: the
+ * searched library and its version, the generation of the installed config
+ * loaders, which covers the mutation library and the detection settings,
+ * and the algorithm, e.g. the fragment aligner of the detecting processor.
+ * 
+ * @version $Id$
+ */
+public final class DetectionKey {
+
+	private final String sequence;
+
+	private final boolean isAntigenDomains;
+
+	private final long libraryVersion;
+
+	private final long configGeneration;
+
+	private final String algorithm;
+
+	/**
+	 * @param sequence
+	 *            chain sequence
+	 * @param isAntigenDomains
+	 *            whether antigen domains are searched
+	 * @param libraryVersion
+	 *            version of the searched library
+	 * @param configGeneration
+	 *            generation of the installed config loaders
+	 * @param algorithm
+	 *            description of the algorithm settings changing the result
+	 */
+	public DetectionKey(String sequence, boolean isAntigenDomains,
+			long libraryVersion, long configGeneration, String algorithm) {
+		if (sequence == null || algorithm == null) {
+			throw new IllegalArgumentException(
+					"Sequence and algorithm must not be null.");
+		}
+		this.sequence = sequence;
+		this.isAntigenDomains = isAntigenDomains;
+		this.libraryVersion = libraryVersion;
+		this.configGeneration = configGeneration;
+		this.algorithm = algorithm;
+	}
+
+	public String getSequence() {
+		return sequence;
+	}
+
+	public boolean isAntigenDomains() {
+		return isAntigenDomains;
+	}
+
+	public long getLibraryVersion() {
+		return libraryVersion;
+	}
+
+	public long getConfigGeneration() {
+		return configGeneration;
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = sequence.hashCode();
+		result = 31 * result + (isAntigenDomains ? 1 : 0);
+		result = 31 * result
+				+ (int) (libraryVersion ^ (libraryVersion >>> 32));
+		result = 31 * result
+				+ (int) (configGeneration ^ (configGeneration >>> 32));
+		result = 31 * result + algorithm.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DetectionKey)) {
+			return false;
+		}
+		DetectionKey other = (DetectionKey) obj;
+		return isAntigenDomains == other.isAntigenDomains
+				&& libraryVersion == other.libraryVersion
+				&& configGeneration == other.configGeneration
+				&& algorithm.equals(other.algorithm)
+				&& sequence.equals(other.sequence);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"DetectionKey[%s, antigen=%s, library=%d, config=%d, algorithm=%s]",
+				sequence, isAntigenDomains, libraryVersion, configGeneration,
+				algorithm);
+	}
+}
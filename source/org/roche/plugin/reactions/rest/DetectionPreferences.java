@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import org.apache.commons.configuration.Configuration;
+import org.roche.antibody.services.PreferencesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code DetectionPreferences} holds the optional application settings that
+ * tune the domain detection infrastructure of the plugin. Every setting has a
+ * default, so a missing or unreadable application configuration never breaks
+ * a detection.
+ * 
+ * @version $Id$
+ */
+public final class DetectionPreferences {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DetectionPreferences.class);
+
+	/**
+	 * Milliseconds after which a cached domain library is re-fetched and
+	 * compared against its checksum. A value <= 0 disables revalidation.
+	 */
+	public static final String LIBRARY_CACHE_REVALIDATE_INTERVAL = "detection.library-cache.revalidate-interval";
+
+	public static final long DEFAULT_LIBRARY_CACHE_REVALIDATE_INTERVAL = 5 * 60 * 1000L;
+
+	private DetectionPreferences() {
+	}
+
+	/**
+	 * Reads a long value from the application preferences.
+	 * 
+	 * @param key
+	 *            preference key
+	 * @param defaultValue
+	 *            value returned when the key is missing or unreadable
+	 * @return configured value or default
+	 */
+	public static long getLong(String key, long defaultValue) {
+		Configuration prefs = getApplicationPrefs();
+		if (prefs == null) {
+			return defaultValue;
+		}
+		try {
+			return prefs.getLong(key, defaultValue);
+		} catch (Exception e) {
+			LOG.warn("Invalid value for preference " + key + ", using "
+					+ defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads an int value from the application preferences.
+	 * 
+	 * @param key
+	 *            preference key
+	 * @param defaultValue
+	 *            value returned when the key is missing or unreadable
+	 * @return configured value or default
+	 */
+	public static int getInt(String key, int defaultValue) {
+		Configuration prefs = getApplicationPrefs();
+		if (prefs == null) {
+			return defaultValue;
+		}
+		try {
+			return prefs.getInt(key, defaultValue);
+		} catch (Exception e) {
+			LOG.warn("Invalid value for preference " + key + ", using "
+					+ defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a boolean value from the application preferences.
+	 * 
+	 * @param key
+	 *            preference key
+	 * @param defaultValue
+	 *            value returned when the key is missing or unreadable
+	 * @return configured value or default
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		Configuration prefs = getApplicationPrefs();
+		if (prefs == null) {
+			return defaultValue;
+		}
+		try {
+			return prefs.getBoolean(key, defaultValue);
+		} catch (Exception e) {
+			LOG.warn("Invalid value for preference " + key + ", using "
+					+ defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads a string value from the application preferences.
+	 * 
+	 * @param key
+	 *            preference key
+	 * @param defaultValue
+	 *            value returned when the key is missing
+	 * @return configured value or default
+	 */
+	public static String getString(String key, String defaultValue) {
+		Configuration prefs = getApplicationPrefs();
+		if (prefs == null) {
+			return defaultValue;
+		}
+		return prefs.getString(key, defaultValue);
+	}
+
+	private static Configuration getApplicationPrefs() {
+		try {
+			return PreferencesService.getInstance().getApplicationPrefs();
+		} catch (Exception e) {
+			LOG.warn("Application preferences not available: "
+					+ e.getMessage());
+			return null;
+		}
+	}
+}
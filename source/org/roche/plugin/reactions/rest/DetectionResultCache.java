@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.roche.antibody.model.antibody.Peptide;
+
+/**
+ * 
+ * {@code DetectionResultCache} keeps the domain and mutation detection results
+ * of recently detected chain sequences in memory. The least recently used
+ * result is evicted when the configured size is exceeded.
+ * <p>
+ * The cache stores its own copy of every result and returns a new copy on
+ * every hit, so callers may modify the returned peptides.
+ * 
+ * @version $Id$
+ */
+public class DetectionResultCache {
+
+	/** Maximum number of cached chain results, 0 disables the cache. */
+	public static final String MAX_ENTRIES = "detection.result-cache.size";
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	private static DetectionResultCache _instance;
+
+	private final int maxEntries;
+
+	private final Map<DetectionKey, Peptide> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	DetectionResultCache(int maxEntries) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.entries = new LinkedHashMap<DetectionKey, Peptide>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<DetectionKey, Peptide> eldest) {
+				if (size() > DetectionResultCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public static synchronized DetectionResultCache getInstance() {
+		if (_instance == null) {
+			_instance = new DetectionResultCache(DetectionPreferences.getInt(
+					MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Returns a copy of the cached result for the given key.
+	 * 
+	 * @param key
+	 *            detection key
+	 * @return copy of the cached peptide or null, if nothing is cached
+	 */
+	public Peptide get(DetectionKey key) {
+		Peptide cached;
+		synchronized (entries) {
+			cached = entries.get(key);
+		}
+		if (cached == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return PeptideCopier.copy(cached);
+	}
+
+	/**
+	 * Caches a copy of the given result.
+	 * 
+	 * @param key
+	 *            detection key
+	 * @param peptide
+	 *            detected peptide
+	 */
+	public void put(DetectionKey key, Peptide peptide) {
+		if (maxEntries == 0) {
+			return;
+		}
+		Peptide copy = PeptideCopier.copy(peptide);
+		synchronized (entries) {
+			entries.put(key, copy);
+		}
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the ratio of hits to all lookups.
+	 * 
+	 * @return hit ratio between 0 and 1
+	 */
+	public double getHitRatio() {
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return total == 0 ? 0.0 : (double) hitCount / total;
+	}
+
+	/**
+	 * Returns a short summary of the cache statistics for logging.
+	 * 
+	 * @return statistics summary
+	 */
+	public String getStatistics() {
+		return String.format(
+				"DetectionResultCache: size=%d/%d, hits=%d, misses=%d, evictions=%d, hit ratio=%.2f",
+				size(), maxEntries, getHitCount(), getMissCount(),
+				getEvictionCount(), getHitRatio());
+	}
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.roche.antibody.model.antibody.Peptide;
+
+/**
+ * 
+ * {@code DetectionSingleFlight} lets concurrent detections of the same chain
+ * share one run. The first caller of {@link #lead(DetectionKey)} for a key
+ * detects the chain and completes the returned {@link Flight}; callers
+ * arriving meanwhile wait for it with {@link #await(DetectionKey)}.
+ * <p>
+ * A flight only lives while its detection runs, results are kept by the
+ * {@link DetectionResultCache}. Every waiting caller gets its own copy of
+ * the result. A flight whose detection did not fail because of its own
+ * chain, e.g. because it was cancelled or another chain of the same batch
+ * failed, is abandoned; its waiting callers then detect the chain
+ * themselves.
+ * 
+ * @version $Id$
+ */
+public class DetectionSingleFlight {
+
+	private static DetectionSingleFlight _instance;
+
+	private final ConcurrentMap<DetectionKey, Flight> flights = new ConcurrentHashMap<DetectionKey, Flight>();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	DetectionSingleFlight() {
+	}
+
+	public static synchronized DetectionSingleFlight getInstance() {
+		if (_instance == null) {
+			_instance = new DetectionSingleFlight();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Starts a flight for the given key, unless one is running. A started
+	 * flight must be completed, failed or abandoned by the caller.
+	 * 
+	 * @param key
+	 *            detection key
+	 * @return the started flight or null, if the key is detected already
+	 */
+	public Flight lead(DetectionKey key) {
+		Flight flight = new Flight(key);
+		return flights.putIfAbsent(key, flight) == null ? flight : null;
+	}
+
+	/**
+	 * Waits for the running flight of the given key. A caller must not wait
+	 * for a key before completing the flights it leads.
+	 * 
+	 * @param key
+	 *            detection key
+	 * @return copy of the result or null, if no flight is running or the
+	 *         flight was abandoned
+	 * @throws Exception
+	 *             when the detection of the flight failed for its chain
+	 */
+	public Peptide await(DetectionKey key) throws Exception {
+		Flight flight = flights.get(key);
+		if (flight == null) {
+			return null;
+		}
+		coalesced.incrementAndGet();
+		return flight.await();
+	}
+
+	public int getInFlightCount() {
+		return flights.size();
+	}
+
+	/**
+	 * @return number of detections that waited for another one
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * A running detection of one key.
+	 */
+	public final class Flight {
+
+		private final DetectionKey key;
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile Peptide result;
+
+		private volatile Exception failure;
+
+		Flight(DetectionKey key) {
+			this.key = key;
+		}
+
+		/**
+		 * Hands a copy of the result to the waiting callers.
+		 * 
+		 * @param peptide
+		 *            detected peptide
+		 */
+		public void complete(Peptide peptide) {
+			if (!isDone()) {
+				result = PeptideCopier.copy(peptide);
+				finish();
+			}
+		}
+
+		/**
+		 * Hands the failure to the waiting callers. Must only be used for
+		 * failures caused by the chain of the flight. Has no effect on a
+		 * finished flight.
+		 * 
+		 * @param e
+		 *            cause of the failure
+		 */
+		public void fail(Exception e) {
+			if (!isDone()) {
+				failure = e;
+				finish();
+			}
+		}
+
+		/**
+		 * Ends the flight without result, so the waiting callers detect the
+		 * chain themselves. Has no effect on a finished flight.
+		 */
+		public void abandon() {
+			if (!isDone()) {
+				finish();
+			}
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		private void finish() {
+			flights.remove(key, this);
+			done.countDown();
+		}
+
+		private Peptide await() throws Exception {
+			done.await();
+			if (failure != null) {
+				throw new Exception("The coalesced domain detection failed: "
+						+ failure.getMessage(), failure);
+			}
+			return result == null ? null : PeptideCopier.copy(result);
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code DetectionTimings} records how long the stages of the domain detection
+ * take. Every {@link Stage} has a histogram with power of two buckets in
+ * microseconds, which can be read with {@link #getHistogram(Stage)} or
+ * written to the log with {@link #logStatistics()}.
+ * <p>
+ * Recording only updates atomic counters, so it is cheap enough to stay on in
+ * production.
+ * 
+ * @version $Id$
+ */
+public class DetectionTimings {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DetectionTimings.class);
+
+	/**
+	 * The timed stages of a detection.
+	 */
+	public enum Stage {
+		/** installing the config loaders, reloading the settings */
+		CONFIG_LOADERS,
+		/** waiting for the lock of the BLAST databases of a library */
+		LOCK_WAIT,
+		/** building the BLAST databases with makeblastdb */
+		DATABASE_BUILD,
+		/** waiting for a free BLAST workspace */
+		WORKSPACE_WAIT,
+		/** BLAST searches and hit evaluation */
+		LOAD_DATA,
+		/** creating the peptides from the hits */
+		CALCULATE_PEPTIDES,
+		/** finding the registered mutations */
+		FIND_MUTATIONS,
+		/** a whole call of processDomainAndMutationDetection */
+		DETECTION
+	}
+
+	private static DetectionTimings _instance;
+
+	private final Map<Stage, Histogram> histograms = new EnumMap<Stage, Histogram>(
+			Stage.class);
+
+	DetectionTimings() {
+		for (Stage stage : Stage.values()) {
+			histograms.put(stage, new Histogram());
+		}
+	}
+
+	public static synchronized DetectionTimings getInstance() {
+		if (_instance == null) {
+			_instance = new DetectionTimings();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Records the time elapsed since the given start.
+	 * 
+	 * @param stage
+	 *            timed stage
+	 * @param startNanos
+	 *            start as returned by {@link System#nanoTime()}
+	 */
+	public void record(Stage stage, long startNanos) {
+		histograms.get(stage).add(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param stage
+	 *            timed stage
+	 * @return histogram of the stage
+	 */
+	public Histogram getHistogram(Stage stage) {
+		return histograms.get(stage);
+	}
+
+	/**
+	 * Clears all histograms.
+	 */
+	public void reset() {
+		for (Histogram histogram : histograms.values()) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Returns count, mean, median, 99th percentile and maximum of every stage
+	 * that was recorded, one line per stage.
+	 * 
+	 * @return statistics summary
+	 */
+	public String getStatistics() {
+		StringBuilder sb = new StringBuilder("DetectionTimings:");
+		for (Stage stage : Stage.values()) {
+			Histogram histogram = histograms.get(stage);
+			if (histogram.getCount() == 0) {
+				continue;
+			}
+			sb.append(String.format(
+					"%n  %-18s count=%d, mean=%.1f ms, p50<=%.1f ms, p99<=%.1f ms, max=%.1f ms",
+					stage, histogram.getCount(),
+					toMillis(histogram.getMeanNanos()),
+					toMillis(histogram.getPercentileNanos(0.5)),
+					toMillis(histogram.getPercentileNanos(0.99)),
+					toMillis(histogram.getMaxNanos())));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes {@link #getStatistics()} to the log.
+	 */
+	public void logStatistics() {
+		LOG.info(getStatistics());
+	}
+
+	private static double toMillis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Durations of one stage. Bucket {@code i} counts durations below
+	 * {@code 2^i} microseconds, the last one everything longer.
+	 */
+	public static final class Histogram {
+
+		static final int BUCKETS = 32;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void add(long nanos) {
+			nanos = Math.max(0, nanos);
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			buckets.incrementAndGet(Math.min(BUCKETS - 1, bucket));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get())
+					&& !maxNanos.compareAndSet(max, nanos)) {
+				// another thread raised the maximum, compare again
+			}
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			count.set(0);
+			totalNanos.set(0);
+			maxNanos.set(0);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public double getMeanNanos() {
+			long n = count.get();
+			return n == 0 ? 0.0 : (double) totalNanos.get() / n;
+		}
+
+		/**
+		 * @param i
+		 *            bucket index
+		 * @return number of durations in the bucket
+		 */
+		public long getBucketCount(int i) {
+			return buckets.get(i);
+		}
+
+		/**
+		 * Returns an upper bound of the given percentile, i.e. the upper limit
+		 * of the bucket containing it, but not more than the maximum.
+		 * 
+		 * @param percentile
+		 *            percentile between 0 and 1
+		 * @return duration in nanoseconds
+		 */
+		public long getPercentileNanos(double percentile) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(percentile * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(maxNanos.get(),
+							TimeUnit.MICROSECONDS.toNanos(1L << i));
+				}
+			}
+			return maxNanos.get();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import org.roche.antibody.services.ProteaseDescription;
+import org.roche.plugin.reactions.rest.DomainLibraryCache.CachedLibrary;
+import org.roche.plugin.reactions.rest.DomainLibraryCache.LibraryType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code DetectionWarmUp} prepares the domain detection in the background
+ * when the plugin is initialized, so the first reaction does not pay for it.
+ * It compiles the protease descriptions, installs the config loaders, loads the
+ * domain and antigen libraries, builds or validates their BLAST databases and
+ * runs one detection.
+ * <p>
+ * Detections started during the warm-up wait for it with {@link #await()}
+ * for at most {@link #AWAIT_TIMEOUT} instead of doing the same work in
+ * parallel. After that, or on the event dispatch thread, they continue
+ * without the warm-up.
+ * 
+ * @version $Id$
+ */
+public class DetectionWarmUp {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DetectionWarmUp.class);
+
+	/** Whether the warm-up runs at plugin initialization. */
+	public static final String ENABLED = "detection.warm-up.enabled";
+
+	/** Milliseconds a detection waits for a running warm-up. */
+	public static final String AWAIT_TIMEOUT = "detection.warm-up.await-timeout";
+
+	public static final long DEFAULT_AWAIT_TIMEOUT = 10 * 1000L;
+
+	/** human IgG1 CH3, detected once to start BLAST and fill a workspace */
+	static final String WARM_UP_SEQUENCE = "GQPREPQVYTLPPSRDELTKNQVSLTCLVKGFYPSDIAVEWESNGQPENNYKTTPPVLDSDGSFFLYSKLTVDKSRWQQGNVFSCSVMHEALHNHYTQKSLSLSPGK";
+
+	private static DetectionWarmUp _instance;
+
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	private volatile Thread thread;
+
+	private volatile List<ProteaseDescription> proteaseDescriptions;
+
+	DetectionWarmUp() {
+	}
+
+	public static synchronized DetectionWarmUp getInstance() {
+		if (_instance == null) {
+			_instance = new DetectionWarmUp();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Starts the warm-up on a low priority background thread. Further calls
+	 * have no effect.
+	 */
+	public synchronized void start() {
+		if (thread != null
+				|| !DetectionPreferences.getBoolean(ENABLED, true)) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				warmUp();
+			}
+		}, "detection-warm-up");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Waits at most {@link #AWAIT_TIMEOUT} until a started warm-up is
+	 * finished. Returns immediately, when no warm-up was started, when called
+	 * by the warm-up itself or on the event dispatch thread.
+	 * 
+	 * @return true, if no warm-up is running anymore
+	 * @throws InterruptedException
+	 */
+	public boolean await() throws InterruptedException {
+		if (thread == null || Thread.currentThread() == thread) {
+			return true;
+		}
+		if (SwingUtilities.isEventDispatchThread()) {
+			return isFinished();
+		}
+		boolean done = finished.await(DetectionPreferences.getLong(
+				AWAIT_TIMEOUT, DEFAULT_AWAIT_TIMEOUT), TimeUnit.MILLISECONDS);
+		if (!done) {
+			LOG.info("Warm-up still running, detecting without it.");
+		}
+		return done;
+	}
+
+	/**
+	 * Returns the protease descriptions loaded by the warm-up without
+	 * waiting for them.
+	 * 
+	 * @return protease descriptions or null, if the warm-up was not started,
+	 *         has not loaded them yet or could not load them
+	 */
+	public List<ProteaseDescription> getProteaseDescriptions() {
+		return proteaseDescriptions;
+	}
+
+	public boolean isFinished() {
+		return finished.getCount() == 0;
+	}
+
+	private void warmUp() {
+		long start = System.currentTimeMillis();
+		try {
+			try {
+				proteaseDescriptions = ProteaseRegistry.getInstance()
+						.reload();
+			} catch (Exception e) {
+				LOG.warn("Warm-up could not load the protease descriptions: "
+						+ e.getMessage());
+			}
+
+			ConfigLoaderRegistry.getInstance().ensureInstalled();
+			for (LibraryType type : LibraryType.values()) {
+				CachedLibrary library = DomainLibraryCache.getInstance()
+						.getCachedLibrary(type);
+				BlastDatabaseStore.getInstance().acquireDatabaseDirectory(
+						library.getValues(), library.getChecksum());
+				BlastDatabaseStore.getInstance().releaseDatabaseDirectory(
+						library.getChecksum());
+				library.getExactMatchIndex();
+				library.getKmerIndex();
+			}
+			ConfigLoaderRegistry.getInstance().getMutationLibrary();
+
+			new DomainDetectionMutationProcessor().runDomainDetection(
+					Arrays.asList("warm-up"), Arrays.asList(WARM_UP_SEQUENCE),
+					false);
+			LOG.info("Domain detection warmed up in "
+					+ (System.currentTimeMillis() - start) + " ms.");
+		} catch (Exception e) {
+			LOG.warn("Domain detection warm-up failed, the first detection will do the remaining work.",
+					e);
+		} finally {
+			finished.countDown();
+		}
+	}
+}
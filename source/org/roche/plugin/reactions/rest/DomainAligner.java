@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.List;
+import java.util.Set;
+
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+import com.quattroresearch.blastws.BlastHit;
+
+/**
+ * 
+ * {@code DomainAligner} aligns short protein queries to the domain library
+ * in-process, where starting a BLAST process costs far more than the
+ * alignment itself. See
+ * {@link StoreBlastSearchService#setFragmentAligner(DomainAligner, List, int)}.
+ * 
+ * @version $Id$
+ */
+public interface DomainAligner {
+
+	/**
+	 * Aligns the query to the library entries of the given usages.
+	 * 
+	 * @param query
+	 *            protein sequence
+	 * @param library
+	 *            domain library
+	 * @param usages
+	 *            usages to search
+	 * @return hits with the values BLAST reports for them, best first
+	 * @throws Exception
+	 */
+	List<BlastHit> align(String query, List<DomainLibraryValues> library,
+			Set<DomainUsage> usages) throws Exception;
+}
@@ -17,27 +17,35 @@
 
 package org.roche.plugin.reactions.rest;
 
+import java.io.File;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
 
 import org.roche.antibody.model.antibody.Domain;
-import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
 import org.roche.antibody.model.antibody.Peptide;
-import org.roche.antibody.services.ConfigFileService;
-import org.roche.antibody.services.ConfigLoaderAutoconnectorConfig;
-import org.roche.antibody.services.ConfigLoaderMutationLibrary;
-import org.roche.antibody.services.ConfigLoaderSettings;
+import org.roche.antibody.services.DomainDetectionSettings;
 import org.roche.antibody.services.DomainDetectionSettingsService;
-import org.roche.antibody.services.PreferencesService;
+import org.roche.plugin.reactions.rest.BlastWorkspacePool.BlastWorkspace;
+import org.roche.plugin.reactions.rest.DetectionSingleFlight.Flight;
+import org.roche.plugin.reactions.rest.DetectionTimings.Stage;
+import org.roche.plugin.reactions.rest.DomainLibraryCache.CachedLibrary;
+import org.roche.plugin.reactions.rest.DomainLibraryCache.LibraryType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.quattroresearch.antibody.DomainDetection.E_ErrorType;
 import com.quattroresearch.antibody.DomainDetectionStandalone;
-import com.quattroresearch.antibody.FindMutations;
-import com.quattroresearch.blastws.LocalConfig;
 
 /**
  * 
@@ -58,9 +66,7 @@ public class DomainDetectionMutationProcessor {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(DomainDetectionMutationProcessor.class);
 
-	private static List<DomainLibraryValues> cachedDomainLibrary;
-
-	private static List<DomainLibraryValues> cachedAntigenLibrary;
+	private DomainAligner fragmentAligner = new SmithWatermanAligner();
 
 	public Peptide processDomainAndMutationDetection(String chainName,
 			String chainSequence) throws Exception {
@@ -86,27 +92,326 @@ public class DomainDetectionMutationProcessor {
 				null);
 	}
 
+	/**
+	 * Detects domains and mutations of the given chains. Results of chain
+	 * sequences detected before are taken from the
+	 * {@link DetectionResultCache} or, after a restart, from the
+	 * {@link PersistentDetectionCache}. Only the remaining chains are detected,
+	 * chains already being detected by a concurrent call are awaited, see
+	 * {@link DetectionSingleFlight}.
+	 * 
+	 * @param chainNames
+	 *            name of the chains
+	 * @param chainSequences
+	 *            sequences of the chains
+	 * @param connection
+	 *            connection to the configuration database used by the
+	 *            config loaders during the call, null to use the pool. With
+	 *            a connection the chains are detected one after the other on
+	 *            the calling thread.
+	 * @return one peptide per chain, in the order of the given chains
+	 * @throws Exception
+	 */
 	public List<Peptide> processDomainAndMutationDetection(
 			List<String> chainNames, List<String> chainSequences,
 			Connection connection) throws Exception {
-		DomainDetectionStandalone ddObject = runDomainDetection(chainNames,
-				chainSequences, false, connection);
+		long start = System.nanoTime();
+		Connection previous = PooledConfigDriver
+				.setCallerConnection(connection);
+		try {
+			return detectOrLookup(chainNames, chainSequences);
+		} finally {
+			PooledConfigDriver.setCallerConnection(previous);
+			DetectionTimings.getInstance().record(Stage.DETECTION, start);
+		}
+	}
+
+	private List<Peptide> detectOrLookup(List<String> chainNames,
+			List<String> chainSequences) throws Exception {
+		ConfigLoaderRegistry registry = ensureConfigLoaders();
+		CachedLibrary library = DomainLibraryCache.getInstance()
+				.getCachedLibrary(LibraryType.DOMAIN);
+		long configGeneration = registry.getGeneration();
+		String algorithm = describeAlgorithm();
+		DetectionResultCache cache = DetectionResultCache.getInstance();
 
-		List<Peptide> domainDetectionResults = ddObject
-				.calculatePeptides(false);
+		Peptide[] results = new Peptide[chainSequences.size()];
+		List<Integer> missingIndices = new ArrayList<Integer>();
+		for (int i = 0; i < chainSequences.size(); i++) {
+			results[i] = cache.get(new DetectionKey(chainSequences.get(i),
+					false, library.getVersion(), configGeneration, algorithm));
+			if (results[i] == null) {
+				missingIndices.add(i);
+			}
+		}
+
+		PersistentDetectionCache persistentCache = PersistentDetectionCache
+				.getInstance();
+		Map<Integer, String> persistentKeys = new HashMap<Integer, String>();
+		if (!missingIndices.isEmpty() && persistentCache.isEnabled()) {
+			String configFingerprint = registry.getFingerprint();
+			for (Integer index : missingIndices) {
+				persistentKeys.put(index, PersistentDetectionCache.createKey(
+						chainSequences.get(index), false,
+						library.getChecksum(), configFingerprint, algorithm));
+			}
+			Map<String, Peptide> persisted = persistentCache
+					.getAll(new ArrayList<String>(persistentKeys.values()));
+			for (Iterator<Integer> it = missingIndices.iterator(); it
+					.hasNext();) {
+				Integer index = it.next();
+				Peptide peptide = persisted.get(persistentKeys.get(index));
+				if (peptide != null) {
+					cache.put(new DetectionKey(chainSequences.get(index),
+							false, library.getVersion(), configGeneration,
+							algorithm), peptide);
+					results[index] = peptide;
+					it.remove();
+				}
+			}
+		}
+
+		// identical chains being detected right now, by this or another
+		// call, are not detected again
+		DetectionSingleFlight singleFlight = DetectionSingleFlight
+				.getInstance();
+		Map<Integer, Flight> flights = new HashMap<Integer, Flight>();
+		Map<DetectionKey, Integer> ledIndices = new HashMap<DetectionKey, Integer>();
+		List<Integer> followedIndices = new ArrayList<Integer>();
+		for (Iterator<Integer> it = missingIndices.iterator(); it.hasNext();) {
+			Integer index = it.next();
+			DetectionKey key = new DetectionKey(chainSequences.get(index),
+					false, library.getVersion(), configGeneration, algorithm);
+			Flight flight = singleFlight.lead(key);
+			if (flight != null) {
+				flights.put(index, flight);
+				ledIndices.put(key, index);
+			} else {
+				followedIndices.add(index);
+				it.remove();
+			}
+		}
 
-		// Uses primary loader set on top of the method to search mutations
-		FindMutations.find(domainDetectionResults, ConfigFileService
-				.getInstance().fetchMutationLibrary());
+		try {
+			if (!missingIndices.isEmpty()) {
+				List<String> missingNames = new ArrayList<String>();
+				List<String> missingSequences = new ArrayList<String>();
+				for (Integer index : missingIndices) {
+					missingNames.add(chainNames.get(index));
+					missingSequences.add(chainSequences.get(index));
+				}
+				List<Peptide> detected = detectDomainsAndMutations(missingNames,
+						missingSequences);
+				if (detected.size() != missingIndices.size()) {
+					throw new Exception(
+							"The domain detection has retrieved an unexpected number of peptides!");
+				}
+
+				Map<String, String> persistSequences = new HashMap<String, String>();
+				Map<String, Peptide> persistResults = new HashMap<String, Peptide>();
+				for (int i = 0; i < detected.size(); i++) {
+					int index = missingIndices.get(i);
+					cache.put(new DetectionKey(chainSequences.get(index), false,
+							library.getVersion(), configGeneration, algorithm),
+							detected.get(i));
+					String persistentKey = persistentKeys.get(index);
+					if (persistentKey != null) {
+						persistSequences.put(persistentKey, chainSequences.get(index));
+						persistResults.put(persistentKey, detected.get(i));
+					}
+					results[index] = detected.get(i);
+					flights.get(index).complete(detected.get(i));
+				}
+				persistentCache.putAll(persistSequences, persistResults);
+			}
+		} catch (Exception e) {
+			// a failure of the batch is only shared with waiting callers, if
+			// it is the one of their chain
+			if (flights.size() == 1 && !isInterruption(e)) {
+				for (Flight flight : flights.values()) {
+					flight.fail(e);
+				}
+			}
+			throw e;
+		} finally {
+			for (Flight flight : flights.values()) {
+				flight.abandon();
+			}
+		}
+
+		for (Integer index : followedIndices) {
+			DetectionKey key = new DetectionKey(chainSequences.get(index),
+					false, library.getVersion(), configGeneration, algorithm);
+			Integer ledIndex = ledIndices.get(key);
+			results[index] = ledIndex != null ? PeptideCopier
+					.copy(results[ledIndex]) : awaitOrDetect(key,
+					chainNames.get(index), chainSequences.get(index),
+					persistentKeys.get(index));
+		}
+
+		for (int i = 0; i < results.length; i++) {
+			results[i].setName(chainNames.get(i));
+		}
+		return new ArrayList<Peptide>(Arrays.asList(results));
+	}
+
+	/**
+	 * Takes the result of the flight detecting the given chain. When there is
+	 * no flight, or it was abandoned, the chain is detected as leader of a new
+	 * flight.
+	 * 
+	 * @param persistentKey
+	 *            key of the {@link PersistentDetectionCache}, null if it is
+	 *            disabled
+	 */
+	private Peptide awaitOrDetect(DetectionKey key, String chainName,
+			String chainSequence, String persistentKey) throws Exception {
+		DetectionSingleFlight singleFlight = DetectionSingleFlight
+				.getInstance();
+		DetectionResultCache cache = DetectionResultCache.getInstance();
+		while (true) {
+			Peptide peptide = singleFlight.await(key);
+			if (peptide == null) {
+				// the flight ended before it could be joined
+				peptide = cache.get(key);
+			}
+			if (peptide != null) {
+				return peptide;
+			}
+
+			Flight flight = singleFlight.lead(key);
+			if (flight == null) {
+				// another caller took over meanwhile
+				continue;
+			}
+			try {
+				peptide = detectDomainsAndMutations(Arrays.asList(chainName),
+						Arrays.asList(chainSequence)).get(0);
+				cache.put(key, peptide);
+				if (persistentKey != null) {
+					PersistentDetectionCache.getInstance().putAll(
+							Collections.singletonMap(persistentKey,
+									chainSequence),
+							Collections.singletonMap(persistentKey, peptide));
+				}
+				flight.complete(peptide);
+				return peptide;
+			} catch (Exception e) {
+				if (!isInterruption(e)) {
+					flight.fail(e);
+				}
+				throw e;
+			} finally {
+				flight.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a detection failed because its thread was interrupted,
+	 * e.g. by cancelling an asynchronous detection.
+	 */
+	private static boolean isInterruption(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof InterruptedException
+					|| cause instanceof CancellationException) {
+				return true;
+			}
+		}
+		return Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Runs {@link #processDomainAndMutationDetection(List, List)} on the
+	 * {@link DetectionExecutor}. Cancelling the returned future with
+	 * interruption stops the running BLAST search.
+	 * 
+	 * @param chainNames
+	 *            name of the chains
+	 * @param chainSequences
+	 *            sequences of the chains
+	 * @return future of one peptide per chain
+	 */
+	public Future<List<Peptide>> processDomainAndMutationDetectionAsync(
+			final List<String> chainNames, final List<String> chainSequences) {
+		return DetectionExecutor.getInstance().submit(
+				new Callable<List<Peptide>>() {
+					@Override
+					public List<Peptide> call() throws Exception {
+						return processDomainAndMutationDetection(chainNames,
+								chainSequences);
+					}
+				});
+	}
+
+	private List<Peptide> detectDomainsAndMutations(List<String> chainNames,
+			List<String> chainSequences) throws Exception {
+		ChainDetectionExecutor chainExecutor = ChainDetectionExecutor
+				.getInstance();
+		List<Peptide> domainDetectionResults;
+		// a connection of the caller is bound to its thread and must not be
+		// used by several threads at once
+		if (chainSequences.size() > 1 && chainExecutor.getThreads() > 1
+				&& !PooledConfigDriver.hasCallerConnection()) {
+			domainDetectionResults = detectChainsInParallel(chainNames,
+					chainSequences, chainExecutor);
+		} else {
+			domainDetectionResults = detectDomains(chainNames, chainSequences);
+		}
+
+		// Uses the indexed library of the installed loaders
+		long start = System.nanoTime();
+		ConfigLoaderRegistry.getInstance().getMutationLibrary()
+				.find(domainDetectionResults);
+		DetectionTimings.getInstance().record(Stage.FIND_MUTATIONS, start);
 
 		return domainDetectionResults;
 	}
 
+	private List<Peptide> detectDomains(List<String> chainNames,
+			List<String> chainSequences) throws Exception {
+		DomainDetectionStandalone ddObject = runDomainDetection(chainNames,
+				chainSequences, false, true);
+
+		long start = System.nanoTime();
+		List<Peptide> peptides = ddObject.calculatePeptides(false);
+		DetectionTimings.getInstance().record(Stage.CALCULATE_PEPTIDES, start);
+		return peptides;
+	}
+
+	/**
+	 * Detects every chain on its own on the {@link ChainDetectionExecutor}.
+	 * The chains of a construct are independent, so the result equals the
+	 * one of a single detection of all chains.
+	 */
+	private List<Peptide> detectChainsInParallel(List<String> chainNames,
+			List<String> chainSequences, ChainDetectionExecutor chainExecutor)
+			throws Exception {
+		List<Callable<List<Peptide>>> tasks = new ArrayList<Callable<List<Peptide>>>();
+		for (int i = 0; i < chainSequences.size(); i++) {
+			final List<String> chainName = Arrays.asList(chainNames.get(i));
+			final List<String> chainSequence = Arrays.asList(chainSequences
+					.get(i));
+			tasks.add(new Callable<List<Peptide>>() {
+				@Override
+				public List<Peptide> call() throws Exception {
+					return detectDomains(chainName, chainSequence);
+				}
+			});
+		}
+
+		List<Peptide> peptides = new ArrayList<Peptide>();
+		for (List<Peptide> chainPeptides : chainExecutor.invokeAll(tasks)) {
+			peptides.addAll(chainPeptides);
+		}
+		return peptides;
+	}
+
 	public DomainDetectionStandalone runDomainDetection(
 			List<String> chainNames, List<String> chainSequences,
 			boolean isAntigenDomains) throws Exception {
 		return runDomainDetection(chainNames, chainSequences, isAntigenDomains,
-				null);
+				false);
 	}
 
 	/**
@@ -119,74 +424,125 @@ public class DomainDetectionMutationProcessor {
 	 *            sequences of the antibody chains
 	 * @param isAntigenDomains
 	 *            whether only antigen domains or general domains are searched.
+	 * @param useExactMatches
+	 *            whether library domains contained verbatim in the chains are
+	 *            taken without BLAST. Only the best hits are found then.
 	 * @return {@code DomainDetectionStandalone} for result retrieval
 	 * @throws Exception
 	 */
 	private DomainDetectionStandalone runDomainDetection(
 			List<String> chainNames, List<String> chainSequences,
-			boolean isAntigenDomains, Connection connection) throws Exception {
+			boolean isAntigenDomains, boolean useExactMatches)
+			throws Exception {
 		LOG.debug("DomainDetectionMutationProcessor running domain detection....");
-    try {
-      DomainDetectionSettingsService.getInstance()
-          .setPrimaryDomainDetectionSettingsLoader(
-              new ConfigLoaderSettings());
-    } catch (Exception e) {
-      LOG.error("Loading domain detection settings failed!", e);
-      throw e;
-    }
-		ConfigFileService
-				.getInstance()
-				.setPrimaryAutoconnectorConfigLoader(
-						new ConfigLoaderAutoconnectorConfig(
-								PreferencesService
-										.getInstance()
-										.getApplicationPrefs()
-										.getString(
-												PreferencesService.CONFIG_LOADER_JDBC),
-								PreferencesService
-										.getInstance()
-										.getApplicationPrefs()
-										.getString(
-												PreferencesService.CONFIG_LOADER_URL),
-								null));
-		ConfigFileService
-				.getInstance()
-				.setPrimaryMutationLibraryLoader(
-						new ConfigLoaderMutationLibrary(
-								PreferencesService
-										.getInstance()
-										.getApplicationPrefs()
-										.getString(
-												PreferencesService.CONFIG_LOADER_JDBC),
-								PreferencesService
-										.getInstance()
-										.getApplicationPrefs()
-										.getString(
-												PreferencesService.CONFIG_LOADER_URL),
-								null));
-
-		// Ensure only one thread in parallel is creating the DB. Else, the
-		// result will be rubbish (Thread-safety!)
-		synchronized (LocalConfig.getInstance().getMakeBlastDb()) {
-
-			DomainDetectionStandalone domainDetection = new DomainDetectionStandalone(
-					chainNames, chainSequences,
-					isAntigenDomains ? cachedAntigenLibrary
-							: cachedDomainLibrary);
-
-			if (!domainDetection.makeBlastDatabases()
-					.equals(E_ErrorType.NO_ERR)) {
-				LOG.error("Unable to create BLAST database.");
-				throw new RuntimeException(
-						"Domain Detection failed because no BLAST database could be established.");
-			} else {
-				domainDetection.loadData();
-			}
+		ensureConfigLoaders();
+
+		LibraryType libraryType = isAntigenDomains ? LibraryType.ANTIGEN
+				: LibraryType.DOMAIN;
+		PrebuiltDomainDetection domainDetection = openDomainDetection(
+				chainNames, chainSequences, libraryType, useExactMatches);
+		try {
+			long start = System.nanoTime();
+			domainDetection.loadData();
+			DetectionTimings.getInstance().record(Stage.LOAD_DATA, start);
+			return domainDetection;
+		} finally {
+			closeDomainDetection(domainDetection);
+		}
+	}
+
+	/**
+	 * Creates a domain detection searching the prebuilt databases of the
+	 * given library in a workspace of the {@link BlastWorkspacePool}. The
+	 * workspace must be returned with
+	 * {@link #closeDomainDetection(PrebuiltDomainDetection)}.
+	 * 
+	 * @param chainNames
+	 *            name of the chains
+	 * @param chainSequences
+	 *            sequences of the chains
+	 * @param libraryType
+	 *            library to search
+	 * @param useExactMatches
+	 *            whether the {@link ExactMatchIndex} of the library is used
+	 * @return domain detection ready for searching
+	 * @throws Exception
+	 */
+	private PrebuiltDomainDetection openDomainDetection(
+			List<String> chainNames, List<String> chainSequences,
+			LibraryType libraryType, boolean useExactMatches) throws Exception {
+		ensureConfigLoaders();
+
+		CachedLibrary library = DomainLibraryCache.getInstance()
+				.getCachedLibrary(libraryType);
 
+		// Building the database takes the exclusive lock of the library
+		// version, searching it only the shared one.
+		File databaseDirectory;
+		try {
+			databaseDirectory = BlastDatabaseStore.getInstance()
+					.acquireDatabaseDirectory(library.getValues(),
+							library.getChecksum());
+		} catch (Exception e) {
+			LOG.error("Unable to create BLAST database.", e);
+			throw new RuntimeException(
+					"Domain Detection failed because no BLAST database could be established.");
+		}
+
+		// The workspace links or copies the databases, so the store may be
+		// rebuilt as soon as the checkout is done.
+		BlastWorkspace workspace;
+		long start = System.nanoTime();
+		try {
+			workspace = BlastWorkspacePool.getInstance().checkout(
+					databaseDirectory, library.getChecksum());
+			DetectionTimings.getInstance().record(Stage.WORKSPACE_WAIT, start);
+		} finally {
+			BlastDatabaseStore.getInstance().releaseDatabaseDirectory(
+					library.getChecksum());
+		}
+
+		try {
+			StoreBlastSearchService searchService = new StoreBlastSearchService(
+					workspace);
+			if (useExactMatches
+					&& DetectionPreferences.getBoolean(ExactMatchIndex.ENABLED,
+							true)) {
+				searchService.setExactMatchIndex(library.getExactMatchIndex());
+			}
+			if (DetectionPreferences.getBoolean(KmerIndex.ENABLED, true)) {
+				// the detection drops hits below these thresholds anyway
+				DomainDetectionSettings settings = getCurrentSettings();
+				searchService.setKmerIndex(library.getKmerIndex(),
+						settings.getSkipHitIdentityThreshold() / 100.0,
+						settings.getSkipHitCoverageThreshold() / 100.0);
+			}
+			int fragmentMaxLength = DetectionPreferences.getInt(
+					StoreBlastSearchService.FRAGMENT_MAX_LENGTH,
+					StoreBlastSearchService.DEFAULT_FRAGMENT_MAX_LENGTH);
+			if (fragmentAligner != null && fragmentMaxLength > 0) {
+				searchService.setFragmentAligner(fragmentAligner,
+						library.getValues(), fragmentMaxLength);
+			}
+			PrebuiltDomainDetection domainDetection = new PrebuiltDomainDetection(
+					chainNames, chainSequences, library.getValues(),
+					searchService);
+			// keeps NCBIBlastAPI from deleting the working directory, which
+			// holds the database store
+			domainDetection.setRunParallel(true);
 			return domainDetection;
+		} catch (Exception e) {
+			BlastWorkspacePool.getInstance().release(workspace);
+			throw e;
 		}
 	}
 
+	private void closeDomainDetection(PrebuiltDomainDetection domainDetection) {
+		StoreBlastSearchService searchService = (StoreBlastSearchService) domainDetection
+				.getSearchService();
+		BlastWorkspacePool.getInstance().release(searchService.getWorkspace());
+	}
+
 	public List<Domain> detectHitDomainsAboveThreshold(String chainName,
 			String chainSequence, boolean isAntigenDomains,
 			double aboveIdentityPerCent) throws Exception {
@@ -216,13 +572,153 @@ public class DomainDetectionMutationProcessor {
 			double aboveIdentityPerCent, Connection connection)
 			throws Exception {
 		List<Domain> hitDomains = new LinkedList<Domain>();
-		DomainDetectionStandalone ddObject = runDomainDetection(
-				Arrays.asList(new String[] { chainName }),
-				Arrays.asList(new String[] { chainSequence }),
-				isAntigenDomains, connection);
-		hitDomains = ddObject
-				.findAllHitDomainsAboveThreshold(aboveIdentityPerCent);
-		return hitDomains;
+		Connection previous = PooledConfigDriver
+				.setCallerConnection(connection);
+		try {
+			if (!mayHitAboveThreshold(chainSequence, isAntigenDomains,
+					aboveIdentityPerCent)) {
+				LOG.debug("No library domain can reach " + aboveIdentityPerCent
+						+ " identity, domain detection skipped.");
+				return hitDomains;
+			}
+			DomainDetectionStandalone ddObject = runDomainDetection(
+					Arrays.asList(new String[] { chainName }),
+					Arrays.asList(new String[] { chainSequence }),
+					isAntigenDomains, false);
+			hitDomains = ddObject
+					.findAllHitDomainsAboveThreshold(aboveIdentityPerCent);
+			return hitDomains;
+		} finally {
+			PooledConfigDriver.setCallerConnection(previous);
+		}
+	}
+
+	/**
+	 * Checks with the {@link KmerIndex} of the library, whether any domain
+	 * can be found in the chain with the given identity. Hits with negative
+	 * identity, i.e. the generic domains, are found without BLAST, so nothing
+	 * can be excluded for thresholds not above 0.
+	 * 
+	 * @param chainSequence
+	 *            sequence of the chain
+	 * @param isAntigenDomains
+	 *            whether the antigen library is searched
+	 * @param identityThreshold
+	 *            minimal identity of the wanted hits
+	 * @return false, if the detection cannot find any hit above the threshold
+	 * @throws Exception
+	 */
+	private boolean mayHitAboveThreshold(String chainSequence,
+			boolean isAntigenDomains, double identityThreshold)
+			throws Exception {
+		if (identityThreshold <= 0
+				|| !DetectionPreferences.getBoolean(KmerIndex.ENABLED, true)) {
+			return true;
+		}
+		ensureConfigLoaders();
+		CachedLibrary library = DomainLibraryCache.getInstance()
+				.getCachedLibrary(
+						isAntigenDomains ? LibraryType.ANTIGEN
+								: LibraryType.DOMAIN);
+		DomainDetectionSettings settings = getCurrentSettings();
+		return library.getKmerIndex().hasCandidates(
+				chainSequence.toUpperCase(),
+				EnumSet.allOf(DomainUsage.class),
+				Math.max(identityThreshold,
+						settings.getSkipHitIdentityThreshold() / 100.0),
+				settings.getSkipHitCoverageThreshold() / 100.0);
+	}
+
+	/**
+	 * Sets the aligner used instead of BLAST for queries up to
+	 * {@link StoreBlastSearchService#FRAGMENT_MAX_LENGTH} residues. The
+	 * default is the {@link SmithWatermanAligner}.
+	 * 
+	 * @param fragmentAligner
+	 *            in-process aligner, null to always use BLAST
+	 */
+	public void setFragmentAligner(DomainAligner fragmentAligner) {
+		this.fragmentAligner = fragmentAligner;
+	}
+
+	public DomainAligner getFragmentAligner() {
+		return fragmentAligner;
+	}
+
+	/**
+	 * Describes the settings of this processor and the preferences changing
+	 * the detection results, so results of different settings are cached
+	 * apart.
+	 */
+	private String describeAlgorithm() {
+		int fragmentMaxLength = DetectionPreferences.getInt(
+				StoreBlastSearchService.FRAGMENT_MAX_LENGTH,
+				StoreBlastSearchService.DEFAULT_FRAGMENT_MAX_LENGTH);
+		return "fragment-aligner="
+				+ (fragmentAligner == null || fragmentMaxLength <= 0 ? "none"
+						: fragmentAligner.getClass().getName() + "/"
+								+ fragmentMaxLength)
+				+ ";exact-match="
+				+ DetectionPreferences.getBoolean(ExactMatchIndex.ENABLED,
+						true)
+				+ "/"
+				+ DetectionPreferences.getInt(ExactMatchIndex.MIN_LENGTH,
+						ExactMatchIndex.DEFAULT_MIN_LENGTH)
+				+ "/"
+				+ DetectionPreferences.getInt(ExactMatchIndex.MAX_TRIM,
+						ExactMatchIndex.DEFAULT_MAX_TRIM)
+				+ ";kmer-index="
+				+ DetectionPreferences.getBoolean(KmerIndex.ENABLED, true)
+				+ "/"
+				+ DetectionPreferences.getInt(KmerIndex.K,
+						KmerIndex.DEFAULT_K);
+	}
+
+	/**
+	 * Makes sure the config loaders are installed and records the time it
+	 * takes, including waiting for a running {@link DetectionWarmUp}.
+	 */
+	private static ConfigLoaderRegistry ensureConfigLoaders() throws Exception {
+		long start = System.nanoTime();
+		DetectionWarmUp.getInstance().await();
+		ConfigLoaderRegistry registry = ConfigLoaderRegistry.getInstance();
+		registry.ensureInstalled();
+		DetectionTimings.getInstance().record(Stage.CONFIG_LOADERS, start);
+		return registry;
+	}
+
+	private static DomainDetectionSettings getCurrentSettings() {
+		return DomainDetectionSettingsService.getInstance()
+				.getCurrentSettings();
+	}
+
+	/**
+	 * Runs
+	 * {@link #detectHitDomainsAboveThreshold(String, String, boolean, double)}
+	 * on the {@link DetectionExecutor}.
+	 * 
+	 * @param chainName
+	 *            the name of the chain
+	 * @param chainSequence
+	 *            the sequence of the chain
+	 * @param isAntigenDomains
+	 *            true, if antigen domains should be detected
+	 * @param aboveIdentityPerCent
+	 *            the threshold, where the domains should lie above
+	 * @return future of the hit domains
+	 */
+	public Future<List<Domain>> detectHitDomainsAboveThresholdAsync(
+			final String chainName, final String chainSequence,
+			final boolean isAntigenDomains, final double aboveIdentityPerCent) {
+		return DetectionExecutor.getInstance().submit(
+				new Callable<List<Domain>>() {
+					@Override
+					public List<Domain> call() throws Exception {
+						return detectHitDomainsAboveThreshold(chainName,
+								chainSequence, isAntigenDomains,
+								aboveIdentityPerCent);
+					}
+				});
 	}
 
 	/**
@@ -237,15 +733,85 @@ public class DomainDetectionMutationProcessor {
 	 */
 	public void annotateDomain(Domain domain, String peptideSequence)
 			throws Exception {
+		annotateDomains(Arrays.asList(domain), peptideSequence);
+	}
+
+	/**
+	 * Re-Annotates all given domains of one peptide with a single BLAST search
+	 * per library.
+	 * 
+	 * @param domains
+	 *            domains to annotate
+	 * @param peptideSequence
+	 *            sequence of the peptide the domains belong to
+	 * @throws Exception
+	 */
+	public void annotateDomains(List<Domain> domains, String peptideSequence)
+			throws Exception {
+		annotateDomains(domains,
+				Collections.nCopies(domains.size(), peptideSequence));
+	}
+
+	/**
+	 * Re-Annotates all given domains with a single BLAST search per library.
+	 * The domains may belong to different peptides.
+	 * 
+	 * @param domains
+	 *            domains to annotate
+	 * @param peptideSequences
+	 *            for every domain the sequence of its peptide
+	 * @throws Exception
+	 */
+	public void annotateDomains(List<Domain> domains,
+			List<String> peptideSequences) throws Exception {
+		if (domains.size() != peptideSequences.size()) {
+			throw new IllegalArgumentException(
+					"One peptide sequence per domain is required.");
+		}
+		if (domains.isEmpty()) {
+			return;
+		}
+
+		List<String> chainSequences = new ArrayList<>(domains.size());
+		List<String> chainNames = new ArrayList<>(domains.size());
+		for (Domain domain : domains) {
+			chainSequences.add(domain.getSequence());
+			chainNames.add(domain.getName());
+		}
 
-		List<String> chainSequences = new LinkedList<>();
-		List<String> chainNames = new LinkedList<>();
-		chainSequences.add(domain.getSequence());
-		chainNames.add(domain.getName());
-		DomainDetectionStandalone domainDetection = runDomainDetection(
-				chainNames, chainSequences, false);
-		domainDetection.annotateDomain(domain, peptideSequence);
+		PrebuiltDomainDetection domainDetection = openDomainDetection(
+				chainNames, chainSequences, LibraryType.DOMAIN, true);
+		try {
+			domainDetection.setReuseBlastResults(true);
+			for (int i = 0; i < domains.size(); i++) {
+				domainDetection.annotateDomain(i, peptideSequences.get(i),
+						domains.get(i));
+			}
+		} finally {
+			closeDomainDetection(domainDetection);
+		}
+	}
 
+	/**
+	 * Runs {@link #annotateDomains(List, List)} on the
+	 * {@link DetectionExecutor}. The domains are modified when the returned
+	 * future completes.
+	 * 
+	 * @param domains
+	 *            domains to annotate
+	 * @param peptideSequences
+	 *            for every domain the sequence of its peptide
+	 * @return future completing after the annotation
+	 */
+	public Future<Void> annotateDomainsAsync(final List<Domain> domains,
+			final List<String> peptideSequences) {
+		return DetectionExecutor.getInstance().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				annotateDomains(domains, peptideSequences);
+				return null;
+			}
+		});
 	}
 
 }
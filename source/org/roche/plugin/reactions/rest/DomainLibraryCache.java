@@ -0,0 +1,398 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.services.ConfigFileService;
+import org.roche.antibody.services.PreferencesService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code DomainLibraryCache} keeps the domain and antigen libraries in memory,
+ * so that a detection does not fetch the complete library from its loader
+ * again.
+ * <p>
+ * A cached library is dropped when the configured library source changes, on
+ * an explicit {@link #invalidate()} or when the periodic revalidation finds a
+ * different checksum. The version of a library is only increased when its
+ * content really changed, so dependent caches can use it as part of their key.
+ * 
+ * @version $Id$
+ */
+public class DomainLibraryCache {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DomainLibraryCache.class);
+
+	/**
+	 * The libraries used by the domain detection.
+	 */
+	public enum LibraryType {
+		DOMAIN, ANTIGEN
+	}
+
+	private static DomainLibraryCache _instance;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Map<LibraryType, CachedLibrary> libraries = new ConcurrentHashMap<LibraryType, CachedLibrary>();
+
+	private final Map<LibraryType, CachedLibrary> lastLoaded = new ConcurrentHashMap<LibraryType, CachedLibrary>();
+
+	private final Object loadLock = new Object();
+
+	private final AtomicLong versionCounter = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong reloads = new AtomicLong();
+
+	private final AtomicLong changes = new AtomicLong();
+
+	private DomainLibraryCache() {
+	}
+
+	public static synchronized DomainLibraryCache getInstance() {
+		if (_instance == null) {
+			_instance = new DomainLibraryCache();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Returns the cached library of given type. The library is loaded when it
+	 * is not cached yet, its source changed or its revalidation interval
+	 * elapsed.
+	 * 
+	 * @param type
+	 *            library type
+	 * @return unmodifiable library
+	 * @throws Exception
+	 *             when the library could not be loaded
+	 */
+	public List<DomainLibraryValues> getLibrary(LibraryType type)
+			throws Exception {
+		return getCachedLibrary(type).getValues();
+	}
+
+	/**
+	 * Returns the version of the given library, loading it if necessary.
+	 * 
+	 * @param type
+	 *            library type
+	 * @return library version
+	 * @throws Exception
+	 *             when the library could not be loaded
+	 */
+	public long getVersion(LibraryType type) throws Exception {
+		return getCachedLibrary(type).getVersion();
+	}
+
+	/**
+	 * Returns the checksum of the given library, loading it if necessary.
+	 * 
+	 * @param type
+	 *            library type
+	 * @return hex encoded checksum of the library content
+	 * @throws Exception
+	 *             when the library could not be loaded
+	 */
+	public String getChecksum(LibraryType type) throws Exception {
+		return getCachedLibrary(type).getChecksum();
+	}
+
+	/**
+	 * Returns the cache entry of the given library, loading it if necessary.
+	 * 
+	 * @param type
+	 *            library type
+	 * @return cache entry
+	 * @throws Exception
+	 *             when the library could not be loaded
+	 */
+	public CachedLibrary getCachedLibrary(LibraryType type) throws Exception {
+		String sourceKey = getSourceKey();
+		CachedLibrary cached = libraries.get(type);
+		if (isValid(cached, sourceKey)) {
+			hits.incrementAndGet();
+			return cached;
+		}
+
+		synchronized (loadLock) {
+			cached = libraries.get(type);
+			if (isValid(cached, sourceKey)) {
+				hits.incrementAndGet();
+				return cached;
+			}
+			misses.incrementAndGet();
+			cached = load(type, sourceKey);
+			libraries.put(type, cached);
+			return cached;
+		}
+	}
+
+	/**
+	 * Drops all cached libraries. The next access loads them again.
+	 */
+	public void invalidate() {
+		libraries.clear();
+		LOG.debug("Domain library cache invalidated.");
+	}
+
+	/**
+	 * Drops the cached library of given type.
+	 * 
+	 * @param type
+	 *            library type
+	 */
+	public void invalidate(LibraryType type) {
+		libraries.remove(type);
+		LOG.debug("Domain library cache invalidated for " + type);
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getReloadCount() {
+		return reloads.get();
+	}
+
+	public long getChangeCount() {
+		return changes.get();
+	}
+
+	/**
+	 * Returns a short summary of the cache statistics for logging.
+	 * 
+	 * @return statistics summary
+	 */
+	public String getStatistics() {
+		return String.format(
+				"DomainLibraryCache: hits=%d, misses=%d, reloads=%d, changes=%d",
+				getHitCount(), getMissCount(), getReloadCount(),
+				getChangeCount());
+	}
+
+	private boolean isValid(CachedLibrary cached, String sourceKey) {
+		if (cached == null || !cached.getSourceKey().equals(sourceKey)) {
+			return false;
+		}
+		long interval = DetectionPreferences.getLong(
+				DetectionPreferences.LIBRARY_CACHE_REVALIDATE_INTERVAL,
+				DetectionPreferences.DEFAULT_LIBRARY_CACHE_REVALIDATE_INTERVAL);
+		return interval <= 0
+				|| System.currentTimeMillis() - cached.getLoadedAt() < interval;
+	}
+
+	private CachedLibrary load(LibraryType type, String sourceKey)
+			throws Exception {
+		reloads.incrementAndGet();
+		List<DomainLibraryValues> values = fetchLibrary(type);
+		String checksum = computeChecksum(values);
+
+		long version;
+		CachedLibrary previous = lastLoaded.get(type);
+		if (previous != null && previous.getChecksum().equals(checksum)) {
+			version = previous.getVersion();
+		} else {
+			version = versionCounter.incrementAndGet();
+			changes.incrementAndGet();
+			LOG.info(type + " library loaded with " + values.size()
+					+ " entries (version " + version + ").");
+		}
+		CachedLibrary loaded = new CachedLibrary(
+				Collections.unmodifiableList(values), checksum, version,
+				sourceKey, System.currentTimeMillis());
+		lastLoaded.put(type, loaded);
+		return loaded;
+	}
+
+	/**
+	 * Fetches the library of given type from the primary loader. Antigen
+	 * detection currently searches the full library, the usage filtering is
+	 * done by the domain detection itself.
+	 * 
+	 * @param type
+	 *            library type
+	 * @return fetched library
+	 * @throws Exception
+	 */
+	private List<DomainLibraryValues> fetchLibrary(LibraryType type)
+			throws Exception {
+		List<DomainLibraryValues> values = ConfigFileService.getInstance()
+				.fetchDomainLibrary();
+		if (values == null) {
+			throw new Exception("No " + type.toString().toLowerCase()
+					+ " library could be loaded.");
+		}
+		return new ArrayList<DomainLibraryValues>(values);
+	}
+
+	/**
+	 * Builds a key describing where the libraries are loaded from. When it
+	 * changes, all cached libraries are outdated.
+	 * 
+	 * @return source key
+	 */
+	private String getSourceKey() {
+		StringBuilder key = new StringBuilder();
+		try {
+			PreferencesService prefs = PreferencesService.getInstance();
+			key.append(prefs.getApplicationPrefs().getString(
+					PreferencesService.CONFIG_LOADER_JDBC));
+			key.append('|');
+			key.append(prefs.getApplicationPrefs().getString(
+					PreferencesService.CONFIG_LOADER_URL));
+			key.append('|');
+			key.append(prefs.getUserPrefs().get(
+					PreferencesService.USER_DOMAIN_LIB_TABLE, null));
+			key.append('|');
+			key.append(prefs.getUserPrefs().get(
+					PreferencesService.USE_MASTER_DOMAIN_LIB, null));
+		} catch (Exception e) {
+			LOG.warn("Could not read library source preferences: "
+					+ e.getMessage());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Computes a SHA-1 checksum over all values of the given library that are
+	 * relevant for domain detection.
+	 * 
+	 * @param library
+	 *            domain library
+	 * @return hex encoded checksum
+	 */
+	public static String computeChecksum(List<DomainLibraryValues> library) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		for (DomainLibraryValues values : library) {
+			update(digest, values.getName());
+			update(digest, values.getShortName());
+			update(digest, values.getSequence());
+			update(digest, values.getCysBonds());
+			update(digest, values.getSpecies());
+			update(digest, values.getHumanessType());
+			update(digest, values.getChainType());
+			update(digest, values.getDomainType());
+			update(digest, values.getDomainUsage());
+			update(digest, values.getComment());
+			update(digest, values.getPriority());
+			update(digest, values.getAllowedFreeCys());
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest digest, Object value) {
+		digest.update(String.valueOf(value).getBytes(UTF8));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * An immutable, loaded library together with its checksum and version.
+	 * Search indexes of the library are created on first use.
+	 */
+	public static final class CachedLibrary {
+
+		private final List<DomainLibraryValues> values;
+
+		private final String checksum;
+
+		private final long version;
+
+		private final String sourceKey;
+
+		private final long loadedAt;
+
+		private ExactMatchIndex exactMatchIndex;
+
+		private KmerIndex kmerIndex;
+
+		CachedLibrary(List<DomainLibraryValues> values, String checksum,
+				long version, String sourceKey, long loadedAt) {
+			this.values = values;
+			this.checksum = checksum;
+			this.version = version;
+			this.sourceKey = sourceKey;
+			this.loadedAt = loadedAt;
+		}
+
+		public List<DomainLibraryValues> getValues() {
+			return values;
+		}
+
+		public String getChecksum() {
+			return checksum;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		String getSourceKey() {
+			return sourceKey;
+		}
+
+		long getLoadedAt() {
+			return loadedAt;
+		}
+
+		public synchronized ExactMatchIndex getExactMatchIndex() {
+			if (exactMatchIndex == null) {
+				exactMatchIndex = ExactMatchIndex.create(values);
+			}
+			return exactMatchIndex;
+		}
+
+		public synchronized KmerIndex getKmerIndex() {
+			if (kmerIndex == null) {
+				kmerIndex = KmerIndex.create(values);
+			}
+			return kmerIndex;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+import com.quattroresearch.blastws.BlastHit;
+
+/**
+ * 
+ * {@code ExactMatchIndex} finds library domains contained verbatim in a chain
+ * sequence without running BLAST. Besides the full library sequences it
+ * indexes their variants with up to {@link #MAX_TRIM} residues removed at
+ * either end, so e.g. a heavy chain without its C-terminal lysine still
+ * matches.
+ * <p>
+ * Every indexed sequence is stored under its first {@link #ANCHOR_LENGTH}
+ * residues. A chain is scanned once, looking up the anchor at every position.
+ * Found matches are returned as {@link BlastHit}s equivalent to what BLAST
+ * reports for an identical alignment.
+ * 
+ * @version $Id$
+ */
+public class ExactMatchIndex {
+
+	/** Whether exact matches are used instead of BLAST. */
+	public static final String ENABLED = "detection.exact-match.enabled";
+
+	/**
+	 * Minimal length of indexed sequences. Shorter library entries, e.g. tags,
+	 * match too often by chance and are left to BLAST.
+	 */
+	public static final String MIN_LENGTH = "detection.exact-match.min-length";
+
+	/** Maximal number of residues trimmed at either end of an entry. */
+	public static final String MAX_TRIM = "detection.exact-match.max-trim";
+
+	public static final int DEFAULT_MIN_LENGTH = 20;
+
+	public static final int DEFAULT_MAX_TRIM = 2;
+
+	static final int ANCHOR_LENGTH = 8;
+
+	private static final Pattern INTERNAL_BOND = Pattern
+			.compile("([0-9]+)-([0-9]+)");
+
+	private final Map<DomainUsage, Map<String, List<Entry>>> entries = new HashMap<DomainUsage, Map<String, List<Entry>>>();
+
+	/**
+	 * @param library
+	 *            domain library
+	 * @param minLength
+	 *            minimal length of indexed sequences
+	 * @param maxTrim
+	 *            maximal number of residues trimmed at either end
+	 */
+	public ExactMatchIndex(List<DomainLibraryValues> library, int minLength,
+			int maxTrim) {
+		minLength = Math.max(ANCHOR_LENGTH, minLength);
+		for (DomainLibraryValues values : library) {
+			String sequence = values.getSequence();
+			if (sequence == null || values.getDomainUsage() == null) {
+				continue;
+			}
+			int length = sequence.length();
+			for (int left = 0; left <= maxTrim; left++) {
+				for (int right = 0; right <= maxTrim; right++) {
+					if (left > 0 && right > 0) {
+						// a fragment trimmed at both ends is better judged
+						// by BLAST
+						continue;
+					}
+					if (length - left - right >= minLength) {
+						add(values, left + 1, length - right);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the index with the configured lengths.
+	 * 
+	 * @param library
+	 *            domain library
+	 * @return index of the library
+	 */
+	public static ExactMatchIndex create(List<DomainLibraryValues> library) {
+		return new ExactMatchIndex(library, DetectionPreferences.getInt(
+				MIN_LENGTH, DEFAULT_MIN_LENGTH), DetectionPreferences.getInt(
+				MAX_TRIM, DEFAULT_MAX_TRIM));
+	}
+
+	private void add(DomainLibraryValues values, int templateBegin,
+			int templateEnd) {
+		Map<String, List<Entry>> byAnchor = entries.get(values
+				.getDomainUsage());
+		if (byAnchor == null) {
+			byAnchor = new HashMap<String, List<Entry>>();
+			entries.put(values.getDomainUsage(), byAnchor);
+		}
+		Entry entry = new Entry(values, templateBegin, templateEnd);
+		String anchor = entry.sequence.substring(0, ANCHOR_LENGTH);
+		List<Entry> list = byAnchor.get(anchor);
+		if (list == null) {
+			list = new ArrayList<Entry>(1);
+			byAnchor.put(anchor, list);
+		}
+		list.add(entry);
+	}
+
+	/**
+	 * Finds all library entries of the given usages that are contained in the
+	 * query. For every library entry and query region only the longest match
+	 * is returned.
+	 * 
+	 * @param query
+	 *            chain sequence
+	 * @param usages
+	 *            usages to search
+	 * @return hits ordered by their begin
+	 */
+	public List<BlastHit> findHits(String query, Set<DomainUsage> usages) {
+		List<Match> matches = new ArrayList<Match>();
+		for (int pos = 0; pos + ANCHOR_LENGTH <= query.length(); pos++) {
+			String anchor = query.substring(pos, pos + ANCHOR_LENGTH);
+			for (DomainUsage usage : usages) {
+				Map<String, List<Entry>> byAnchor = entries.get(usage);
+				List<Entry> candidates = byAnchor == null ? null : byAnchor
+						.get(anchor);
+				if (candidates == null) {
+					continue;
+				}
+				for (Entry entry : candidates) {
+					if (query.startsWith(entry.sequence, pos)) {
+						matches.add(new Match(entry, pos));
+					}
+				}
+			}
+		}
+
+		// longest first, so trimmed variants of a full match are dropped
+		Collections.sort(matches, new Comparator<Match>() {
+			@Override
+			public int compare(Match m1, Match m2) {
+				return m2.entry.sequence.length()
+						- m1.entry.sequence.length();
+			}
+		});
+		List<Match> accepted = new ArrayList<Match>();
+		for (Match match : matches) {
+			boolean contained = false;
+			for (Match other : accepted) {
+				if (other.entry.values == match.entry.values
+						&& other.overlaps(match)) {
+					contained = true;
+					break;
+				}
+			}
+			if (!contained) {
+				accepted.add(match);
+			}
+		}
+
+		Collections.sort(accepted, new Comparator<Match>() {
+			@Override
+			public int compare(Match m1, Match m2) {
+				return m1.begin - m2.begin;
+			}
+		});
+		List<BlastHit> hits = new ArrayList<BlastHit>(accepted.size());
+		for (Match match : accepted) {
+			hits.add(match.toBlastHit());
+		}
+		return hits;
+	}
+
+	/**
+	 * Returns the usages searched in the BLAST database with the given
+	 * suffix, see {@link BlastDatabaseStore}.
+	 * 
+	 * @param dbSuffix
+	 *            database suffix as passed to the search service
+	 * @return usages of the database
+	 */
+	public static Set<DomainUsage> getUsages(String dbSuffix) {
+		if (dbSuffix == null) {
+			return EnumSet.allOf(DomainUsage.class);
+		}
+		if (dbSuffix.endsWith("CORE")) {
+			return EnumSet.of(DomainUsage.CORE);
+		}
+		return EnumSet.of(DomainUsage.GENERAL, DomainUsage.ANTIGEN);
+	}
+
+	/**
+	 * Returns the internal bonds of a library entry as BLAST reports them,
+	 * i.e. the template positions of the bonded cysteins pairwise.
+	 * 
+	 * @param values
+	 *            library entry
+	 * @return positions of the bonded cysteins
+	 */
+	static List<Integer> getInternalBonds(DomainLibraryValues values) {
+		List<Integer> internalBonds = new LinkedList<Integer>();
+		if (values.getCysteinPatterns() != null) {
+			for (String pattern : values.getCysteinPatterns()) {
+				Matcher matcher = INTERNAL_BOND.matcher(pattern.trim());
+				if (matcher.matches()) {
+					internalBonds.add(Integer.valueOf(matcher.group(1)));
+					internalBonds.add(Integer.valueOf(matcher.group(2)));
+				}
+			}
+		}
+		return internalBonds;
+	}
+
+	/**
+	 * An indexed library sequence or trimmed variant of it.
+	 */
+	private static final class Entry {
+
+		private final DomainLibraryValues values;
+
+		private final String sequence;
+
+		private final int templateBegin;
+
+		private final int templateEnd;
+
+		Entry(DomainLibraryValues values, int templateBegin, int templateEnd) {
+			this.values = values;
+			this.sequence = values.getSequence().substring(templateBegin - 1,
+					templateEnd);
+			this.templateBegin = templateBegin;
+			this.templateEnd = templateEnd;
+		}
+	}
+
+	/**
+	 * An entry found at a position of the query.
+	 */
+	private static final class Match {
+
+		private final Entry entry;
+
+		/** 0-based begin in the query */
+		private final int begin;
+
+		Match(Entry entry, int begin) {
+			this.entry = entry;
+			this.begin = begin;
+		}
+
+		int end() {
+			return begin + entry.sequence.length();
+		}
+
+		boolean overlaps(Match other) {
+			return begin < other.end() && other.begin < end();
+		}
+
+		/**
+		 * Creates the hit BLAST reports for an identical alignment, including
+		 * the conserved cysteins and the internal bonds of the library entry.
+		 */
+		BlastHit toBlastHit() {
+			String sequence = entry.sequence;
+			BlastHit hit = new BlastHit((long) begin + 1, (long) end(),
+					entry.values.getShortName());
+			hit.setLength(entry.values.getSequence().length());
+			hit.setIdentity(1.0);
+			hit.setEValue(0.0);
+			// approximation of the bit score of an identical alignment
+			hit.setScore(2.0 * sequence.length());
+			hit.setTemplateBegin(entry.templateBegin);
+			hit.setTemplateEnd(entry.templateEnd);
+			hit.setAlignmentLineSequence(sequence);
+			hit.setAlignmentLineTemplate(sequence);
+			hit.setOriginalBlastAlignment("Exact match: " + sequence);
+
+			List<Integer> cysteins = new ArrayList<Integer>();
+			for (int i = sequence.indexOf('C'); i >= 0; i = sequence.indexOf(
+					'C', i + 1)) {
+				cysteins.add(i + 1);
+			}
+			Integer[][] conservedCysteins = new Integer[cysteins.size()][2];
+			for (int i = 0; i < cysteins.size(); i++) {
+				conservedCysteins[i][0] = cysteins.get(i) + begin;
+				conservedCysteins[i][1] = cysteins.get(i);
+			}
+			hit.setConservedCysteins(conservedCysteins);
+			hit.setInternalBonds(getInternalBonds(entry.values));
+			return hit;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+/**
+ * 
+ * {@code KmerIndex} is an inverted index from the k-mers of the library
+ * sequences to the library entries containing them. It tells which entries
+ * can possibly be hit by BLAST with a given minimal identity and coverage.
+ * <p>
+ * An alignment with few differences keeps most k-mers of the aligned template
+ * intact. If a query shares fewer k-mers with an entry than such an alignment
+ * would keep, the entry cannot be found above the thresholds and need not be
+ * searched. Entries too short for this bound are always candidates.
+ * <p>
+ * Every k-mer is encoded as an int with five bits per residue, its posting
+ * list is an ascending array of entry numbers.
+ * 
+ * @version $Id$
+ */
+public class KmerIndex {
+
+	/** Whether searches without candidates skip BLAST. */
+	public static final String ENABLED = "detection.kmer-index.enabled";
+
+	/** Length of the indexed k-mers, between 2 and 4. */
+	public static final String K = "detection.kmer-index.k";
+
+	public static final int DEFAULT_K = 3;
+
+	private static final int BITS_PER_RESIDUE = 5;
+
+	private static final int[] NO_ENTRIES = new int[0];
+
+	private final int k;
+
+	private final DomainLibraryValues[] entries;
+
+	private final int[] lengths;
+
+	private final int[][] postings;
+
+	/**
+	 * @param library
+	 *            domain library
+	 * @param k
+	 *            length of the indexed k-mers
+	 */
+	public KmerIndex(List<DomainLibraryValues> library, int k) {
+		this.k = Math.max(2, Math.min(4, k));
+		this.postings = new int[1 << (BITS_PER_RESIDUE * this.k)][];
+
+		int count = 0;
+		DomainLibraryValues[] indexed = new DomainLibraryValues[library.size()];
+		for (DomainLibraryValues values : library) {
+			if (values.getSequence() != null && values.getDomainUsage() != null) {
+				indexed[count++] = values;
+			}
+		}
+		this.entries = Arrays.copyOf(indexed, count);
+		this.lengths = new int[count];
+
+		// first pass counts the postings of every k-mer, the second fills them
+		int[][] entryKmers = new int[count][];
+		int[] postingCounts = new int[postings.length];
+		for (int entry = 0; entry < count; entry++) {
+			String sequence = entries[entry].getSequence();
+			lengths[entry] = sequence.length();
+			entryKmers[entry] = distinctKmers(sequence);
+			for (int kmer : entryKmers[entry]) {
+				postingCounts[kmer]++;
+			}
+		}
+		for (int kmer = 0; kmer < postings.length; kmer++) {
+			postings[kmer] = postingCounts[kmer] == 0 ? NO_ENTRIES
+					: new int[postingCounts[kmer]];
+			postingCounts[kmer] = 0;
+		}
+		for (int entry = 0; entry < count; entry++) {
+			for (int kmer : entryKmers[entry]) {
+				postings[kmer][postingCounts[kmer]++] = entry;
+			}
+		}
+	}
+
+	/**
+	 * Creates the index with the configured k-mer length.
+	 * 
+	 * @param library
+	 *            domain library
+	 * @return index of the library
+	 */
+	public static KmerIndex create(List<DomainLibraryValues> library) {
+		return new KmerIndex(library, DetectionPreferences.getInt(K,
+				DEFAULT_K));
+	}
+
+	/**
+	 * Returns the entries of the given usages BLAST may find in the query with
+	 * at least the given identity and coverage.
+	 * 
+	 * @param query
+	 *            chain sequence
+	 * @param usages
+	 *            usages to search
+	 * @param minIdentity
+	 *            minimal identity of a hit, between 0 and 1
+	 * @param minCoverage
+	 *            minimal coverage of a hit, between 0 and 1
+	 * @return ascending entry numbers, see {@link #getEntry(int)}
+	 */
+	public int[] findCandidates(String query, Set<DomainUsage> usages,
+			double minIdentity, double minCoverage) {
+		int[] shared = countSharedKmers(query);
+		int[] candidates = new int[entries.length];
+		int count = 0;
+		for (int entry = 0; entry < entries.length; entry++) {
+			if (usages.contains(entries[entry].getDomainUsage())
+					&& shared[entry] >= minimumSharedKmers(lengths[entry], k,
+							minIdentity, minCoverage)) {
+				candidates[count++] = entry;
+			}
+		}
+		return Arrays.copyOf(candidates, count);
+	}
+
+	/**
+	 * @param query
+	 *            chain sequence
+	 * @param usages
+	 *            usages to search
+	 * @param minIdentity
+	 *            minimal identity of a hit, between 0 and 1
+	 * @param minCoverage
+	 *            minimal coverage of a hit, between 0 and 1
+	 * @return true, if BLAST may find any entry of the usages in the query
+	 */
+	public boolean hasCandidates(String query, Set<DomainUsage> usages,
+			double minIdentity, double minCoverage) {
+		return findCandidates(query, usages, minIdentity, minCoverage).length > 0;
+	}
+
+	/**
+	 * @param entry
+	 *            entry number returned by
+	 *            {@link #findCandidates(String, Set, double, double)}
+	 * @return library values of the entry
+	 */
+	public DomainLibraryValues getEntry(int entry) {
+		return entries[entry];
+	}
+
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Counts for every entry the query positions starting a k-mer the entry
+	 * contains. This is never less than the number of k-mers an alignment of
+	 * the query to the entry keeps.
+	 */
+	private int[] countSharedKmers(String query) {
+		int[] shared = new int[entries.length];
+		int mask = postings.length - 1;
+		int kmer = 0;
+		int valid = 0;
+		for (int i = 0; i < query.length(); i++) {
+			int code = encode(query.charAt(i));
+			if (code == 0) {
+				valid = 0;
+				continue;
+			}
+			kmer = ((kmer << BITS_PER_RESIDUE) | code) & mask;
+			if (++valid >= k) {
+				for (int entry : postings[kmer]) {
+					shared[entry]++;
+				}
+			}
+		}
+		return shared;
+	}
+
+	private int[] distinctKmers(String sequence) {
+		int[] kmers = new int[Math.max(0, sequence.length() - k + 1)];
+		int count = 0;
+		int mask = postings.length - 1;
+		int kmer = 0;
+		int valid = 0;
+		for (int i = 0; i < sequence.length(); i++) {
+			int code = encode(sequence.charAt(i));
+			if (code == 0) {
+				valid = 0;
+				continue;
+			}
+			kmer = ((kmer << BITS_PER_RESIDUE) | code) & mask;
+			if (++valid >= k) {
+				kmers[count++] = kmer;
+			}
+		}
+		Arrays.sort(kmers, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || kmers[distinct - 1] != kmers[i]) {
+				kmers[distinct++] = kmers[i];
+			}
+		}
+		return Arrays.copyOf(kmers, distinct);
+	}
+
+	/**
+	 * @return 1 to 26 for letters, 0 for anything else
+	 */
+	private static int encode(char residue) {
+		char upper = Character.toUpperCase(residue);
+		return upper >= 'A' && upper <= 'Z' ? upper - 'A' + 1 : 0;
+	}
+
+	/**
+	 * Returns how many k-mers of an entry any hit with the given identity and
+	 * coverage keeps at least.
+	 * <p>
+	 * A hit covers a template span of at least {@code minCoverage * length}
+	 * residues. As identity is measured over all alignment columns, a span
+	 * {@code s} has at most {@code (1 - minIdentity) / minIdentity * s}
+	 * differing columns, each destroying at most k of the {@code s - k + 1}
+	 * k-mers of the span. As the number of differences is rounded down, the
+	 * bound is not monotonic in the span, so every span from the shortest to
+	 * the full one is checked.
+	 * 
+	 * @param length
+	 *            length of the entry
+	 * @param k
+	 *            k-mer length
+	 * @param minIdentity
+	 *            minimal identity of a hit
+	 * @param minCoverage
+	 *            minimal coverage of a hit
+	 * @return minimal number of shared k-mers, 0 if nothing can be excluded
+	 */
+	static int minimumSharedKmers(int length, int k, double minIdentity,
+			double minCoverage) {
+		if (minIdentity <= 0) {
+			return 0;
+		}
+		// the epsilons keep rounding errors from overestimating the bound
+		int shortestSpan = Math.max(0,
+				(int) Math.ceil(minCoverage * length - 1e-9));
+		int bound = Integer.MAX_VALUE;
+		for (int span = shortestSpan; span <= length && bound > 0; span++) {
+			bound = Math.min(bound, keptKmers(span, k, minIdentity));
+		}
+		return Math.max(0, bound);
+	}
+
+	private static int keptKmers(int span, int k, double minIdentity) {
+		int differences = (int) Math.floor((1 - minIdentity) / minIdentity
+				* span + 1e-9);
+		return span - k + 1 - k * differences;
+	}
+}
@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.Peptide;
+
+import com.quattroresearch.antibody.FindMutations;
+import com.quattroresearch.antibody.Mutation;
+import com.quattroresearch.antibody.SingleMutation;
+
+/**
+ * 
+ * {@code MutationLibrarySnapshot} is an immutable copy of the mutation library
+ * with its single mutations indexed by domain name and position. It finds
+ * registered mutations like {@link FindMutations#find(List, List)}, but only
+ * looks at the single mutations of the detected domains instead of scanning
+ * the whole library for every peptide.
+ * <p>
+ * The snapshot of the installed configuration is provided by
+ * {@link ConfigLoaderRegistry#getMutationLibrary()}.
+ * 
+ * @version $Id$
+ */
+public final class MutationLibrarySnapshot {
+
+	private final long version;
+
+	private final List<Mutation> mutations;
+
+	/** the single mutations of every mutation, in library order */
+	private final List<List<Occurrence>> occurrences;
+
+	/** domain name to position to the single mutations there */
+	private final Map<String, Map<Integer, List<Occurrence>>> index = new HashMap<String, Map<Integer, List<Occurrence>>>();
+
+	/** mutations without single mutations, found with any mutated domain */
+	private final List<Integer> unconditional = new ArrayList<Integer>();
+
+	/**
+	 * @param library
+	 *            mutation library
+	 * @param version
+	 *            configuration generation the library was fetched for
+	 */
+	public MutationLibrarySnapshot(List<Mutation> library, long version) {
+		this.version = version;
+		this.mutations = Collections.unmodifiableList(new ArrayList<Mutation>(
+				library));
+		this.occurrences = new ArrayList<List<Occurrence>>(mutations.size());
+		for (int i = 0; i < mutations.size(); i++) {
+			List<SingleMutation> singleMutations = getSingleMutations(mutations
+					.get(i));
+			List<Occurrence> mutationOccurrences = new ArrayList<Occurrence>();
+			if (singleMutations.isEmpty()) {
+				unconditional.add(i);
+			} else {
+				for (SingleMutation singleMutation : singleMutations) {
+					Occurrence occurrence = new Occurrence(singleMutation, i);
+					mutationOccurrences.add(occurrence);
+					add(occurrence);
+				}
+			}
+			occurrences.add(mutationOccurrences);
+		}
+	}
+
+	private void add(Occurrence occurrence) {
+		Map<Integer, List<Occurrence>> byPosition = index
+				.get(occurrence.singleMutation.getDomainName());
+		if (byPosition == null) {
+			byPosition = new HashMap<Integer, List<Occurrence>>();
+			index.put(occurrence.singleMutation.getDomainName(), byPosition);
+		}
+		List<Occurrence> list = byPosition.get(occurrence.singleMutation
+				.getPosition());
+		if (list == null) {
+			list = new ArrayList<Occurrence>(1);
+			byPosition.put(occurrence.singleMutation.getPosition(), list);
+		}
+		list.add(occurrence);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the mutations of the library, unmodifiable
+	 */
+	public List<Mutation> getMutations() {
+		return mutations;
+	}
+
+	public int size() {
+		return mutations.size();
+	}
+
+	/**
+	 * Annotates the registered mutations in the domains of the peptides and
+	 * adds their short names to the domain labels, with the same result as
+	 * {@link FindMutations#find(List, List)} for the library.
+	 * 
+	 * @param peptides
+	 *            detected peptides
+	 */
+	public void find(List<Peptide> peptides) {
+		for (Peptide peptide : peptides) {
+			findInDomains(peptide.getDomains());
+		}
+
+		for (Peptide peptide : peptides) {
+			for (Domain domain : peptide.getDomains()) {
+				if (domain.getSingleMutations().size() > 0) {
+					StringBuilder sb = new StringBuilder();
+					sb.append("(");
+					for (SingleMutation singleMutation : domain
+							.getSingleMutations()) {
+						if (singleMutation.getVisible() == 1
+								&& !sb.toString().contains(
+										singleMutation.getShortname())) {
+							sb.append(singleMutation.getShortname());
+							sb.append(",");
+						}
+					}
+					if (sb.length() > 1) {
+						sb.deleteCharAt(sb.length() - 1);
+						sb.append(")");
+						domain.setUserLabel(domain.getUserLabel() + " "
+								+ sb.toString());
+					}
+				}
+			}
+		}
+	}
+
+	private void findInDomains(List<Domain> domains) {
+		List<Domain> mutatedDomains = new LinkedList<Domain>();
+		for (Domain domain : domains) {
+			if (domain.getLibraryValues() != null
+					&& !domain.getUnknownMutations().isEmpty()) {
+				mutatedDomains.add(domain);
+			}
+		}
+		if (mutatedDomains.isEmpty()) {
+			return;
+		}
+
+		// the domains every single mutation is present in, in domain order
+		Map<Occurrence, List<Domain>> found = new IdentityHashMap<Occurrence, List<Domain>>();
+		for (Domain domain : mutatedDomains) {
+			Map<Integer, List<Occurrence>> byPosition = index.get(domain
+					.getLibraryValues().getName());
+			if (byPosition == null) {
+				continue;
+			}
+			String sequence = domain.getSequence();
+			for (Map.Entry<Integer, List<Occurrence>> entry : byPosition
+					.entrySet()) {
+				int position = entry.getKey();
+				if (position < 1 || position > sequence.length()) {
+					continue;
+				}
+				char residue = sequence.charAt(position - 1);
+				for (Occurrence occurrence : entry.getValue()) {
+					if (occurrence.singleMutation.getNewAA() == residue) {
+						List<Domain> list = found.get(occurrence);
+						if (list == null) {
+							list = new ArrayList<Domain>(1);
+							found.put(occurrence, list);
+						}
+						list.add(domain);
+					}
+				}
+			}
+		}
+
+		// a mutation is found when all of its single mutations are
+		Map<Integer, Integer> foundCounts = new HashMap<Integer, Integer>();
+		for (Occurrence occurrence : found.keySet()) {
+			Integer count = foundCounts.get(occurrence.mutation);
+			foundCounts.put(occurrence.mutation, count == null ? 1 : count + 1);
+		}
+		Set<Integer> foundMutations = new TreeSet<Integer>(unconditional);
+		for (Map.Entry<Integer, Integer> entry : foundCounts.entrySet()) {
+			if (entry.getValue() == occurrences.get(entry.getKey()).size()) {
+				foundMutations.add(entry.getKey());
+			}
+		}
+		List<Mutation> foundList = new ArrayList<Mutation>(
+				foundMutations.size());
+		Map<Mutation, Integer> indices = new IdentityHashMap<Mutation, Integer>();
+		for (Integer i : foundMutations) {
+			foundList.add(mutations.get(i));
+			indices.put(mutations.get(i), i);
+		}
+		if (foundList.size() > 1) {
+			removeSubsets(foundList);
+		}
+
+		for (Mutation mutation : foundList) {
+			for (Occurrence occurrence : occurrences.get(indices.get(mutation))) {
+				for (Domain domain : found.get(occurrence)) {
+					domain.getSingleMutations().add(occurrence.singleMutation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes every mutation whose single mutations are all part of another
+	 * found mutation, as {@link FindMutations} does.
+	 */
+	private static void removeSubsets(List<Mutation> foundList) {
+		Set<Mutation> subsets = new HashSet<Mutation>();
+		for (Mutation mutation1 : foundList) {
+			for (Mutation mutation2 : foundList) {
+				if (mutation1 != mutation2
+						&& getSingleMutations(mutation2).containsAll(
+								getSingleMutations(mutation1))) {
+					subsets.add(mutation1);
+				}
+			}
+		}
+		foundList.removeAll(subsets);
+	}
+
+	private static List<SingleMutation> getSingleMutations(Mutation mutation) {
+		List<SingleMutation> singleMutations = mutation.getSingleMutations();
+		return singleMutations == null ? Collections
+				.<SingleMutation> emptyList() : singleMutations;
+	}
+
+	/**
+	 * A single mutation at its place in a mutation of the library.
+	 */
+	private static final class Occurrence {
+
+		private final SingleMutation singleMutation;
+
+		private final int mutation;
+
+		Occurrence(SingleMutation singleMutation, int mutation) {
+			this.singleMutation = singleMutation;
+			this.mutation = mutation;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.roche.antibody.model.antibody.Connection;
+import org.roche.antibody.model.antibody.CysteinConnection;
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.Peptide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quattroresearch.antibody.SingleMutation;
+import com.quattroresearch.antibody.UnknownMutation;
+
+/**
+ * 
+ * {@code PeptideCopier} creates deep copies of peptides returned by the domain
+ * detection, so that cached results can be handed out and modified by the
+ * caller.
+ * <p>
+ * Domains, mutations found in the alignment and cystein bridges between the
+ * copied peptides are copied. Library values and single mutations of the
+ * mutation library are shared, since they belong to the libraries.
+ * 
+ * @version $Id$
+ */
+public final class PeptideCopier {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PeptideCopier.class);
+
+	private PeptideCopier() {
+	}
+
+	/**
+	 * Copies a single peptide including its intra-chain cystein bridges.
+	 * 
+	 * @param peptide
+	 *            peptide to copy
+	 * @return deep copy
+	 */
+	public static Peptide copy(Peptide peptide) {
+		return copyAll(Collections.singletonList(peptide)).get(0);
+	}
+
+	/**
+	 * Copies the given peptides. Cystein bridges between two of the given
+	 * peptides are remapped to the copies.
+	 * 
+	 * @param peptides
+	 *            peptides to copy
+	 * @return deep copies in the same order
+	 */
+	public static List<Peptide> copyAll(List<Peptide> peptides) {
+		Map<Peptide, Peptide> copies = new IdentityHashMap<Peptide, Peptide>();
+		List<Peptide> result = new ArrayList<Peptide>(peptides.size());
+		for (Peptide peptide : peptides) {
+			Peptide copy = copyWithoutConnections(peptide);
+			copies.put(peptide, copy);
+			result.add(copy);
+		}
+
+		for (Peptide peptide : peptides) {
+			List<Connection> connections = new ArrayList<Connection>();
+			for (Connection connection : peptide.getConnections()) {
+				Connection copy = copyConnection(connection, copies);
+				if (copy != null) {
+					connections.add(copy);
+				}
+			}
+			copies.get(peptide).setConnections(connections);
+		}
+		return result;
+	}
+
+	private static Peptide copyWithoutConnections(Peptide peptide) {
+		Peptide copy = new Peptide();
+		copy.setSequence(peptide.getSequence());
+		copy.setOriginalSequence(peptide.getOriginalSequence());
+		copy.setName(peptide.getName());
+		copy.setLabel(peptide.getLabel());
+		copy.setStartPosition(peptide.getStartPosition());
+		copy.setEndPosition(peptide.getEndPosition());
+		copy.setPk(peptide.getPk());
+		copy.setUid(peptide.getUid());
+
+		List<Domain> domains = peptide.getDomains();
+		Domain[] domainCopies = new Domain[domains.size()];
+		for (int i = 0; i < domains.size(); i++) {
+			domainCopies[i] = copyDomain(domains.get(i), copy);
+		}
+		copy.setDomains(domainCopies);
+		return copy;
+	}
+
+	private static Domain copyDomain(Domain domain, Peptide peptide) {
+		Domain copy = new Domain(domain.getName(), domain.getSequence(),
+				domain.getStartPosition(), domain.getEndPosition(),
+				domain.getStartTemplatePos(), domain.getEndTemplatePos());
+		copy.setPeptide(peptide);
+		copy.setLabel(domain.getLabel());
+		copy.setPk(domain.getPk());
+		copy.setUid(domain.getUid());
+		copy.setUserLabel(domain.getUserLabel());
+		copy.setUserComment(domain.getUserComment());
+		copy.setLongName(domain.getLongName());
+		copy.setChainType(domain.getChainType());
+		copy.setDomainType(domain.getDomainType());
+		copy.setSpecies(domain.getSpecies());
+		copy.setHumanessType(domain.getHumanessType());
+		copy.setIdentity(domain.getIdentity());
+		copy.setCoverage(domain.getCoverage());
+		copy.setLibraryValues(domain.getLibraryValues());
+		copy.setParatope(domain.getParatope());
+		copy.setIsAutonomous(domain.getIsAutonomous());
+
+		if (domain.getAllMutations() != null) {
+			List<UnknownMutation> mutations = new ArrayList<UnknownMutation>();
+			for (UnknownMutation mutation : domain.getAllMutations()) {
+				UnknownMutation mutationCopy = new UnknownMutation(
+						mutation.getPosition(), mutation.getOriAA(),
+						mutation.getNewAA());
+				mutationCopy.setIsMissingMutatation(mutation
+						.getIsMissingMutation());
+				mutations.add(mutationCopy);
+			}
+			copy.setAllMutations(mutations);
+		}
+		if (domain.getSingleMutations() != null) {
+			copy.setSingleMutations(new LinkedList<SingleMutation>(domain
+					.getSingleMutations()));
+		}
+		return copy;
+	}
+
+	private static Connection copyConnection(Connection connection,
+			Map<Peptide, Peptide> copies) {
+		if (!(connection instanceof CysteinConnection)) {
+			LOG.debug("Connection " + connection + " is not copied.");
+			return null;
+		}
+		CysteinConnection cysBridge = (CysteinConnection) connection;
+		Peptide source = copies.get(cysBridge.getSource());
+		Peptide target = copies.get(cysBridge.getTarget());
+		if (source == null || target == null) {
+			LOG.debug("Cystein bridge " + connection
+					+ " leaves the copied peptides and is not copied.");
+			return null;
+		}
+
+		CysteinConnection copy = new CysteinConnection();
+		copy.setSource(source);
+		copy.setTarget(target);
+		copy.setSourcePosition(cysBridge.getSourcePosition());
+		copy.setTargetPosition(cysBridge.getTargetPosition());
+		copy.setSourceRest(cysBridge.getSourceRest());
+		copy.setTargetRest(cysBridge.getTargetRest());
+		return copy;
+	}
+}
@@ -0,0 +1,499 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import org.roche.antibody.model.antibody.Antibody;
+import org.roche.antibody.model.antibody.AntibodyContainer;
+import org.roche.antibody.model.antibody.Peptide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quattroresearch.antibody.DomainDetectionStandalone;
+import com.quattroresearch.blastws.LocalConfig;
+
+/**
+ * 
+ * {@code PersistentDetectionCache} stores domain and mutation detection
+ * results in a local SQLite file, so they survive a restart of the
+ * application. It is the second level behind the
+ * {@link DetectionResultCache}.
+ * <p>
+ * Entries are keyed by a hash of the chain sequence, the checksum of the
+ * searched library, the configuration fingerprint of the
+ * {@link ConfigLoaderRegistry} and the algorithm settings. The key also
+ * contains {@link #FORMAT_VERSION} and the versions of the plugin and
+ * Domain-Detection jars. All of them are stable across sessions, so entries
+ * of a changed library, configuration, setting or release are simply never
+ * hit again and age out. Results are stored as antibody XML, the same format the editor
+ * saves antibodies in.
+ * <p>
+ * The database runs in WAL mode, writes are batched into one transaction and
+ * the least recently used entries are removed once the configured size is
+ * exceeded. Any database failure disables the cache for the rest of the
+ * session instead of failing the detection.
+ * 
+ * @version $Id$
+ */
+public class PersistentDetectionCache {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PersistentDetectionCache.class);
+
+	/** Whether detection results are persisted at all. */
+	public static final String ENABLED = "detection.persistent-cache.enabled";
+
+	/** Path of the SQLite file, defaults to the BLAST working directory. */
+	public static final String FILE = "detection.persistent-cache.file";
+
+	/** Maximum number of persisted chain results. */
+	public static final String MAX_ENTRIES = "detection.persistent-cache.size";
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private static final String FILE_NAME = "detection-cache.sqlite";
+
+	/** SQLite allows at most 999 parameters per statement. */
+	private static final int MAX_QUERY_KEYS = 500;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Version of the stored result format and the detection algorithm, to be
+	 * increased with every change of them.
+	 */
+	static final int FORMAT_VERSION = 2;
+
+	private static PersistentDetectionCache _instance;
+
+	private static String codeVersion;
+
+	private final int maxEntries;
+
+	/** null for the configured file */
+	private final File databaseFile;
+
+	private Connection connection;
+
+	private JAXBContext jaxbContext;
+
+	private boolean disabled;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	PersistentDetectionCache(int maxEntries, boolean enabled) {
+		this(maxEntries, enabled, null);
+	}
+
+	PersistentDetectionCache(int maxEntries, boolean enabled, File file) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.disabled = !enabled || this.maxEntries == 0;
+		this.databaseFile = file;
+	}
+
+	public static synchronized PersistentDetectionCache getInstance() {
+		if (_instance == null) {
+			_instance = new PersistentDetectionCache(DetectionPreferences.getInt(
+					MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+					DetectionPreferences.getBoolean(ENABLED, true));
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Creates the key of a chain result.
+	 * 
+	 * @param sequence
+	 *            chain sequence
+	 * @param isAntigenDomains
+	 *            whether antigen domains were searched
+	 * @param libraryChecksum
+	 *            checksum of the searched library
+	 * @param configFingerprint
+	 *            fingerprint of the configuration
+	 * @param algorithm
+	 *            description of the algorithm settings, see
+	 *            {@link DetectionKey#getAlgorithm()}
+	 * @return hex encoded key
+	 */
+	public static String createKey(String sequence, boolean isAntigenDomains,
+			String libraryChecksum, String configFingerprint, String algorithm) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		for (Object value : new Object[] { FORMAT_VERSION, getCodeVersion(),
+				sequence, isAntigenDomains, libraryChecksum, configFingerprint,
+				algorithm }) {
+			digest.update(String.valueOf(value).getBytes(UTF8));
+			digest.update((byte) 0);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Identifies the plugin and Domain-Detection classes by the jars they are
+	 * loaded from, so results are not taken over by an upgrade.
+	 * 
+	 * @return version of the detecting code
+	 */
+	static synchronized String getCodeVersion() {
+		if (codeVersion == null) {
+			codeVersion = describeCodeSource(PersistentDetectionCache.class)
+					+ ";" + describeCodeSource(DomainDetectionStandalone.class);
+		}
+		return codeVersion;
+	}
+
+	private static String describeCodeSource(Class<?> type) {
+		String version = String.valueOf(type.getPackage()
+				.getImplementationVersion());
+		try {
+			CodeSource source = type.getProtectionDomain().getCodeSource();
+			if (source != null && source.getLocation() != null) {
+				File file = new File(source.getLocation().toURI());
+				version += "/" + file.getName();
+				if (file.isFile()) {
+					version += "/" + file.length() + "/" + file.lastModified();
+				}
+			}
+		} catch (Exception e) {
+			LOG.debug("Location of " + type + " unknown: " + e.getMessage());
+		}
+		return version;
+	}
+
+	/**
+	 * Looks up the results of the given keys with batched queries.
+	 * 
+	 * @param keys
+	 *            keys created by
+	 *            {@link #createKey(String, boolean, String, String, String)}
+	 * @return found results by key, missing keys are left out
+	 */
+	public synchronized Map<String, Peptide> getAll(List<String> keys) {
+		if (keys.isEmpty() || !open()) {
+			return Collections.emptyMap();
+		}
+
+		Map<String, Peptide> result = new HashMap<String, Peptide>();
+		try {
+			for (int from = 0; from < keys.size(); from += MAX_QUERY_KEYS) {
+				select(keys.subList(from,
+						Math.min(keys.size(), from + MAX_QUERY_KEYS)), result);
+			}
+			touch(result.keySet());
+		} catch (SQLException e) {
+			disable("Reading detection results failed", e);
+			return Collections.emptyMap();
+		}
+
+		hits.addAndGet(result.size());
+		misses.addAndGet(keys.size() - result.size());
+		return result;
+	}
+
+	/**
+	 * Stores the given results in one transaction and evicts the least
+	 * recently used entries afterwards.
+	 * 
+	 * @param sequences
+	 *            chain sequence by key
+	 * @param results
+	 *            detected peptide by key
+	 */
+	public synchronized void putAll(Map<String, String> sequences,
+			Map<String, Peptide> results) {
+		if (results.isEmpty() || !open()) {
+			return;
+		}
+
+		Map<String, String> xmlByKey = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Peptide> entry : results.entrySet()) {
+			try {
+				xmlByKey.put(entry.getKey(), toXml(entry.getValue()));
+			} catch (JAXBException e) {
+				LOG.warn("Detection result of " + entry.getKey()
+						+ " could not be serialized and is not persisted.", e);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		try {
+			connection.setAutoCommit(false);
+			try (PreparedStatement insert = connection
+					.prepareStatement("INSERT OR REPLACE INTO detection_result (cache_key, sequence, result, last_access) VALUES (?, ?, ?, ?)")) {
+				for (Map.Entry<String, String> entry : xmlByKey.entrySet()) {
+					insert.setString(1, entry.getKey());
+					insert.setString(2, sequences.get(entry.getKey()));
+					insert.setString(3, entry.getValue());
+					insert.setLong(4, now);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+			evict();
+			connection.commit();
+		} catch (SQLException e) {
+			rollback();
+			disable("Writing detection results failed", e);
+		} finally {
+			restoreAutoCommit();
+		}
+	}
+
+	/**
+	 * Removes all persisted results.
+	 */
+	public synchronized void clear() {
+		if (!open()) {
+			return;
+		}
+		try (Statement statement = connection.createStatement()) {
+			statement.executeUpdate("DELETE FROM detection_result");
+		} catch (SQLException e) {
+			disable("Clearing detection results failed", e);
+		}
+	}
+
+	/**
+	 * Closes the database. It is opened again on the next access.
+	 */
+	public synchronized void close() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOG.debug("Closing detection cache failed: " + e.getMessage());
+			}
+			connection = null;
+		}
+	}
+
+	public synchronized boolean isEnabled() {
+		return !disabled;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns a short summary of the cache statistics for logging.
+	 * 
+	 * @return statistics summary
+	 */
+	public String getStatistics() {
+		return String.format(
+				"PersistentDetectionCache: enabled=%s, max=%d, hits=%d, misses=%d, evictions=%d",
+				isEnabled(), maxEntries, getHitCount(), getMissCount(),
+				getEvictionCount());
+	}
+
+	private boolean open() {
+		if (disabled) {
+			return false;
+		}
+		if (connection != null) {
+			return true;
+		}
+
+		File file = null;
+		try {
+			file = getFile();
+			file.getParentFile().mkdirs();
+			Class.forName("org.sqlite.JDBC");
+			connection = DriverManager.getConnection("jdbc:sqlite:"
+					+ file.getAbsolutePath());
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("PRAGMA journal_mode=WAL");
+				statement.execute("PRAGMA synchronous=NORMAL");
+				statement
+						.executeUpdate("CREATE TABLE IF NOT EXISTS detection_result (cache_key TEXT PRIMARY KEY, sequence TEXT NOT NULL, result TEXT NOT NULL, last_access INTEGER NOT NULL)");
+				statement
+						.executeUpdate("CREATE INDEX IF NOT EXISTS detection_result_access ON detection_result (last_access)");
+			}
+			LOG.debug("Opened persistent detection cache " + file);
+			return true;
+		} catch (Exception e) {
+			close();
+			disable("Opening detection cache " + file + " failed", e);
+			return false;
+		}
+	}
+
+	private File getFile() throws Exception {
+		if (databaseFile != null) {
+			return databaseFile;
+		}
+		String path = DetectionPreferences.getString(FILE, null);
+		if (path != null && !path.isEmpty()) {
+			return new File(path);
+		}
+		return new File(LocalConfig.getInstance().getWorkingDirectory()
+				.toFile(), FILE_NAME);
+	}
+
+	private void select(List<String> keys, Map<String, Peptide> result)
+			throws SQLException {
+		StringBuilder sql = new StringBuilder(
+				"SELECT cache_key, result FROM detection_result WHERE cache_key IN (");
+		for (int i = 0; i < keys.size(); i++) {
+			sql.append(i == 0 ? "?" : ",?");
+		}
+		sql.append(")");
+
+		try (PreparedStatement select = connection.prepareStatement(sql
+				.toString())) {
+			for (int i = 0; i < keys.size(); i++) {
+				select.setString(i + 1, keys.get(i));
+			}
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					String key = rs.getString(1);
+					try {
+						result.put(key, fromXml(rs.getString(2)));
+					} catch (JAXBException e) {
+						LOG.warn("Persisted detection result " + key
+								+ " could not be read and is ignored.", e);
+					}
+				}
+			}
+		}
+	}
+
+	private void touch(Iterable<String> keys) throws SQLException {
+		long now = System.currentTimeMillis();
+		try (PreparedStatement update = connection
+				.prepareStatement("UPDATE detection_result SET last_access = ? WHERE cache_key = ?")) {
+			boolean empty = true;
+			for (String key : keys) {
+				update.setLong(1, now);
+				update.setString(2, key);
+				update.addBatch();
+				empty = false;
+			}
+			if (!empty) {
+				update.executeBatch();
+			}
+		}
+	}
+
+	private void evict() throws SQLException {
+		try (PreparedStatement delete = connection
+				.prepareStatement("DELETE FROM detection_result WHERE cache_key IN (SELECT cache_key FROM detection_result ORDER BY last_access DESC LIMIT -1 OFFSET ?)")) {
+			delete.setInt(1, maxEntries);
+			int removed = delete.executeUpdate();
+			if (removed > 0) {
+				evictions.addAndGet(removed);
+				LOG.debug("Evicted " + removed
+						+ " persisted detection results.");
+			}
+		}
+	}
+
+	private void rollback() {
+		try {
+			connection.rollback();
+		} catch (Exception e) {
+			LOG.debug("Rollback failed: " + e.getMessage());
+		}
+	}
+
+	private void restoreAutoCommit() {
+		try {
+			if (connection != null) {
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			LOG.debug("Restoring auto commit failed: " + e.getMessage());
+		}
+	}
+
+	private void disable(String message, Exception e) {
+		LOG.warn(message + ", persistent detection cache is disabled.", e);
+		disabled = true;
+		close();
+	}
+
+	private JAXBContext getJaxbContext() throws JAXBException {
+		if (jaxbContext == null) {
+			jaxbContext = JAXBContext.newInstance(AntibodyContainer.class);
+		}
+		return jaxbContext;
+	}
+
+	private String toXml(Peptide peptide) throws JAXBException {
+		List<Peptide> peptides = new ArrayList<Peptide>();
+		peptides.add(PeptideCopier.copy(peptide));
+		Antibody antibody = new Antibody(peptides);
+		StringWriter writer = new StringWriter();
+		getJaxbContext().createMarshaller().marshal(
+				new AntibodyContainer(antibody), writer);
+		return writer.toString();
+	}
+
+	private Peptide fromXml(String xml) throws JAXBException {
+		AntibodyContainer container = (AntibodyContainer) getJaxbContext()
+				.createUnmarshaller().unmarshal(new StringReader(xml));
+		// copy to detach the peptide from the temporary antibody
+		return PeptideCopier.copy(container.getAntibody().getPeptides().get(0));
+	}
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.roche.antibody.services.ConfigLoaderHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code PooledConfigDriver} lets the config loaders use a
+ * {@link ConfigConnectionPool}. The loaders open their connections through
+ * {@link ConfigLoaderHelper#getConnection(String, String)}, so they are
+ * created with this driver and the URL returned by
+ * {@link #register(String, String)}. Connections are then borrowed from
+ * the pool of the original URL, or taken from the caller, see
+ * {@link #setCallerConnection(Connection)}.
+ * 
+ * @version $Id$
+ */
+public class PooledConfigDriver implements Driver {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PooledConfigDriver.class);
+
+	static final String URL_PREFIX = "jdbc:helm-config-pool:";
+
+	private static final ConcurrentMap<String, ConfigConnectionPool> pools = new ConcurrentHashMap<String, ConfigConnectionPool>();
+
+	private static final ThreadLocal<Connection> callerConnection = new ThreadLocal<Connection>();
+
+	static {
+		try {
+			DriverManager.registerDriver(new PooledConfigDriver());
+		} catch (SQLException e) {
+			LOG.error("Registering the pooled config driver failed.", e);
+		}
+	}
+
+	/**
+	 * Creates the pool for the given database, unless it exists.
+	 * 
+	 * @param jdbcDriver
+	 *            class name of the JDBC driver
+	 * @param url
+	 *            JDBC URL of the database
+	 * @return URL to pass to the config loaders together with the name of
+	 *         this class, or null if pooling is disabled
+	 */
+	public static String register(String jdbcDriver, String url) {
+		int size = DetectionPreferences.getInt(ConfigConnectionPool.SIZE,
+				ConfigConnectionPool.DEFAULT_SIZE);
+		if (url == null || size <= 0) {
+			return null;
+		}
+		if (!pools.containsKey(url)) {
+			ConfigConnectionPool pool = new ConfigConnectionPool(jdbcDriver,
+					url, size, DetectionPreferences.getLong(
+							ConfigConnectionPool.TIMEOUT,
+							ConfigConnectionPool.DEFAULT_TIMEOUT),
+					DetectionPreferences.getLong(
+							ConfigConnectionPool.LONG_HELD_WARNING,
+							ConfigConnectionPool.DEFAULT_LONG_HELD_WARNING),
+					DetectionPreferences.getLong(
+							ConfigConnectionPool.LEAK_TIMEOUT,
+							ConfigConnectionPool.DEFAULT_LEAK_TIMEOUT));
+			if (pools.putIfAbsent(url, pool) == null) {
+				LOG.debug("Created connection pool of size " + size
+						+ " for " + url);
+			}
+		}
+		return URL_PREFIX + url;
+	}
+
+	/**
+	 * Removes and closes the pool of the given database.
+	 * 
+	 * @param url
+	 *            JDBC URL of the database
+	 */
+	public static void unregister(String url) {
+		ConfigConnectionPool pool = url == null ? null : pools.remove(url);
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	/**
+	 * @param url
+	 *            JDBC URL of the database
+	 * @return pool of the database or null
+	 */
+	public static ConfigConnectionPool getPool(String url) {
+		return pools.get(url);
+	}
+
+	/**
+	 * Lets the config loaders running on the current thread use the given
+	 * connection instead of a pooled one. The connection is not closed by
+	 * them.
+	 * 
+	 * @param connection
+	 *            connection to the configuration database, null to use the
+	 *            pool again
+	 * @return the connection set before, to be restored afterwards
+	 */
+	public static Connection setCallerConnection(Connection connection) {
+		Connection previous = callerConnection.get();
+		if (connection == null) {
+			callerConnection.remove();
+		} else {
+			callerConnection.set(connection);
+		}
+		return previous;
+	}
+
+	/**
+	 * @return whether the config loaders of the current thread use a
+	 *         connection of the caller
+	 */
+	public static boolean hasCallerConnection() {
+		return callerConnection.get() != null;
+	}
+
+	@Override
+	public Connection connect(String url, Properties info)
+			throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		Connection connection = callerConnection.get();
+		if (connection != null && !connection.isClosed()) {
+			return ConfigConnectionPool.share(connection);
+		}
+		ConfigConnectionPool pool = pools.get(url.substring(URL_PREFIX
+				.length()));
+		if (pool == null) {
+			throw new SQLException("No connection pool registered for " + url);
+		}
+		return pool.borrow();
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger()
+			throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
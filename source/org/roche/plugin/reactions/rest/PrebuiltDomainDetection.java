@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.FileNotFoundException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+import com.quattroresearch.antibody.DomainDetectionStandalone;
+import com.quattroresearch.blastws.BlastSearchService;
+
+/**
+ * 
+ * {@code PrebuiltDomainDetection} is a {@link DomainDetectionStandalone} that
+ * searches already indexed databases instead of building its own ones with
+ * {@link #makeBlastDatabases()}.
+ * <p>
+ * When {@link #setReuseBlastResults(boolean)} is enabled, every library is
+ * searched only once for all chains, even if
+ * {@link #annotateDomain(int, String, org.roche.antibody.model.antibody.Domain)}
+ * is called for several chains.
+ * 
+ * @version $Id$
+ */
+public class PrebuiltDomainDetection extends DomainDetectionStandalone {
+
+	/**
+	 * @param chainNames
+	 *            the chains names
+	 * @param chains
+	 *            the chains
+	 * @param domainLibrary
+	 *            preloaded domain library the databases were built from
+	 * @param searchService
+	 *            search service pointing to the prebuilt databases
+	 * @throws FileNotFoundException
+	 */
+	public PrebuiltDomainDetection(List<String> chainNames,
+			List<String> chains, List<DomainLibraryValues> domainLibrary,
+			BlastSearchService searchService) throws FileNotFoundException {
+		super(chainNames, chains, domainLibrary);
+		this.bss = searchService;
+	}
+
+	private boolean reuseBlastResults;
+
+	private final Set<DomainUsage> searchedUsages = EnumSet
+			.noneOf(DomainUsage.class);
+
+	/**
+	 * Defines whether the BLAST results of a library are kept for all
+	 * following searches of this detection. Only use this when
+	 * {@link #loadData()} is not called, since it modifies the kept hits.
+	 * 
+	 * @param reuseBlastResults
+	 *            true, if each library should be searched only once
+	 */
+	public void setReuseBlastResults(boolean reuseBlastResults) {
+		this.reuseBlastResults = reuseBlastResults;
+		this.searchedUsages.clear();
+	}
+
+	public BlastSearchService getSearchService() {
+		return bss;
+	}
+
+	@Override
+	public void performBlast(DomainUsage domainUsage) throws Exception {
+		if (reuseBlastResults && searchedUsages.contains(domainUsage)) {
+			return;
+		}
+		super.performBlast(domainUsage);
+		searchedUsages.add(domainUsage);
+	}
+}
@@ -0,0 +1,483 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.roche.antibody.services.ProteaseDescription;
+import org.roche.antibody.services.tools.ProteaseCleavageResult;
+
+/**
+ * 
+ * {@code ProteaseDigestEngine} finds the cleavage sites of a set of proteases
+ * in chain sequences. The cleavage site of a protease is defined by its motif
+ * matching the whole sequence, see {@link ProteaseRegistry}, so every
+ * protease cleaves a chain at most once.
+ * <p>
+ * Most motifs require a literal stretch of residues, e.g. {@code LPET} of
+ * sortase. These literals are searched for all proteases at once with an
+ * Aho-Corasick automaton in one scan of the chain. The motif itself is only
+ * matched for proteases whose literal was found and for proteases without a
+ * literal.
+ * 
+ * @version $Id$
+ */
+public class ProteaseDigestEngine {
+
+	private static final int ALPHABET = 26;
+
+	private final List<ProteaseDescription> proteases;
+
+	private final Pattern[] patterns;
+
+	/** proteases without a literal, their motif is always matched */
+	private final int[] unfiltered;
+
+	/** goto function of the automaton, -1 for a missing transition */
+	private int[][] transitions;
+
+	/** proteases whose literal ends in a state, including its suffixes */
+	private int[][] outputs;
+
+	/**
+	 * @param proteases
+	 *            proteases to digest with
+	 */
+	public ProteaseDigestEngine(Collection<ProteaseDescription> proteases) {
+		this.proteases = Collections
+				.unmodifiableList(new ArrayList<ProteaseDescription>(
+						proteases));
+		int count = this.proteases.size();
+		this.patterns = new Pattern[count];
+		String[] literals = new String[count];
+		List<Integer> withoutLiteral = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			ProteaseDescription protease = this.proteases.get(i);
+			patterns[i] = ProteaseRegistry.getInstance().getPattern(protease);
+			literals[i] = requiredLiteral(protease.getMotif());
+			if (literals[i] == null) {
+				withoutLiteral.add(i);
+			}
+		}
+		unfiltered = new int[withoutLiteral.size()];
+		for (int i = 0; i < unfiltered.length; i++) {
+			unfiltered[i] = withoutLiteral.get(i);
+		}
+		buildAutomaton(literals);
+	}
+
+	/**
+	 * Digests one chain with all proteases.
+	 * 
+	 * @param sequence
+	 *            chain sequence
+	 * @return cleavage sites of the chain
+	 */
+	public SiteMap digest(String sequence) {
+		boolean[] candidates = new boolean[proteases.size()];
+		for (int protease : unfiltered) {
+			candidates[protease] = true;
+		}
+		int state = 0;
+		for (int i = 0; i < sequence.length(); i++) {
+			int symbol = symbol(sequence.charAt(i));
+			if (symbol < 0) {
+				state = 0;
+				continue;
+			}
+			state = transitions[state][symbol];
+			for (int protease : outputs[state]) {
+				candidates[protease] = true;
+			}
+		}
+
+		List<CleavageSite> sites = new ArrayList<CleavageSite>();
+		for (int i = 0; i < candidates.length; i++) {
+			if (!candidates[i]) {
+				continue;
+			}
+			Matcher matcher = patterns[i].matcher(sequence);
+			if (matcher.matches()) {
+				ProteaseDescription protease = proteases.get(i);
+				sites.add(new CleavageSite(protease, matcher.start(protease
+						.getCaptureGroup()), matcher.end(protease
+						.getCaptureGroup())));
+			}
+		}
+		return new SiteMap(sequence, sites);
+	}
+
+	/**
+	 * Digests several chains with all proteases.
+	 * 
+	 * @param sequences
+	 *            chain sequences
+	 * @return cleavage sites per chain, in the order of the sequences
+	 */
+	public List<SiteMap> digest(List<String> sequences) {
+		List<SiteMap> siteMaps = new ArrayList<SiteMap>(sequences.size());
+		for (String sequence : sequences) {
+			siteMaps.add(digest(sequence));
+		}
+		return siteMaps;
+	}
+
+	public List<ProteaseDescription> getProteases() {
+		return proteases;
+	}
+
+	/**
+	 * Returns the longest stretch of letters every sequence matching the
+	 * motif contains. Motifs with alternatives or special groups are not
+	 * analyzed.
+	 * 
+	 * @param motif
+	 *            regular expression of a cleavage site
+	 * @return required literal in upper case or null, if none was found
+	 */
+	static String requiredLiteral(String motif) {
+		if (motif == null || motif.indexOf('|') >= 0
+				|| motif.contains("(?") || motif.contains("\\Q")) {
+			return null;
+		}
+		boolean[] optional = findOptionalGroups(motif);
+		if (optional == null) {
+			return null;
+		}
+
+		String best = "";
+		StringBuilder run = new StringBuilder();
+		int i = 0;
+		while (i < motif.length()) {
+			char c = motif.charAt(i);
+			if (isLetter(c) && !optional[i]) {
+				if (isQuantifier(motif, i + 1)) {
+					// the quantified letter is not required
+					best = longer(best, run);
+					run.setLength(0);
+				} else {
+					run.append(Character.toUpperCase(c));
+				}
+				i++;
+				continue;
+			}
+			best = longer(best, run);
+			run.setLength(0);
+			if (c == '\\') {
+				i = skipEscape(motif, i);
+			} else if (c == '[') {
+				i = skipCharacterClass(motif, i);
+			} else {
+				i++;
+			}
+		}
+		best = longer(best, run);
+		return best.isEmpty() ? null : best;
+	}
+
+	/**
+	 * Marks the positions inside groups that may be skipped, i.e. groups
+	 * followed by a quantifier allowing zero repetitions.
+	 * 
+	 * @return optional positions or null, if the parentheses do not match
+	 */
+	private static boolean[] findOptionalGroups(String motif) {
+		boolean[] optional = new boolean[motif.length()];
+		List<Integer> open = new ArrayList<Integer>();
+		int i = 0;
+		while (i < motif.length()) {
+			char c = motif.charAt(i);
+			if (c == '\\') {
+				i = skipEscape(motif, i);
+				continue;
+			}
+			if (c == '[') {
+				i = skipCharacterClass(motif, i);
+				continue;
+			}
+			if (c == '(') {
+				open.add(i);
+			} else if (c == ')') {
+				if (open.isEmpty()) {
+					return null;
+				}
+				int begin = open.remove(open.size() - 1);
+				if (isQuantifier(motif, i + 1)) {
+					Arrays.fill(optional, begin, i + 1, true);
+				}
+			}
+			i++;
+		}
+		return open.isEmpty() ? optional : null;
+	}
+
+	/**
+	 * Checks for a quantifier allowing zero repetitions at the given
+	 * position.
+	 */
+	private static boolean isQuantifier(String motif, int position) {
+		if (position >= motif.length()) {
+			return false;
+		}
+		char c = motif.charAt(position);
+		return c == '?' || c == '*'
+				|| (c == '{' && motif.startsWith("{0", position));
+	}
+
+	/**
+	 * Skips an escape sequence, including the name of a property class like
+	 * {@code \p{Alpha}}.
+	 */
+	private static int skipEscape(String motif, int begin) {
+		int i = begin + 2;
+		char escaped = begin + 1 < motif.length() ? motif.charAt(begin + 1)
+				: ' ';
+		if ((escaped == 'p' || escaped == 'P') && i < motif.length()
+				&& motif.charAt(i) == '{') {
+			int end = motif.indexOf('}', i);
+			return end < 0 ? motif.length() : end + 1;
+		}
+		return i;
+	}
+
+	private static int skipCharacterClass(String motif, int begin) {
+		int i = begin + 1;
+		// a leading ] or ^] belongs to the class
+		if (i < motif.length() && motif.charAt(i) == '^') {
+			i++;
+		}
+		if (i < motif.length() && motif.charAt(i) == ']') {
+			i++;
+		}
+		while (i < motif.length() && motif.charAt(i) != ']') {
+			i += motif.charAt(i) == '\\' ? 2 : 1;
+		}
+		return i + 1;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private static String longer(String best, StringBuilder run) {
+		return run.length() > best.length() ? run.toString() : best;
+	}
+
+	private static int symbol(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return c - 'A';
+		}
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a';
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the Aho-Corasick automaton of the literals. Transitions are
+	 * completed with the failure links, so the scan takes one step per
+	 * residue.
+	 */
+	private void buildAutomaton(String[] literals) {
+		List<int[]> gotos = new ArrayList<int[]>();
+		List<List<Integer>> matches = new ArrayList<List<Integer>>();
+		gotos.add(newState());
+		matches.add(new ArrayList<Integer>());
+		for (int protease = 0; protease < literals.length; protease++) {
+			String literal = literals[protease];
+			if (literal == null) {
+				continue;
+			}
+			int state = 0;
+			for (int i = 0; i < literal.length(); i++) {
+				int symbol = symbol(literal.charAt(i));
+				if (gotos.get(state)[symbol] < 0) {
+					gotos.get(state)[symbol] = gotos.size();
+					gotos.add(newState());
+					matches.add(new ArrayList<Integer>());
+				}
+				state = gotos.get(state)[symbol];
+			}
+			matches.get(state).add(protease);
+		}
+
+		int[] failure = new int[gotos.size()];
+		List<Integer> queue = new ArrayList<Integer>();
+		for (int symbol = 0; symbol < ALPHABET; symbol++) {
+			int next = gotos.get(0)[symbol];
+			if (next < 0) {
+				gotos.get(0)[symbol] = 0;
+			} else {
+				failure[next] = 0;
+				queue.add(next);
+			}
+		}
+		for (int head = 0; head < queue.size(); head++) {
+			int state = queue.get(head);
+			matches.get(state).addAll(matches.get(failure[state]));
+			for (int symbol = 0; symbol < ALPHABET; symbol++) {
+				int next = gotos.get(state)[symbol];
+				if (next < 0) {
+					gotos.get(state)[symbol] = gotos.get(failure[state])[symbol];
+				} else {
+					failure[next] = gotos.get(failure[state])[symbol];
+					queue.add(next);
+				}
+			}
+		}
+
+		transitions = gotos.toArray(new int[gotos.size()][]);
+		outputs = new int[matches.size()][];
+		for (int state = 0; state < outputs.length; state++) {
+			List<Integer> found = matches.get(state);
+			outputs[state] = new int[found.size()];
+			for (int i = 0; i < found.size(); i++) {
+				outputs[state][i] = found.get(i);
+			}
+		}
+	}
+
+	private static int[] newState() {
+		int[] state = new int[ALPHABET];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	/**
+	 * The cut of one protease in a chain. The residues between the left and
+	 * the right cut are removed by the cleavage.
+	 */
+	public static final class CleavageSite {
+
+		private final ProteaseDescription protease;
+
+		private final int leftCut;
+
+		private final int rightCut;
+
+		CleavageSite(ProteaseDescription protease, int leftCut, int rightCut) {
+			this.protease = protease;
+			this.leftCut = leftCut;
+			this.rightCut = rightCut;
+		}
+
+		public ProteaseDescription getProtease() {
+			return protease;
+		}
+
+		public int getLeftCut() {
+			return leftCut;
+		}
+
+		public int getRightCut() {
+			return rightCut;
+		}
+	}
+
+	/**
+	 * The cleavage sites of all proteases in one chain.
+	 */
+	public static final class SiteMap {
+
+		private final String sequence;
+
+		private final List<CleavageSite> sites;
+
+		SiteMap(String sequence, List<CleavageSite> sites) {
+			this.sequence = sequence;
+			this.sites = Collections.unmodifiableList(sites);
+		}
+
+		public String getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return cleavage sites in the order of the proteases
+		 */
+		public List<CleavageSite> getSites() {
+			return sites;
+		}
+
+		/**
+		 * @param protease
+		 *            protease of the engine
+		 * @return the site of the protease or null, if it does not cleave
+		 *         the chain
+		 */
+		public CleavageSite getSite(ProteaseDescription protease) {
+			for (CleavageSite site : sites) {
+				if (site.getProtease() == protease) {
+					return site;
+				}
+			}
+			return null;
+		}
+
+		public boolean isCleavedBy(ProteaseDescription protease) {
+			return getSite(protease) != null;
+		}
+
+		/**
+		 * Returns the sites cutting the given position, i.e. removing it or
+		 * having a cut right before it.
+		 * 
+		 * @param position
+		 *            0-based position in the chain
+		 * @return sites at the position
+		 */
+		public List<CleavageSite> getSitesAt(int position) {
+			List<CleavageSite> found = new ArrayList<CleavageSite>();
+			for (CleavageSite site : sites) {
+				if (site.getLeftCut() <= position
+						&& (position < site.getRightCut() || position == site
+								.getLeftCut())) {
+					found.add(site);
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * Creates the result {@link ProteaseRegistry#doProteaseCleavage(
+		 * String, ProteaseDescription)} returns for the protease.
+		 * 
+		 * @param protease
+		 *            protease of the engine
+		 * @return cleavage result, without cuts if the protease does not
+		 *         cleave the chain
+		 */
+		public ProteaseCleavageResult toCleavageResult(
+				ProteaseDescription protease) {
+			ProteaseCleavageResult result = new ProteaseCleavageResult(
+					sequence, protease.getAppendedAfter());
+			CleavageSite site = getSite(protease);
+			if (site != null) {
+				result.setLeftCut(site.getLeftCut());
+				result.setRightCut(site.getRightCut());
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.roche.antibody.services.ConfigFileService;
+import org.roche.antibody.services.ProteaseDescription;
+import org.roche.antibody.services.tools.ProteaseCleavageResult;
+import org.roche.antibody.services.tools.ProteaseTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code ProteaseRegistry} holds the protease descriptions of the
+ * configuration together with their compiled motifs. Every motif is compiled
+ * once per case sensitivity; {@link ProteaseTools} compiles it on every
+ * call.
+ * <p>
+ * Compiled patterns are thread-safe, every check and cleavage uses its own
+ * {@link Matcher}. Reloading the descriptions drops all compiled patterns.
+ * 
+ * @version $Id$
+ */
+public class ProteaseRegistry {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ProteaseRegistry.class);
+
+	/** case sensitivity of a description matched ignoring the case */
+	static final String CASE_INSENSITIVE = "CASE_INSENSITIVE";
+
+	private static ProteaseRegistry _instance;
+
+	private final ConcurrentMap<PatternKey, Pattern> patterns = new ConcurrentHashMap<PatternKey, Pattern>();
+
+	private volatile List<ProteaseDescription> descriptions;
+
+	ProteaseRegistry() {
+	}
+
+	public static synchronized ProteaseRegistry getInstance() {
+		if (_instance == null) {
+			_instance = new ProteaseRegistry();
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Returns the protease descriptions, loading them on the first call.
+	 * 
+	 * @return protease descriptions of the configuration
+	 * @throws Exception
+	 *             when the descriptions could not be loaded
+	 */
+	public List<ProteaseDescription> getProteaseDescriptions()
+			throws Exception {
+		List<ProteaseDescription> loaded = descriptions;
+		if (loaded == null) {
+			loaded = reload();
+		}
+		return loaded;
+	}
+
+	/**
+	 * Loads the protease descriptions again and compiles their motifs.
+	 * Patterns compiled before are dropped.
+	 * 
+	 * @return protease descriptions of the configuration
+	 * @throws Exception
+	 *             when the descriptions could not be loaded
+	 */
+	public synchronized List<ProteaseDescription> reload() throws Exception {
+		List<ProteaseDescription> loaded = ConfigFileService.getInstance()
+				.getProteaseDescriptions();
+		patterns.clear();
+		for (ProteaseDescription description : loaded) {
+			try {
+				getPattern(description);
+			} catch (RuntimeException e) {
+				LOG.warn("Invalid motif of protease "
+						+ description.getProteaseName() + ": "
+						+ e.getMessage());
+			}
+		}
+		descriptions = Collections
+				.unmodifiableList(new ArrayList<ProteaseDescription>(loaded));
+		LOG.debug("Compiled " + patterns.size() + " motifs of "
+				+ loaded.size() + " protease descriptions.");
+		return descriptions;
+	}
+
+	/**
+	 * Drops all compiled patterns and the loaded descriptions.
+	 */
+	public synchronized void invalidate() {
+		patterns.clear();
+		descriptions = null;
+	}
+
+	/**
+	 * Returns the compiled motif of the given protease.
+	 * 
+	 * @param description
+	 *            protease description
+	 * @return compiled pattern
+	 */
+	public Pattern getPattern(ProteaseDescription description) {
+		return getPattern(description.getMotif(),
+				description.getCaseSensitivity());
+	}
+
+	/**
+	 * Returns the compiled motif, compiling it on the first request.
+	 * 
+	 * @param motif
+	 *            regular expression of the cleavage site
+	 * @param caseSensitivity
+	 *            {@value #CASE_INSENSITIVE} to ignore the case
+	 * @return compiled pattern
+	 */
+	public Pattern getPattern(String motif, String caseSensitivity) {
+		int flags = CASE_INSENSITIVE.equals(caseSensitivity) ? Pattern.CASE_INSENSITIVE
+				: 0;
+		PatternKey key = new PatternKey(motif, flags);
+		Pattern pattern = patterns.get(key);
+		if (pattern == null) {
+			pattern = Pattern.compile(motif, flags);
+			Pattern existing = patterns.putIfAbsent(key, pattern);
+			if (existing != null) {
+				pattern = existing;
+			}
+		}
+		return pattern;
+	}
+
+	/**
+	 * Checks like {@link ProteaseTools#sequenceHasCleaveSite(String,
+	 * ProteaseDescription)}, whether the protease cleaves the sequence.
+	 * 
+	 * @param sequence
+	 *            peptide sequence
+	 * @param description
+	 *            protease description
+	 * @return true, if the motif matches the sequence
+	 */
+	public boolean sequenceHasCleaveSite(String sequence,
+			ProteaseDescription description) {
+		return getPattern(description).matcher(sequence).matches();
+	}
+
+	/**
+	 * Cleaves the sequence like {@link ProteaseTools#doProteaseCleavage(String,
+	 * ProteaseDescription)}.
+	 * 
+	 * @param sequence
+	 *            peptide sequence
+	 * @param description
+	 *            protease description
+	 * @return cleavage result, without cuts if the motif does not match
+	 */
+	public ProteaseCleavageResult doProteaseCleavage(String sequence,
+			ProteaseDescription description) {
+		ProteaseCleavageResult result = new ProteaseCleavageResult(sequence,
+				description.getAppendedAfter());
+		Matcher matcher = getPattern(description).matcher(sequence);
+		if (matcher.matches()) {
+			result.setLeftCut(matcher.start(description.getCaptureGroup()));
+			result.setRightCut(matcher.end(description.getCaptureGroup()));
+			LOG.debug("Cleaved: " + result.getCuttedSequence());
+		}
+		return result;
+	}
+
+	public int getPatternCount() {
+		return patterns.size();
+	}
+
+	/**
+	 * Identifies a compiled motif.
+	 */
+	private static final class PatternKey {
+
+		private final String motif;
+
+		private final int flags;
+
+		PatternKey(String motif, int flags) {
+			this.motif = motif;
+			this.flags = flags;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * motif.hashCode() + flags;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof PatternKey)) {
+				return false;
+			}
+			PatternKey other = (PatternKey) obj;
+			return flags == other.flags && motif.equals(other.motif);
+		}
+	}
+}
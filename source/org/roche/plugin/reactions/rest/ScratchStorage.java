@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.roche.plugin.reactions.rest.BlastWorkspacePool.BlastWorkspace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 
+ * {@code ScratchStorage} provides the directories for the query and output
+ * files of single BLAST searches. By default they are created in the
+ * temporary directory of the {@link BlastWorkspace}. With
+ * {@link #DIRECTORY} set, e.g. to a tmpfs like {@code /dev/shm}, they are
+ * created there instead, which keeps the file churn off slow or network
+ * file systems.
+ * <p>
+ * Every search gets its own {@link ScratchDirectory}, which is deleted with
+ * all its content when closed. Directories left over by a crashed process
+ * are removed when the storage is created.
+ * 
+ * @version $Id$
+ */
+public class ScratchStorage {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ScratchStorage.class);
+
+	/**
+	 * Directory the scratch directories are created in, the workspace
+	 * directory if not set.
+	 */
+	public static final String DIRECTORY = "detection.scratch.directory";
+
+	/**
+	 * Whether the query is piped to BLAST instead of written to a file.
+	 */
+	public static final String STREAM_QUERY = "detection.scratch.stream-query";
+
+	static final String ROOT_DIRECTORY = "helm-antibody-blast";
+
+	static final String JOB_PREFIX = "job-";
+
+	/** age after which a left over scratch directory is removed */
+	static final long STALE_AGE = 24 * 60 * 60 * 1000L;
+
+	private static ScratchStorage _instance;
+
+	/** null, if the workspace directories are used */
+	private final File root;
+
+	private final boolean streamQuery;
+
+	ScratchStorage(String directory, boolean streamQuery) {
+		this.root = createRoot(directory);
+		this.streamQuery = streamQuery;
+		if (root != null) {
+			removeStale(root, System.currentTimeMillis() - STALE_AGE);
+		}
+	}
+
+	public static synchronized ScratchStorage getInstance() {
+		if (_instance == null) {
+			_instance = new ScratchStorage(DetectionPreferences.getString(
+					DIRECTORY, null), DetectionPreferences.getBoolean(
+					STREAM_QUERY, false));
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * Creates the scratch directory of a search. It must be closed when the
+	 * search is done.
+	 * 
+	 * @param workspace
+	 *            workspace of the search
+	 * @return new empty directory
+	 * @throws IOException
+	 */
+	public ScratchDirectory createDirectory(BlastWorkspace workspace)
+			throws IOException {
+		File parent = root != null ? root : workspace.getTemporaryDirectory();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create " + parent);
+		}
+		return new ScratchDirectory(Files.createTempDirectory(
+				parent.toPath(), JOB_PREFIX).toFile());
+	}
+
+	public boolean isStreamingQueries() {
+		return streamQuery;
+	}
+
+	/**
+	 * @return configured scratch root or null, if the workspace directories
+	 *         are used
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	private static File createRoot(String directory) {
+		if (directory == null || directory.trim().isEmpty()) {
+			return null;
+		}
+		File base = new File(directory.trim());
+		if (!base.isDirectory() || !base.canWrite()) {
+			LOG.warn("Scratch directory " + base
+					+ " is not writable, using the BLAST workspaces.");
+			return null;
+		}
+		File root = new File(base, ROOT_DIRECTORY);
+		if (!root.isDirectory() && !root.mkdirs()) {
+			LOG.warn("Could not create " + root
+					+ ", using the BLAST workspaces.");
+			return null;
+		}
+		return root;
+	}
+
+	/**
+	 * Removes scratch directories not modified since the given time. Running
+	 * searches of other processes sharing the root are younger.
+	 */
+	static void removeStale(File root, long modifiedBefore) {
+		File[] directories = root.listFiles();
+		if (directories == null) {
+			return;
+		}
+		for (File directory : directories) {
+			if (directory.getName().startsWith(JOB_PREFIX)
+					&& directory.lastModified() < modifiedBefore) {
+				LOG.debug("Removing left over scratch directory " + directory);
+				FileUtils.deleteQuietly(directory);
+			}
+		}
+	}
+
+	/**
+	 * The directory of a single search.
+	 */
+	public static final class ScratchDirectory implements Closeable {
+
+		private final File directory;
+
+		ScratchDirectory(File directory) {
+			this.directory = directory;
+		}
+
+		public File getDirectory() {
+			return directory;
+		}
+
+		/**
+		 * Returns a file in the directory, which does not exist yet.
+		 * 
+		 * @param name
+		 *            name of the file
+		 * @return file in the directory
+		 */
+		public File getFile(String name) {
+			return new File(directory, name);
+		}
+
+		/**
+		 * Deletes the directory with all its content.
+		 */
+		@Override
+		public void close() {
+			FileUtils.deleteQuietly(directory);
+		}
+
+		@Override
+		public String toString() {
+			return directory.toString();
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+import org.roche.antibody.services.DomainDetectionSettings;
+import org.roche.antibody.services.DomainDetectionSettingsService;
+
+import com.quattroresearch.antibody.FindMutations;
+import com.quattroresearch.antibody.UnknownMutation;
+import com.quattroresearch.blastws.BlastHit;
+
+/**
+ * 
+ * {@code SmithWatermanAligner} finds the best local alignment of a query to
+ * every library entry with the scoring of blastp, i.e. BLOSUM62 with gap open
+ * 11 and gap extension 1. Hits are reported with the e-value and bit score of
+ * the Karlin-Altschul statistics and filtered by the e-value and number of
+ * alignments of the domain detection settings, like BLAST does.
+ * <p>
+ * The query is the short side of the dynamic programming matrix, so every
+ * alignment takes query length times entry length steps. The score columns
+ * and the traceback matrix are reused per thread.
+ * 
+ * @version $Id$
+ */
+public class SmithWatermanAligner implements DomainAligner {
+
+	static final int GAP_OPEN = 11;
+
+	static final int GAP_EXTEND = 1;
+
+	/** gapped Karlin-Altschul parameters of BLOSUM62 with gaps 11/1 */
+	static final double LAMBDA = 0.267;
+
+	static final double K = 0.041;
+
+	/** e-value of blastp, if the settings do not give one */
+	private static final double DEFAULT_EVALUE = 10.0;
+
+	private static final String RESIDUES = "ARNDCQEGHILKMFPSTWYVBZX*";
+
+	private static final int[][] BLOSUM62 = {
+			{ 4, -1, -2, -2, 0, -1, -1, 0, -2, -1, -1, -1, -1, -2, -1, 1, 0, -3, -2, 0, -2, -1, 0, -4 },
+			{ -1, 5, 0, -2, -3, 1, 0, -2, 0, -3, -2, 2, -1, -3, -2, -1, -1, -3, -2, -3, -1, 0, -1, -4 },
+			{ -2, 0, 6, 1, -3, 0, 0, 0, 1, -3, -3, 0, -2, -3, -2, 1, 0, -4, -2, -3, 3, 0, -1, -4 },
+			{ -2, -2, 1, 6, -3, 0, 2, -1, -1, -3, -4, -1, -3, -3, -1, 0, -1, -4, -3, -3, 4, 1, -1, -4 },
+			{ 0, -3, -3, -3, 9, -3, -4, -3, -3, -1, -1, -3, -1, -2, -3, -1, -1, -2, -2, -1, -3, -3, -2, -4 },
+			{ -1, 1, 0, 0, -3, 5, 2, -2, 0, -3, -2, 1, 0, -3, -1, 0, -1, -2, -1, -2, 0, 3, -1, -4 },
+			{ -1, 0, 0, 2, -4, 2, 5, -2, 0, -3, -3, 1, -2, -3, -1, 0, -1, -3, -2, -2, 1, 4, -1, -4 },
+			{ 0, -2, 0, -1, -3, -2, -2, 6, -2, -4, -4, -2, -3, -3, -2, 0, -2, -2, -3, -3, -1, -2, -1, -4 },
+			{ -2, 0, 1, -1, -3, 0, 0, -2, 8, -3, -3, -1, -2, -1, -2, -1, -2, -2, 2, -3, 0, 0, -1, -4 },
+			{ -1, -3, -3, -3, -1, -3, -3, -4, -3, 4, 2, -3, 1, 0, -3, -2, -1, -3, -1, 3, -3, -3, -1, -4 },
+			{ -1, -2, -3, -4, -1, -2, -3, -4, -3, 2, 4, -2, 2, 0, -3, -2, -1, -2, -1, 1, -4, -3, -1, -4 },
+			{ -1, 2, 0, -1, -3, 1, 1, -2, -1, -3, -2, 5, -1, -3, -1, 0, -1, -3, -2, -2, 0, 1, -1, -4 },
+			{ -1, -1, -2, -3, -1, 0, -2, -3, -2, 1, 2, -1, 5, 0, -2, -1, -1, -1, -1, 1, -3, -1, -1, -4 },
+			{ -2, -3, -3, -3, -2, -3, -3, -3, -1, 0, 0, -3, 0, 6, -4, -2, -2, 1, 3, -1, -3, -3, -1, -4 },
+			{ -1, -2, -2, -1, -3, -1, -1, -2, -2, -3, -3, -1, -2, -4, 7, -1, -1, -4, -3, -2, -2, -1, -2, -4 },
+			{ 1, -1, 1, 0, -1, 0, 0, 0, -1, -2, -2, 0, -1, -2, -1, 4, 1, -3, -2, -2, 0, 0, 0, -4 },
+			{ 0, -1, 0, -1, -1, -1, -1, -2, -2, -1, -1, -1, -1, -2, -1, 1, 5, -2, -2, 0, -1, -1, 0, -4 },
+			{ -3, -3, -4, -4, -2, -2, -3, -2, -2, -3, -2, -3, -1, 1, -4, -3, -2, 11, 2, -3, -4, -3, -2, -4 },
+			{ -2, -2, -2, -3, -2, -1, -2, -3, 2, -1, -1, -2, -1, 3, -3, -2, -2, 2, 7, -1, -3, -2, -1, -4 },
+			{ 0, -3, -3, -3, -1, -2, -2, -3, -3, 3, 1, -2, 1, -1, -2, -2, 0, -3, -1, 4, -3, -2, -1, -4 },
+			{ -2, -1, 3, 4, -3, 0, 1, -1, 0, -3, -4, 0, -3, -3, -2, 0, -1, -4, -3, -3, 4, 1, -1, -4 },
+			{ -1, 0, 0, 1, -3, 3, 4, -2, 0, -3, -3, 1, -1, -3, -1, 0, -1, -3, -2, -2, 1, 4, -1, -4 },
+			{ 0, -1, -1, -1, -2, -1, -1, -1, -1, -1, -1, -1, -1, -1, -2, 0, 0, -2, -1, -1, -1, -1, -1, -4 },
+			{ -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, 1 } };
+
+	/** matrix index of every character, unknown ones count as X */
+	private static final int[] INDEX = new int[128];
+
+	static {
+		Arrays.fill(INDEX, RESIDUES.indexOf('X'));
+		for (int i = 0; i < RESIDUES.length(); i++) {
+			INDEX[RESIDUES.charAt(i)] = i;
+			INDEX[Character.toLowerCase(RESIDUES.charAt(i))] = i;
+		}
+	}
+
+	/** traceback: source of the cell score in the lowest two bits */
+	private static final int FROM_DIAGONAL = 1;
+
+	private static final int FROM_GAP_IN_QUERY = 2;
+
+	private static final int FROM_GAP_IN_TEMPLATE = 3;
+
+	private static final int SOURCE_MASK = 3;
+
+	/** traceback: the gap was extended rather than opened */
+	private static final int QUERY_GAP_EXTENDED = 4;
+
+	private static final int TEMPLATE_GAP_EXTENDED = 8;
+
+	private static final int NEGATIVE_INFINITY = Integer.MIN_VALUE / 2;
+
+	private static final ThreadLocal<Matrices> MATRICES = new ThreadLocal<Matrices>() {
+		@Override
+		protected Matrices initialValue() {
+			return new Matrices();
+		}
+	};
+
+	@Override
+	public List<BlastHit> align(String query, List<DomainLibraryValues> library,
+			Set<DomainUsage> usages) {
+		DomainDetectionSettings settings = DomainDetectionSettingsService
+				.getInstance().getCurrentSettings();
+		double maxEValue = settings.getBlastParamEValue() > -1.0 ? settings
+				.getBlastParamEValue() : DEFAULT_EVALUE;
+		return align(query, library, usages, maxEValue,
+				settings.getBlastParamNumAlignments());
+	}
+
+	/**
+	 * Aligns the query to the library entries of the given usages.
+	 * 
+	 * @param maxEValue
+	 *            highest e-value of a reported hit
+	 * @param numAlignments
+	 *            maximum number of hits, 0 or less for all
+	 * @return hits, best first
+	 */
+	List<BlastHit> align(String query, List<DomainLibraryValues> library,
+			Set<DomainUsage> usages, double maxEValue, int numAlignments) {
+		List<DomainLibraryValues> entries = new ArrayList<DomainLibraryValues>();
+		long databaseLength = 0;
+		for (DomainLibraryValues values : library) {
+			if (values.getSequence() != null
+					&& usages.contains(values.getDomainUsage())) {
+				entries.add(values);
+				databaseLength += values.getSequence().length();
+			}
+		}
+		List<BlastHit> hits = new ArrayList<BlastHit>();
+		int[] encodedQuery = encode(query);
+		if (encodedQuery.length == 0 || databaseLength == 0) {
+			return hits;
+		}
+
+		int minScore = minimumScore(encodedQuery.length, databaseLength,
+				maxEValue);
+		if (maximumScore(encodedQuery) < minScore) {
+			// not even an identical alignment would be significant
+			return hits;
+		}
+		Matrices matrices = MATRICES.get();
+		String upperCaseQuery = query.toUpperCase();
+		for (DomainLibraryValues values : entries) {
+			BlastHit hit = align(upperCaseQuery, encodedQuery, values,
+					minScore, databaseLength, matrices);
+			if (hit != null) {
+				hits.add(hit);
+			}
+		}
+
+		Collections.sort(hits, new Comparator<BlastHit>() {
+			@Override
+			public int compare(BlastHit h1, BlastHit h2) {
+				return Double.compare(h2.getScore(), h1.getScore());
+			}
+		});
+		if (numAlignments > 0 && hits.size() > numAlignments) {
+			hits = new ArrayList<BlastHit>(hits.subList(0, numAlignments));
+		}
+		return hits;
+	}
+
+	/**
+	 * Computes the best local alignment of the query to one library entry.
+	 * 
+	 * @return hit of the alignment or null, if its score is below the minimum
+	 */
+	private BlastHit align(String query, int[] encodedQuery,
+			DomainLibraryValues values, int minScore, long databaseLength,
+			Matrices matrices) {
+		String template = values.getSequence().toUpperCase();
+		int[] encodedTemplate = encode(template);
+		int rows = encodedQuery.length;
+		int columns = encodedTemplate.length;
+		matrices.ensureCapacity(rows, columns);
+		int[] h = matrices.h;
+		int[] e = matrices.e;
+		byte[] trace = matrices.trace;
+		Arrays.fill(h, 0, rows + 1, 0);
+		Arrays.fill(e, 0, rows + 1, NEGATIVE_INFINITY);
+
+		int best = 0;
+		int bestRow = 0;
+		int bestColumn = 0;
+		for (int j = 1; j <= columns; j++) {
+			int[] scores = BLOSUM62[encodedTemplate[j - 1]];
+			int diagonal = 0;
+			int up = 0;
+			int f = NEGATIVE_INFINITY;
+			for (int i = 1; i <= rows; i++) {
+				int direction = 0;
+
+				// gap in the query, coming from the left
+				int open = h[i] - GAP_OPEN - GAP_EXTEND;
+				int extend = e[i] - GAP_EXTEND;
+				if (extend > open) {
+					e[i] = extend;
+					direction |= QUERY_GAP_EXTENDED;
+				} else {
+					e[i] = open;
+				}
+
+				// gap in the template, coming from above
+				open = up - GAP_OPEN - GAP_EXTEND;
+				extend = f - GAP_EXTEND;
+				if (extend > open) {
+					f = extend;
+					direction |= TEMPLATE_GAP_EXTENDED;
+				} else {
+					f = open;
+				}
+
+				int score = 0;
+				int source = 0;
+				int match = diagonal + scores[encodedQuery[i - 1]];
+				if (match > score) {
+					score = match;
+					source = FROM_DIAGONAL;
+				}
+				if (e[i] > score) {
+					score = e[i];
+					source = FROM_GAP_IN_QUERY;
+				}
+				if (f > score) {
+					score = f;
+					source = FROM_GAP_IN_TEMPLATE;
+				}
+
+				diagonal = h[i];
+				h[i] = score;
+				up = score;
+				trace[i * (columns + 1) + j] = (byte) (direction | source);
+				if (score > best) {
+					best = score;
+					bestRow = i;
+					bestColumn = j;
+				}
+			}
+		}
+		if (best < minScore) {
+			return null;
+		}
+
+		// trace back from the best cell to the start of the alignment
+		StringBuilder queryLine = new StringBuilder();
+		StringBuilder templateLine = new StringBuilder();
+		int identities = 0;
+		int i = bestRow;
+		int j = bestColumn;
+		int state = 0;
+		while (i > 0 && j > 0) {
+			int direction = trace[i * (columns + 1) + j];
+			if (state == FROM_GAP_IN_QUERY) {
+				queryLine.append('-');
+				templateLine.append(template.charAt(j - 1));
+				state = (direction & QUERY_GAP_EXTENDED) != 0 ? FROM_GAP_IN_QUERY
+						: 0;
+				j--;
+			} else if (state == FROM_GAP_IN_TEMPLATE) {
+				queryLine.append(query.charAt(i - 1));
+				templateLine.append('-');
+				state = (direction & TEMPLATE_GAP_EXTENDED) != 0 ? FROM_GAP_IN_TEMPLATE
+						: 0;
+				i--;
+			} else if ((direction & SOURCE_MASK) == FROM_DIAGONAL) {
+				queryLine.append(query.charAt(i - 1));
+				templateLine.append(template.charAt(j - 1));
+				if (query.charAt(i - 1) == template.charAt(j - 1)) {
+					identities++;
+				}
+				i--;
+				j--;
+			} else if ((direction & SOURCE_MASK) == 0) {
+				break;
+			} else {
+				state = direction & SOURCE_MASK;
+			}
+		}
+		queryLine.reverse();
+		templateLine.reverse();
+
+		return createHit(values, queryLine.toString(),
+				templateLine.toString(), i + 1, bestRow, j + 1, bestColumn,
+				identities, best, encodedQuery.length, databaseLength);
+	}
+
+	/**
+	 * Creates the hit the BLAST parser would create for the alignment.
+	 */
+	private BlastHit createHit(DomainLibraryValues values, String queryLine,
+			String templateLine, int begin, int end, int templateBegin,
+			int templateEnd, int identities, int score, int queryLength,
+			long databaseLength) {
+		BlastHit hit = new BlastHit((long) begin, (long) end,
+				values.getShortName());
+		hit.setLength(values.getSequence().length());
+		hit.setIdentity((double) identities / queryLine.length());
+		hit.setEValue(K * queryLength * databaseLength
+				* Math.exp(-LAMBDA * score));
+		hit.setScore((LAMBDA * score - Math.log(K)) / Math.log(2));
+		hit.setTemplateBegin(templateBegin);
+		hit.setTemplateEnd(templateEnd);
+		hit.setAlignmentLineSequence(queryLine);
+		hit.setAlignmentLineTemplate(templateLine);
+		String lineSeparator = System.getProperty("line.separator");
+		hit.setOriginalBlastAlignment("Alignment: " + lineSeparator
+				+ String.format("%03d", templateBegin) + " " + templateLine
+				+ " " + String.format("%03d", templateEnd) + lineSeparator
+				+ String.format("%03d", begin) + " " + queryLine + " "
+				+ String.format("%03d", end));
+
+		// every template cystein gets an entry, only conserved ones are filled
+		List<Integer[]> cysteins = new ArrayList<Integer[]>();
+		int queryGaps = 0;
+		for (int column = 0; column < templateLine.length(); column++) {
+			if (queryLine.charAt(column) == '-') {
+				queryGaps++;
+			}
+			if (templateLine.charAt(column) == 'C') {
+				Integer[] cystein = new Integer[2];
+				if (queryLine.charAt(column) == 'C') {
+					cystein[0] = column + 1 - queryGaps + begin - 1;
+					cystein[1] = column + 1;
+				}
+				cysteins.add(cystein);
+			}
+		}
+		hit.setConservedCysteins(cysteins.toArray(new Integer[cysteins.size()][]));
+		hit.setInternalBonds(ExactMatchIndex.getInternalBonds(values));
+		hit.setUnknownMutations(new ArrayList<UnknownMutation>(FindMutations
+				.findUnknownMutations(queryLine, templateLine, templateBegin)));
+		return hit;
+	}
+
+	/**
+	 * Returns the lowest score with an e-value not above the given one.
+	 */
+	static int minimumScore(int queryLength, long databaseLength,
+			double maxEValue) {
+		double score = Math.log(K * queryLength * databaseLength / maxEValue)
+				/ LAMBDA;
+		return Math.max(1, (int) Math.ceil(score));
+	}
+
+	private static int maximumScore(int[] encodedQuery) {
+		int score = 0;
+		for (int residue : encodedQuery) {
+			int best = Integer.MIN_VALUE;
+			for (int value : BLOSUM62[residue]) {
+				best = Math.max(best, value);
+			}
+			score += best;
+		}
+		return score;
+	}
+
+	private static int[] encode(String sequence) {
+		int[] encoded = new int[sequence.length()];
+		for (int i = 0; i < encoded.length; i++) {
+			char residue = sequence.charAt(i);
+			encoded[i] = residue < INDEX.length ? INDEX[residue] : INDEX['X'];
+		}
+		return encoded;
+	}
+
+	/**
+	 * Score columns and traceback matrix of one thread, grown on demand.
+	 */
+	private static final class Matrices {
+
+		private int[] h = new int[0];
+
+		private int[] e = new int[0];
+
+		private byte[] trace = new byte[0];
+
+		void ensureCapacity(int rows, int columns) {
+			if (h.length < rows + 1) {
+				h = new int[rows + 1];
+				e = new int[rows + 1];
+			}
+			int cells = (rows + 1) * (columns + 1);
+			if (trace.length < cells) {
+				trace = new byte[cells];
+			}
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright C 2016, Roche pREDi (Roche Innovation Center Munich)
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated
+ * documentation files (the "Software"), to deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the
+ * Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE
+ * WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ ******************************************************************************/
+
+package org.roche.plugin.reactions.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.Executor;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.plugin.reactions.rest.BlastWorkspacePool.BlastWorkspace;
+import org.roche.plugin.reactions.rest.ScratchStorage.ScratchDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.quattroresearch.blastws.BlastHit;
+import com.quattroresearch.blastws.BlastParser;
+import com.quattroresearch.blastws.BlastSearchParams;
+import com.quattroresearch.blastws.BlastSearchService;
+import com.quattroresearch.blastws.LocalConfig;
+import com.quattroresearch.blastws.NCBIBlastAPI;
+import com.quattroresearch.blastws.OSUtils;
+
+/**
+ * 
+ * {@code StoreBlastSearchService} searches protein queries against the
+ * databases of a {@link BlastWorkspace} instead of the protein library
+ * directory of {@code LocalConfig}. Query and output files are written to a
+ * directory of the {@link ScratchStorage} per search, so searches in
+ * different workspaces run independently of each other.
+ * <p>
+ * With an {@link ExactMatchIndex} set, library domains contained verbatim in
+ * the query are taken from the index and BLAST only searches the remainder.
+ * With a {@link KmerIndex} set, BLAST is skipped for queries no library entry
+ * can be found in above the detection thresholds. Queries up to
+ * {@link #FRAGMENT_MAX_LENGTH} residues are aligned in-process by the
+ * {@link DomainAligner} set, if any.
+ * 
+ * @version $Id$
+ */
+public class StoreBlastSearchService extends BlastSearchService {
+	/** The Logger for this class */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(StoreBlastSearchService.class);
+
+	/** Milliseconds after which a BLAST process is killed. */
+	public static final String BLAST_TIMEOUT = "detection.blast.timeout";
+
+	public static final long DEFAULT_BLAST_TIMEOUT = 60 * 1000L;
+
+	/**
+	 * Maximal length of queries aligned by the fragment aligner instead of
+	 * BLAST, 0 disables it.
+	 */
+	public static final String FRAGMENT_MAX_LENGTH = "detection.fragment-aligner.max-length";
+
+	public static final int DEFAULT_FRAGMENT_MAX_LENGTH = 30;
+
+	private final BlastWorkspace workspace;
+
+	private String bestAlignment;
+
+	private ExactMatchIndex exactMatchIndex;
+
+	private KmerIndex kmerIndex;
+
+	private double minIdentity;
+
+	private double minCoverage;
+
+	private DomainAligner fragmentAligner;
+
+	private List<DomainLibraryValues> fragmentLibrary;
+
+	private int fragmentMaxLength;
+
+	/**
+	 * @param workspace
+	 *            checked out workspace containing the indexed databases
+	 */
+	public StoreBlastSearchService(BlastWorkspace workspace) {
+		this.workspace = workspace;
+	}
+
+	@Override
+	public BlastHit[] searchSequence(BlastSearchParams params, String dbSuffix)
+			throws Exception {
+		if (params.getSequenceType().equals("DNA")) {
+			return super.searchSequence(params, dbSuffix);
+		}
+
+		List<BlastHit> hits;
+		List<BlastHit> exactHits = exactMatchIndex == null ? null
+				: exactMatchIndex.findHits(params.getQuery(),
+						ExactMatchIndex.getUsages(dbSuffix));
+		if (exactHits == null || exactHits.isEmpty()) {
+			hits = searchDatabases(params, dbSuffix);
+		} else {
+			hits = searchRemainders(params, dbSuffix, exactHits);
+		}
+		LOG.debug("Found " + hits.size() + " blastHits.");
+		return hits.toArray(new BlastHit[hits.size()]);
+	}
+
+	/**
+	 * Uses the given exact matches and searches only the parts of the query
+	 * not covered by them with BLAST.
+	 */
+	private List<BlastHit> searchRemainders(BlastSearchParams params,
+			String dbSuffix, List<BlastHit> exactHits) throws Exception {
+		String query = params.getQuery();
+		boolean[] covered = new boolean[query.length()];
+		for (BlastHit hit : exactHits) {
+			for (long i = hit.getBegin() - 1; i < hit.getEnd(); i++) {
+				covered[(int) i] = true;
+			}
+		}
+
+		List<BlastHit> hits = new ArrayList<BlastHit>(exactHits);
+		try {
+			int start = 0;
+			while (start < covered.length) {
+				if (covered[start]) {
+					start++;
+					continue;
+				}
+				int end = start;
+				while (end < covered.length && !covered[end]) {
+					end++;
+				}
+				params.setQuery(query.substring(start, end));
+				for (BlastHit hit : searchDatabases(params, dbSuffix)) {
+					shift(hit, start);
+					hits.add(hit);
+				}
+				start = end;
+			}
+		} finally {
+			params.setQuery(query);
+		}
+		LOG.debug(exactHits.size() + " exact matches, BLAST used for "
+				+ (hits.size() - exactHits.size()) + " further hits.");
+		return hits;
+	}
+
+	/**
+	 * Moves a hit of a partial query to its position in the full query.
+	 */
+	private static void shift(BlastHit hit, int offset) {
+		hit.setBegin(hit.getBegin() + offset);
+		hit.setEnd(hit.getEnd() + offset);
+		for (Integer[] cysteins : hit.getConservedCysteins()) {
+			if (cysteins[0] != null) {
+				cysteins[0] += offset;
+			}
+		}
+	}
+
+	private List<BlastHit> searchDatabases(BlastSearchParams params,
+			String dbSuffix) throws Exception {
+		List<BlastHit> hits = new ArrayList<BlastHit>();
+		if (kmerIndex != null
+				&& !kmerIndex.hasCandidates(params.getQuery(),
+						ExactMatchIndex.getUsages(dbSuffix), minIdentity,
+						minCoverage)) {
+			LOG.debug("No library domain can match the query, BLAST skipped.");
+			return hits;
+		}
+		if (fragmentAligner != null
+				&& params.getQuery().length() <= fragmentMaxLength) {
+			hits.addAll(fragmentAligner.align(params.getQuery(),
+					fragmentLibrary, ExactMatchIndex.getUsages(dbSuffix)));
+			if (!hits.isEmpty()) {
+				bestAlignment = hits.get(0).getOriginalBlastAlignment();
+			}
+			return hits;
+		}
+		for (File database : getDatabases(dbSuffix)) {
+			// an empty library part is not indexed and has no hits
+			if (database.length() > 0) {
+				hits.addAll(search(params, database));
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Returns the databases of the workspace matching the suffix the same way
+	 * {@link NCBIBlastAPI} does.
+	 */
+	private File[] getDatabases(final String dbSuffix) throws IOException {
+		File[] databases = workspace.getDatabaseDirectory().listFiles(
+				new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.endsWith(".fa")
+								&& (dbSuffix == null || name.endsWith(dbSuffix
+										+ ".fa"));
+					}
+				});
+		if (databases == null) {
+			throw new IOException("Databases of " + workspace
+					+ " cannot be read.");
+		}
+		return databases;
+	}
+
+	private List<BlastHit> search(BlastSearchParams params, File database)
+			throws Exception {
+		LOG.debug("Running Blast query for protein against " + database);
+		ScratchStorage storage = ScratchStorage.getInstance();
+		String query = ">query\n" + params.getQuery();
+		try (ScratchDirectory scratch = storage.createDirectory(workspace)) {
+			String command = LocalConfig.getInstance().getBlastp() + " -db "
+					+ database.getAbsolutePath();
+			InputStream input = null;
+			if (storage.isStreamingQueries()) {
+				// without -query blastp reads the query from stdin
+				input = new ByteArrayInputStream(query.getBytes());
+			} else {
+				File queryFile = scratch.getFile("query.fa");
+				OSUtils.writeToFile(queryFile, query);
+				command += " -query " + queryFile.getAbsolutePath();
+			}
+			// BlastParser only reads files, so the output is written to the
+			// scratch directory
+			File outputFile = scratch.getFile(database.getName() + ".out");
+			ByteArrayOutputStream error = new ByteArrayOutputStream();
+			int exitValue = runBlast(command + params.getParameterString(),
+					input, outputFile, error);
+			if (exitValue != 0) {
+				// an empty output must not be taken, and cached, as no hits
+				throw new Exception("blastp exited with " + exitValue + ": "
+						+ error.toString());
+			}
+
+			BlastParser parser = new BlastParser(outputFile);
+			parser.parse();
+			bestAlignment = parser.getBestAlignmentAsString();
+			return parser.findHits();
+		}
+	}
+
+	/**
+	 * Sets the index used to find library domains contained verbatim in the
+	 * query. Only the rest of the query is then searched with BLAST.
+	 * 
+	 * @param exactMatchIndex
+	 *            index of the searched library, null to always use BLAST
+	 */
+	public void setExactMatchIndex(ExactMatchIndex exactMatchIndex) {
+		this.exactMatchIndex = exactMatchIndex;
+	}
+
+	/**
+	 * Sets the index used to skip BLAST for queries, in which no library entry
+	 * can be found with the given identity and coverage. Hits below these
+	 * thresholds must be of no interest to the caller.
+	 * 
+	 * @param kmerIndex
+	 *            index of the searched library, null to always use BLAST
+	 * @param minIdentity
+	 *            minimal identity of a hit, between 0 and 1
+	 * @param minCoverage
+	 *            minimal coverage of a hit, between 0 and 1
+	 */
+	public void setKmerIndex(KmerIndex kmerIndex, double minIdentity,
+			double minCoverage) {
+		this.kmerIndex = kmerIndex;
+		this.minIdentity = minIdentity;
+		this.minCoverage = minCoverage;
+	}
+
+	/**
+	 * Sets the aligner used instead of BLAST for short queries, e.g. the
+	 * fragments left by a protease cleavage.
+	 * 
+	 * @param fragmentAligner
+	 *            in-process aligner, null to always use BLAST
+	 * @param library
+	 *            library the databases of the workspace were built from
+	 * @param maxLength
+	 *            maximal length of the queries passed to the aligner
+	 */
+	public void setFragmentAligner(DomainAligner fragmentAligner,
+			List<DomainLibraryValues> library, int maxLength) {
+		this.fragmentAligner = fragmentAligner;
+		this.fragmentLibrary = library;
+		this.fragmentMaxLength = maxLength;
+	}
+
+	@Override
+	public String getBestAlignment() {
+		return bestAlignment;
+	}
+
+	public BlastWorkspace getWorkspace() {
+		return workspace;
+	}
+
+	/**
+	 * Runs a BLAST command like {@link OSUtils#exec(String, PrintStream,
+	 * PrintStream)}, but destroys the process when the calling thread is
+	 * interrupted, e.g. by cancelling an asynchronous detection.
+	 * 
+	 * @param input
+	 *            standard input of the process, may be null
+	 * @throws Exception
+	 *             when the process was killed after {@link #BLAST_TIMEOUT}
+	 */
+	private int runBlast(String command, InputStream input, File outputFile,
+			OutputStream error) throws Exception {
+		long timeout = DetectionPreferences.getLong(BLAST_TIMEOUT,
+				DEFAULT_BLAST_TIMEOUT);
+		ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
+		DefaultExecuteResultHandler resultHandler = new DefaultExecuteResultHandler();
+		try (PrintStream output = new PrintStream(outputFile)) {
+			Executor executor = new DefaultExecutor();
+			executor.setStreamHandler(new PumpStreamHandler(output, error,
+					input));
+			executor.setWatchdog(watchdog);
+			executor.execute(CommandLine.parse(command), resultHandler);
+			try {
+				resultHandler.waitFor();
+			} catch (InterruptedException e) {
+				LOG.debug("BLAST search in " + workspace + " cancelled.");
+				watchdog.destroyProcess();
+				throw e;
+			}
+		}
+		if (watchdog.killedProcess()) {
+			throw new Exception("BLAST search in " + workspace
+					+ " was killed after " + timeout + " ms.");
+		}
+		return resultHandler.getExitValue();
+	}
+}
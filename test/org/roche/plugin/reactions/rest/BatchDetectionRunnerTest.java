@@ -0,0 +1,144 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Peptide;
+import org.roche.plugin.reactions.rest.BatchDetectionRunner.Construct;
+import org.roche.plugin.reactions.rest.BatchDetectionRunner.FastaConstructReader;
+import org.roche.plugin.reactions.rest.BatchDetectionRunner.ResultHandler;
+
+
+/**
+ * 
+ * {@code BatchDetectionRunnerTest} checks how the FASTA input of a batch detection is grouped into constructs and
+ * where a resumed batch continues.
+ * 
+ * @version $Id$
+ */
+public class BatchDetectionRunnerTest {
+
+	private static final String FASTA = "comment before the first record\n"
+			+ ">mAb1|HC\n"
+			+ "EVQLVESGGG LVQPGG\n"
+			+ "slrlscaas\n"
+			+ ">mAb1|LC\n"
+			+ "DIQMTQSPSS\n"
+			+ ">mAb2|HC\n"
+			+ "QVQLVQSGAE\n"
+			+ ">fragment\n"
+			+ "\n"
+			+ ">mAb1|HC2\n"
+			+ "EVQLVESGGG\n";
+
+	@Test
+	public void testConstructGrouping() throws Exception {
+		List<Construct> constructs = readAll(FASTA);
+
+		Assert.assertEquals(4, constructs.size());
+		assertConstruct(constructs.get(0), 0, 0, "mAb1", Arrays.asList("HC", "LC"),
+				Arrays.asList("EVQLVESGGGLVQPGGSLRLSCAAS", "DIQMTQSPSS"));
+		assertConstruct(constructs.get(1), 1, 2, "mAb2", Arrays.asList("HC"), Arrays.asList("QVQLVQSGAE"));
+		assertConstruct(constructs.get(2), 2, 3, "fragment", Arrays.asList("fragment"), Arrays.asList(""));
+		// records of a construct have to be consecutive
+		assertConstruct(constructs.get(3), 3, 4, "mAb1", Arrays.asList("HC2"), Arrays.asList("EVQLVESGGG"));
+	}
+
+	@Test
+	public void testEmptyInput() throws Exception {
+		Assert.assertTrue(readAll("").isEmpty());
+		Assert.assertTrue(readAll("no record\n").isEmpty());
+	}
+
+	@Test
+	public void testResumeOffsets() throws Exception {
+		// the checkpoint after every construct is the offset of the next one
+		List<Construct> constructs = readAll(FASTA);
+		for (int i = 0; i + 1 < constructs.size(); i++) {
+			Construct construct = constructs.get(i);
+			Assert.assertEquals(constructs.get(i + 1).getRecordOffset(),
+					construct.getRecordOffset() + construct.getChainNames().size());
+		}
+		Construct last = constructs.get(constructs.size() - 1);
+		Assert.assertEquals(5, last.getRecordOffset() + last.getChainNames().size());
+	}
+
+	@Test
+	public void testResumeAfterLastRecord() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+
+		long done = new BatchDetectionRunner(2, 4).run(new StringReader(FASTA), 5, handler);
+
+		Assert.assertEquals(5, done);
+		Assert.assertTrue(handler.constructs.isEmpty());
+		Assert.assertTrue(handler.checkpoints.isEmpty());
+	}
+
+	private static List<Construct> readAll(String fasta) throws Exception {
+		FastaConstructReader reader = new FastaConstructReader(new StringReader(fasta));
+		List<Construct> constructs = new ArrayList<Construct>();
+		Construct construct;
+		while ((construct = reader.next()) != null) {
+			constructs.add(construct);
+		}
+		return constructs;
+	}
+
+	private static void assertConstruct(Construct construct, long ordinal, long recordOffset, String name,
+			List<String> chainNames, List<String> chainSequences) {
+		Assert.assertEquals(ordinal, construct.getOrdinal());
+		Assert.assertEquals(recordOffset, construct.getRecordOffset());
+		Assert.assertEquals(name, construct.getName());
+		Assert.assertEquals(chainNames, construct.getChainNames());
+		Assert.assertEquals(chainSequences, construct.getChainSequences());
+	}
+
+	private static class RecordingHandler implements ResultHandler {
+
+		private final List<Construct> constructs = new ArrayList<Construct>();
+
+		private final List<Long> checkpoints = new ArrayList<Long>();
+
+		@Override
+		public void detected(Construct construct, List<Peptide> peptides) {
+			constructs.add(construct);
+		}
+
+		@Override
+		public void failed(Construct construct, Exception e) {
+			constructs.add(construct);
+		}
+
+		@Override
+		public void checkpoint(long recordOffset) {
+			checkpoints.add(recordOffset);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * 
+ * {@code BlastDatabaseStoreTest} checks that library versions are only removed when nobody searches them.
+ * 
+ * @version $Id$
+ */
+public class BlastDatabaseStoreTest {
+
+	@Test
+	public void testRemoveUnused() throws Exception {
+		File root = Files.createTempDirectory("blastdb-store").toFile();
+		try {
+			File version = version(root, "unused");
+
+			Assert.assertTrue(BlastDatabaseStore.getInstance().remove(version));
+			Assert.assertFalse(version.exists());
+		} finally {
+			FileUtils.deleteQuietly(root);
+		}
+	}
+
+	@Test
+	public void testKeepSearched() throws Exception {
+		File root = Files.createTempDirectory("blastdb-store").toFile();
+		try {
+			File version = version(root, "searched");
+
+			// the shared lock of a reader
+			try (FileChannel channel = FileChannel.open(new File(version, BlastDatabaseStore.LOCK_FILE).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+				Assert.assertNotNull(lock);
+
+				Assert.assertFalse(BlastDatabaseStore.getInstance().remove(version));
+				Assert.assertTrue(BlastDatabaseStore.getInstance().isComplete(version));
+			}
+
+			Assert.assertTrue("the reader is gone", BlastDatabaseStore.getInstance().remove(version));
+			Assert.assertFalse(version.exists());
+		} finally {
+			FileUtils.deleteQuietly(root);
+		}
+	}
+
+	private static File version(File root, String checksum) throws Exception {
+		File version = new File(root, checksum);
+		Assert.assertTrue(version.mkdirs());
+		Assert.assertTrue(new File(version, "COMPLETE").createNewFile());
+		Assert.assertTrue(new File(version, "db_CORE.fa").createNewFile());
+		return version;
+	}
+}
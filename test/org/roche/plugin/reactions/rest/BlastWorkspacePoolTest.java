@@ -0,0 +1,84 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * 
+ * {@code BlastWorkspacePoolTest} checks that only the workspace slots of ended processes are removed.
+ * 
+ * @version $Id$
+ */
+public class BlastWorkspacePoolTest {
+
+	@Test
+	public void testRemoveStale() throws Exception {
+		File root = Files.createTempDirectory("blast-workspaces").toFile();
+		try {
+			File held = slot(root, "slot-held", true);
+			File dead = slot(root, "slot-dead", true);
+			File creating = slot(root, "slot-creating", false);
+			File abandoned = slot(root, "slot-0", false);
+			abandoned.setLastModified(0);
+			File other = new File(root, "other");
+			other.mkdirs();
+			other.setLastModified(0);
+
+			try (FileChannel channel = FileChannel.open(new File(held, BlastWorkspacePool.LOCK_FILE).toPath(),
+					StandardOpenOption.WRITE)) {
+				FileLock lock = channel.tryLock();
+				Assert.assertNotNull(lock);
+
+				BlastWorkspacePool.removeStale(root, System.currentTimeMillis() - BlastWorkspacePool.STALE_AGE);
+			}
+
+			Assert.assertTrue("a locked slot is in use", held.isDirectory());
+			Assert.assertFalse("nobody holds the lock", dead.exists());
+			Assert.assertTrue("a young slot may just be created", creating.isDirectory());
+			Assert.assertFalse("an old slot without lock is left over", abandoned.exists());
+			Assert.assertTrue(other.isDirectory());
+		} finally {
+			FileUtils.deleteQuietly(root);
+		}
+	}
+
+	private static File slot(File root, String name, boolean withLockFile) throws Exception {
+		File slot = new File(root, name);
+		Assert.assertTrue(slot.mkdirs());
+		if (withLockFile) {
+			Assert.assertTrue(new File(slot, BlastWorkspacePool.LOCK_FILE).createNewFile());
+		}
+		return slot;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * 
+ * {@code ChainDetectionExecutorTest} checks the order of results and the handling of failures when the chains of a
+ * construct are detected in parallel.
+ * 
+ * @version $Id$
+ */
+public class ChainDetectionExecutorTest {
+
+	@Test
+	public void testResultsInTaskOrder() throws Exception {
+		ChainDetectionExecutor executor = new ChainDetectionExecutor(3);
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 10; i++) {
+			final int value = i;
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					// later tasks finish first
+					Thread.sleep(10 - value);
+					return value;
+				}
+			});
+		}
+
+		Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), executor.invokeAll(tasks));
+	}
+
+	@Test
+	public void testNestedTasksRunInCaller() throws Exception {
+		final ChainDetectionExecutor executor = new ChainDetectionExecutor(1);
+		List<Callable<List<String>>> outer = new ArrayList<Callable<List<String>>>();
+		outer.add(new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				// when the only pool thread runs this task, it runs the nested ones as well
+				List<Callable<String>> nested = new ArrayList<Callable<String>>();
+				for (int i = 0; i < 3; i++) {
+					nested.add(new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							return Thread.currentThread().getName();
+						}
+					});
+				}
+				List<String> threads = new ArrayList<String>(executor.invokeAll(nested));
+				threads.add(Thread.currentThread().getName());
+				return threads;
+			}
+		});
+
+		// would never finish, if the nested tasks waited for a pool thread
+		List<String> threads = executor.invokeAll(outer).get(0);
+		Assert.assertEquals(4, threads.size());
+	}
+
+	@Test
+	public void testFirstFailureIsThrownAndOthersCancelled() throws Exception {
+		ChainDetectionExecutor executor = new ChainDetectionExecutor(2);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		tasks.add(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				started.await(5, TimeUnit.SECONDS);
+				throw new IllegalStateException("first chain");
+			}
+		});
+		tasks.add(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				started.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				return "second chain";
+			}
+		});
+
+		try {
+			executor.invokeAll(tasks);
+			Assert.fail("the failure of the first chain must be thrown");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("first chain", e.getMessage());
+		}
+		Assert.assertTrue("the running detection is stopped", interrupted.await(5, TimeUnit.SECONDS));
+	}
+}
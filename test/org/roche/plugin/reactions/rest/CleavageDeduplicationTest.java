@@ -0,0 +1,194 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.Peptide;
+import org.roche.plugin.reactions.rest.ADCUtils.DomainAnnotator;
+import org.roche.plugin.reactions.rest.ADCUtils.PeptideCleavage;
+import org.roche.plugin.reactions.rest.ADCUtils.PeptideCleaver;
+
+
+/**
+ * 
+ * {@code CleavageDeduplicationTest} checks that cleaving and re-annotating identical chains only once gives the same
+ * result as handling every chain on its own.
+ * 
+ * @version $Id$
+ */
+public class CleavageDeduplicationTest {
+
+	private static final String HEAVY = "EVQLVESGGGLVQPGGSLRLSCAASGFNIKDTYIHWVRQAPGKGLEWVARIYPTNGYTRYADSVKG";
+
+	private static final String LIGHT = "DIQMTQSPSSLSASVGDRVTITCRASQDVNTAVAWYQQKPGKAPKLLIYSASFLYSGVPSR";
+
+	@Test
+	public void testCleavagesOfIdenticalChains() throws Exception {
+		CountingCleaver deduplicated = new CountingCleaver();
+		List<PeptideCleavage> once = ADCUtils.cleavePeptides(antibody(), -1, true, deduplicated);
+		CountingCleaver separate = new CountingCleaver();
+		List<PeptideCleavage> each = ADCUtils.cleavePeptides(antibody(), -1, false, separate);
+
+		Assert.assertEquals(2, deduplicated.calls.get());
+		Assert.assertEquals(4, separate.calls.get());
+		Assert.assertEquals(each.size(), once.size());
+		for (int i = 0; i < each.size(); i++) {
+			Assert.assertEquals(describe(each.get(i).getFragments()), describe(once.get(i).getFragments()));
+		}
+		// every chain gets fragments of its own
+		Assert.assertNotSame(once.get(0).getFragments().get(0), once.get(2).getFragments().get(0));
+		Assert.assertNotSame(once.get(0).getFragments().get(0).getDomains().get(0), once.get(2).getFragments()
+				.get(0).getDomains().get(0));
+	}
+
+	@Test
+	public void testSelectedChainOnly() throws Exception {
+		CountingCleaver cleaver = new CountingCleaver();
+		List<PeptideCleavage> cleavages = ADCUtils.cleavePeptides(antibody(), 2, true, cleaver);
+
+		Assert.assertEquals(1, cleaver.calls.get());
+		Assert.assertNull(cleavages.get(0));
+		Assert.assertNull(cleavages.get(1));
+		Assert.assertNotNull(cleavages.get(2));
+		Assert.assertNull(cleavages.get(3));
+	}
+
+	@Test
+	public void testAnnotationsOfIdenticalDomains() throws Exception {
+		List<Peptide> deduplicatedAntibody = antibody();
+		CountingAnnotator deduplicated = new CountingAnnotator();
+		ADCUtils.annotateTruncatedDomains(domains(deduplicatedAntibody), true, deduplicated);
+		List<Peptide> separateAntibody = antibody();
+		CountingAnnotator separate = new CountingAnnotator();
+		ADCUtils.annotateTruncatedDomains(domains(separateAntibody), false, separate);
+
+		Assert.assertEquals(2, deduplicated.domains.get());
+		Assert.assertEquals(4, separate.domains.get());
+		Assert.assertEquals(describe(separateAntibody), describe(deduplicatedAntibody));
+	}
+
+	@Test
+	public void testRemovedDomainIsNotAnnotated() throws Exception {
+		List<Peptide> antibody = antibody();
+		List<Domain> domains = domains(antibody);
+		antibody.get(0).setDomains(new Domain[0]);
+		CountingAnnotator annotator = new CountingAnnotator();
+		ADCUtils.annotateTruncatedDomains(domains, true, annotator);
+
+		Assert.assertEquals(2, annotator.domains.get());
+		Assert.assertEquals("D", domains.get(0).getName());
+		Assert.assertEquals("annotated " + HEAVY.substring(0, 20), domains.get(2).getName());
+	}
+
+	/**
+	 * Two identical heavy and two identical light chains.
+	 */
+	private static List<Peptide> antibody() {
+		return new ArrayList<Peptide>(Arrays.asList(peptide("HC1", HEAVY), peptide("LC1", LIGHT), peptide("HC2", HEAVY),
+				peptide("LC2", LIGHT)));
+	}
+
+	private static Peptide peptide(String name, String sequence) {
+		Peptide peptide = new Peptide();
+		peptide.setName(name);
+		peptide.setSequence(sequence);
+		Domain domain = new Domain("D", sequence.substring(0, 20), 0, 19, 1, 20);
+		domain.setPeptide(peptide);
+		peptide.setDomains(new Domain[] { domain });
+		return peptide;
+	}
+
+	private static List<Domain> domains(List<Peptide> antibody) {
+		List<Domain> domains = new ArrayList<Domain>();
+		for (Peptide peptide : antibody) {
+			domains.addAll(peptide.getDomains());
+		}
+		return domains;
+	}
+
+	private static String describe(List<Peptide> peptides) {
+		StringBuilder description = new StringBuilder();
+		for (Peptide peptide : peptides) {
+			description.append(peptide.getName()).append(' ').append(peptide.getSequence()).append('\n');
+			for (Domain domain : peptide.getDomains()) {
+				description.append(domain.getName()).append(' ').append(domain.getSequence()).append(' ')
+						.append(domain.getStartPosition()).append('-').append(domain.getEndPosition()).append(' ')
+						.append(domain.getStartTemplatePos()).append('-').append(domain.getEndTemplatePos())
+						.append(' ').append(domain.getIdentity()).append(' ').append(domain.getCoverage())
+						.append(' ').append(domain.getLibraryValues() == null ? null : domain.getLibraryValues()
+								.getName()).append('\n');
+			}
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Cuts off the last ten residues of every chain.
+	 */
+	private static final class CountingCleaver implements PeptideCleaver {
+
+		private final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public PeptideCleavage cleave(Peptide peptide) {
+			calls.incrementAndGet();
+			String sequence = peptide.getSequence();
+			Peptide fragment = peptide("Post", sequence.substring(sequence.length() - 10) + "GGGGGGGGGGGG");
+			return new PeptideCleavage(null, Collections.singletonList(fragment));
+		}
+	}
+
+	/**
+	 * Annotates every domain with a result depending on its sequence only.
+	 */
+	private static final class CountingAnnotator implements DomainAnnotator {
+
+		private final AtomicInteger domains = new AtomicInteger();
+
+		@Override
+		public void annotate(List<Domain> domains, List<String> peptideSequences) {
+			Assert.assertEquals(domains.size(), peptideSequences.size());
+			this.domains.addAndGet(domains.size());
+			for (Domain domain : domains) {
+				DomainLibraryValues libraryValues = new DomainLibraryValues();
+				libraryValues.setName("LIB " + domain.getSequence().substring(0, 5));
+				domain.setLibraryValues(libraryValues);
+				domain.setName("annotated " + domain.getSequence());
+				domain.setStartTemplatePos(3);
+				domain.setEndTemplatePos(domain.getSequence().length() + 2);
+				domain.setIdentity(domain.getSequence().charAt(0) / 100.0);
+				domain.setCoverage(0.9);
+			}
+		}
+	}
+}
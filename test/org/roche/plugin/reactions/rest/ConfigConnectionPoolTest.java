@@ -0,0 +1,98 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * 
+ * {@code ConfigConnectionPoolTest} checks that only connections dropped without being closed are taken back, unless a
+ * leak timeout is configured.
+ * 
+ * @version $Id$
+ */
+public class ConfigConnectionPoolTest {
+
+	private static final String DRIVER = "org.sqlite.JDBC";
+
+	@Test
+	public void testLongHeldConnectionIsKept() throws Exception {
+		ConfigConnectionPool pool = createPool(1, ConfigConnectionPool.DEFAULT_LEAK_TIMEOUT);
+		Connection connection = pool.borrow();
+		Thread.sleep(20);
+
+		Assert.assertEquals(0, pool.reclaimLeaked());
+		try (ResultSet result = connection.createStatement().executeQuery("select 1")) {
+			Assert.assertTrue(result.next());
+		}
+		Assert.assertFalse(connection.isClosed());
+		Assert.assertEquals(1, pool.getBorrowedCount());
+
+		connection.close();
+		Assert.assertEquals(0, pool.getBorrowedCount());
+		pool.close();
+	}
+
+	@Test
+	public void testDroppedConnectionIsTakenBack() throws Exception {
+		ConfigConnectionPool pool = createPool(1, ConfigConnectionPool.DEFAULT_LEAK_TIMEOUT);
+		pool.borrow();
+
+		int reclaimed = 0;
+		for (int i = 0; i < 50 && reclaimed == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+			reclaimed = pool.reclaimLeaked();
+		}
+		Assert.assertEquals(1, reclaimed);
+		Assert.assertEquals(0, pool.getBorrowedCount());
+		pool.borrow().close();
+		pool.close();
+	}
+
+	@Test
+	public void testLeakTimeoutIsOptIn() throws Exception {
+		ConfigConnectionPool pool = createPool(1, 1);
+		Connection connection = pool.borrow();
+		Thread.sleep(20);
+
+		Assert.assertEquals(1, pool.reclaimLeaked());
+		Assert.assertTrue(connection.isClosed());
+		Assert.assertEquals(0, pool.getBorrowedCount());
+		pool.close();
+	}
+
+	private static ConfigConnectionPool createPool(long longHeldWarning, long leakTimeout) throws Exception {
+		File database = File.createTempFile("config", ".db");
+		database.deleteOnExit();
+		return new ConfigConnectionPool(DRIVER, "jdbc:sqlite:" + database.getAbsolutePath(), 1, 1000,
+				longHeldWarning, leakTimeout);
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.Peptide;
+
+import com.quattroresearch.antibody.UnknownMutation;
+
+
+/**
+ * 
+ * {@code DetectionResultCacheTest} checks the eviction order of the cache and that cached results cannot be changed
+ * by callers.
+ * 
+ * @version $Id$
+ */
+public class DetectionResultCacheTest {
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		DetectionResultCache cache = new DetectionResultCache(2);
+		cache.put(key("AAA"), peptide("AAA"));
+		cache.put(key("CCC"), peptide("CCC"));
+		// makes CCC the eldest entry
+		Assert.assertNotNull(cache.get(key("AAA")));
+		cache.put(key("DDD"), peptide("DDD"));
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertNotNull(cache.get(key("AAA")));
+		Assert.assertNull(cache.get(key("CCC")));
+		Assert.assertNotNull(cache.get(key("DDD")));
+		Assert.assertEquals(3, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testKeyIncludesVersions() {
+		DetectionResultCache cache = new DetectionResultCache(4);
+		cache.put(new DetectionKey("AAA", false, 1, 1, "blast"), peptide("AAA"));
+
+		Assert.assertNotNull(cache.get(new DetectionKey("AAA", false, 1, 1, "blast")));
+		Assert.assertNull(cache.get(new DetectionKey("AAA", true, 1, 1, "blast")));
+		Assert.assertNull(cache.get(new DetectionKey("AAA", false, 2, 1, "blast")));
+		Assert.assertNull(cache.get(new DetectionKey("AAA", false, 1, 2, "blast")));
+		Assert.assertNull(cache.get(new DetectionKey("AAA", false, 1, 1, "sw")));
+	}
+
+	@Test
+	public void testResultsAreCopied() {
+		DetectionResultCache cache = new DetectionResultCache(4);
+		Peptide peptide = peptide("AAA");
+		cache.put(key("AAA"), peptide);
+		// changes of the detected peptide after caching
+		peptide.setName("changed");
+		peptide.getDomains().get(0).getAllMutations().clear();
+
+		Peptide first = cache.get(key("AAA"));
+		Assert.assertNotSame(peptide, first);
+		Assert.assertEquals("AAA", first.getName());
+		Assert.assertEquals(1, first.getDomains().get(0).getAllMutations().size());
+		Assert.assertSame(first, first.getDomains().get(0).getPeptide());
+
+		// changes of a returned peptide
+		first.setName("changed");
+		first.getDomains().get(0).setStartTemplatePos(5);
+		first.getDomains().get(0).getAllMutations().clear();
+
+		Peptide second = cache.get(key("AAA"));
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals("AAA", second.getName());
+		Assert.assertEquals(1, second.getDomains().get(0).getStartTemplatePos());
+		Assert.assertEquals(1, second.getDomains().get(0).getAllMutations().size());
+	}
+
+	@Test
+	public void testDisabled() {
+		DetectionResultCache cache = new DetectionResultCache(0);
+		cache.put(key("AAA"), peptide("AAA"));
+
+		Assert.assertEquals(0, cache.size());
+		Assert.assertNull(cache.get(key("AAA")));
+	}
+
+	private static DetectionKey key(String sequence) {
+		return new DetectionKey(sequence, false, 1, 1, "blast");
+	}
+
+	private static Peptide peptide(String sequence) {
+		Peptide peptide = new Peptide();
+		peptide.setName(sequence);
+		peptide.setSequence(sequence);
+		Domain domain = new Domain("D", sequence, 0, sequence.length() - 1, 1, sequence.length());
+		domain.setPeptide(peptide);
+		ArrayList<UnknownMutation> mutations = new ArrayList<UnknownMutation>();
+		mutations.add(new UnknownMutation(1, 'C', sequence.charAt(0)));
+		domain.setAllMutations(mutations);
+		peptide.setDomains(new Domain[] { domain });
+		return peptide;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Peptide;
+import org.roche.plugin.reactions.rest.DetectionSingleFlight.Flight;
+
+
+/**
+ * 
+ * {@code DetectionSingleFlightTest} checks what callers waiting for the detection of another caller get when it
+ * completes, fails or is abandoned.
+ * 
+ * @version $Id$
+ */
+public class DetectionSingleFlightTest {
+
+	private static final DetectionKey KEY = new DetectionKey("AAA", false, 1, 1, "blast");
+
+	private DetectionSingleFlight singleFlight;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		singleFlight = new DetectionSingleFlight();
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testWaiterGetsCopy() throws Exception {
+		Flight flight = singleFlight.lead(KEY);
+		Assert.assertNotNull(flight);
+		Assert.assertNull("the key is detected already", singleFlight.lead(KEY));
+
+		Future<Peptide> waiter = startWaiter();
+		Peptide peptide = peptide();
+		flight.complete(peptide);
+
+		Peptide result = waiter.get(5, TimeUnit.SECONDS);
+		Assert.assertNotSame(peptide, result);
+		Assert.assertEquals("AAA", result.getName());
+		Assert.assertEquals(0, singleFlight.getInFlightCount());
+		Assert.assertEquals(1, singleFlight.getCoalescedCount());
+	}
+
+	@Test
+	public void testLeaderFailure() throws Exception {
+		Flight flight = singleFlight.lead(KEY);
+		Future<Peptide> waiter = startWaiter();
+		flight.fail(new IllegalStateException("no domains"));
+		// later outcomes do not change a finished flight
+		flight.complete(peptide());
+
+		try {
+			waiter.get(5, TimeUnit.SECONDS);
+			Assert.fail("the failure must reach the waiter");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+		}
+		Assert.assertNotNull("a new detection may start", singleFlight.lead(KEY));
+	}
+
+	@Test
+	public void testAbandon() throws Exception {
+		Flight flight = singleFlight.lead(KEY);
+		Future<Peptide> waiter = startWaiter();
+		flight.abandon();
+		flight.fail(new IllegalStateException("cancelled"));
+
+		Assert.assertNull("the waiter detects the chain itself", waiter.get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(flight.isDone());
+		Assert.assertEquals(0, singleFlight.getInFlightCount());
+	}
+
+	@Test
+	public void testNothingToAwait() throws Exception {
+		Assert.assertNull(singleFlight.await(KEY));
+		Assert.assertEquals(0, singleFlight.getCoalescedCount());
+	}
+
+	/**
+	 * Starts a caller waiting for the running flight of the key.
+	 */
+	private Future<Peptide> startWaiter() throws Exception {
+		Future<Peptide> waiter = executor.submit(new Callable<Peptide>() {
+			@Override
+			public Peptide call() throws Exception {
+				return singleFlight.await(KEY);
+			}
+		});
+		// the waiter counts itself before it blocks
+		for (int i = 0; i < 500 && singleFlight.getCoalescedCount() == 0; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, singleFlight.getCoalescedCount());
+		return waiter;
+	}
+
+	private static Peptide peptide() {
+		Peptide peptide = new Peptide();
+		peptide.setName("AAA");
+		peptide.setSequence("AAA");
+		return peptide;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+import com.quattroresearch.blastws.BlastHit;
+
+
+/**
+ * 
+ * {@code ExactMatchIndexTest} checks that verbatim library domains are found in a chain and reported like an identical
+ * BLAST alignment.
+ * 
+ * @version $Id$
+ */
+public class ExactMatchIndexTest {
+
+	/** human IgG1 CH1 */
+	private static final String CH1 = "ASTKGPSVFPLAPSSKSTSGGTAALGCLVKDYFPEPVTVSWNSGALTSGVHTFPAVLQSSGLYSLSSVVTVPSSSLGTQTYICNVNHKPSNTKVDKKV";
+
+	/** human IgG1 CH3 */
+	private static final String CH3 = "GQPREPQVYTLPPSRDELTKNQVSLTCLVKGFYPSDIAVEWESNGQPENNYKTTPPVLDSDGSFFLYSKLTVDKSRWQQGNVFSCSVMHEALHNHYTQKSLSLSPGK";
+
+	private static final String TAG = "HHHHHHHHHH";
+
+	private static final Set<DomainUsage> CORE = EnumSet.of(DomainUsage.CORE);
+
+	@Test
+	public void testFullMatches() {
+		ExactMatchIndex index = new ExactMatchIndex(Arrays.asList(entry("CH1", CH1, DomainUsage.CORE), entry("CH3",
+				CH3, DomainUsage.CORE)), 20, 2);
+		String query = "MKT" + CH1 + "EPKSCDKTHT" + CH3;
+
+		List<BlastHit> hits = index.findHits(query, CORE);
+		Assert.assertEquals(2, hits.size());
+		assertHit(hits.get(0), "CH1", 4, 3 + CH1.length(), 1, CH1.length());
+		int ch3Begin = query.indexOf(CH3) + 1;
+		assertHit(hits.get(1), "CH3", ch3Begin, ch3Begin + CH3.length() - 1, 1, CH3.length());
+		Assert.assertEquals(1.0, hits.get(0).getIdentity(), 0.0);
+		Assert.assertEquals(CH1, hits.get(0).getAlignmentLineSequence());
+		Assert.assertEquals(CH1, hits.get(0).getAlignmentLineTemplate());
+	}
+
+	@Test
+	public void testTrimmedMatch() {
+		ExactMatchIndex index = new ExactMatchIndex(Arrays.asList(entry("CH3", CH3, DomainUsage.CORE)), 20, 2);
+		// heavy chain without its C-terminal lysine
+		String withoutLysine = CH3.substring(0, CH3.length() - 1);
+
+		List<BlastHit> hits = index.findHits("AAA" + withoutLysine, CORE);
+		Assert.assertEquals(1, hits.size());
+		assertHit(hits.get(0), "CH3", 4, 3 + withoutLysine.length(), 1, CH3.length() - 1);
+		Assert.assertEquals(CH3.length(), hits.get(0).getLength());
+
+		// trimmed variants of a full match are not reported
+		Assert.assertEquals(1, index.findHits(CH3, CORE).size());
+		// more than two residues are left to BLAST
+		Assert.assertTrue(index.findHits(CH3.substring(3), CORE).isEmpty());
+		// as are fragments trimmed at both ends
+		Assert.assertTrue(index.findHits(CH3.substring(1, CH3.length() - 1), CORE).isEmpty());
+	}
+
+	@Test
+	public void testUsagesAndMinLength() {
+		ExactMatchIndex index = new ExactMatchIndex(Arrays.asList(entry("CH1", CH1, DomainUsage.GENERAL), entry("TAG",
+				TAG, DomainUsage.CORE)), 20, 2);
+		String query = CH1 + TAG;
+
+		Assert.assertTrue("the tag is too short", index.findHits(query, CORE).isEmpty());
+		Assert.assertEquals(1, index.findHits(query, ExactMatchIndex.getUsages("_GENERAL")).size());
+		Assert.assertEquals(1, index.findHits(query, ExactMatchIndex.getUsages(null)).size());
+	}
+
+	@Test
+	public void testCysteins() {
+		DomainLibraryValues values = entry("CH1", CH1, DomainUsage.CORE);
+		values.setCysteinPatterns(Arrays.asList("27-83", " 5-9 ", "free"));
+		ExactMatchIndex index = new ExactMatchIndex(Arrays.asList(values), 20, 2);
+
+		BlastHit hit = index.findHits("MKT" + CH1, CORE).get(0);
+		Assert.assertEquals(Arrays.asList(27, 83, 5, 9), hit.getInternalBonds());
+		Integer[][] cysteins = hit.getConservedCysteins();
+		Assert.assertEquals(2, cysteins.length);
+		// position in the query and in the template
+		Assert.assertEquals(Integer.valueOf(30), cysteins[0][0]);
+		Assert.assertEquals(Integer.valueOf(27), cysteins[0][1]);
+		Assert.assertEquals('C', ("MKT" + CH1).charAt(cysteins[1][0] - 1));
+	}
+
+	private static void assertHit(BlastHit hit, String name, long begin, long end, int templateBegin,
+			int templateEnd) {
+		Assert.assertEquals(name, hit.getSequenceID());
+		Assert.assertEquals(Long.valueOf(begin), hit.getBegin());
+		Assert.assertEquals(Long.valueOf(end), hit.getEnd());
+		Assert.assertEquals(Integer.valueOf(templateBegin), hit.getTemplateBegin());
+		Assert.assertEquals(templateEnd, hit.getTemplateEnd());
+	}
+
+	private static DomainLibraryValues entry(String name, String sequence, DomainUsage usage) {
+		DomainLibraryValues values = new DomainLibraryValues();
+		values.setName(name);
+		values.setShortName(name);
+		values.setSequence(sequence);
+		values.setSequenceLength(sequence.length());
+		values.setDomainUsage(usage);
+		return values;
+	}
+}
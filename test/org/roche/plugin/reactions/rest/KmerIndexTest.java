@@ -0,0 +1,183 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+
+/**
+ * 
+ * {@code KmerIndexTest} checks the bound on shared k-mers that decides whether BLAST is skipped for a query.
+ * 
+ * @version $Id$
+ */
+public class KmerIndexTest {
+
+	private static final String RESIDUES = "ARNDCQEGHILKMFPSTYV";
+
+	private static final Set<DomainUsage> CORE = EnumSet.of(DomainUsage.CORE);
+
+	@Test
+	public void testMinimumSharedKmers() {
+		// 100 residues, 90% identity: 11 differences destroy up to 33 of 98 k-mers
+		Assert.assertEquals(65, KmerIndex.minimumSharedKmers(100, 3, 0.9, 1.0));
+		// the shortest span of 50 residues allows 5 differences
+		Assert.assertEquals(33, KmerIndex.minimumSharedKmers(100, 3, 0.9, 0.5));
+		// 12 differences leave 12 k-mers of the shortest span, but 13 differences only 11 of a span of 52
+		Assert.assertEquals(11, KmerIndex.minimumSharedKmers(100, 3, 0.8, 0.5));
+		Assert.assertEquals(0, KmerIndex.minimumSharedKmers(100, 3, 0.0, 1.0));
+		Assert.assertEquals(0, KmerIndex.minimumSharedKmers(100, 3, 0.5, 0.0));
+		// too short to exclude anything
+		Assert.assertEquals(0, KmerIndex.minimumSharedKmers(10, 3, 0.7, 1.0));
+	}
+
+	@Test
+	public void testUnrelatedQueryHasNoCandidates() {
+		Random random = new Random(42);
+		KmerIndex index = new KmerIndex(Arrays.asList(entry("CH1", randomSequence(random, 100), DomainUsage.CORE)), 3);
+
+		Assert.assertFalse(index.hasCandidates(repeat('W', 120), CORE, 0.8, 0.5));
+		// without an identity threshold nothing can be excluded
+		Assert.assertTrue(index.hasCandidates(repeat('W', 120), CORE, 0.0, 0.5));
+	}
+
+	@Test
+	public void testShortEntryIsAlwaysCandidate() {
+		KmerIndex index = new KmerIndex(Arrays.asList(entry("HINGE", "EPKSCDKTHT", DomainUsage.CORE)), 3);
+
+		Assert.assertTrue(index.hasCandidates(repeat('W', 50), CORE, 0.8, 0.5));
+	}
+
+	@Test
+	public void testUsages() {
+		Random random = new Random(7);
+		String sequence = randomSequence(random, 100);
+		DomainLibraryValues antigen = entry("ANTIGEN", sequence, DomainUsage.ANTIGEN);
+		DomainLibraryValues core = entry("CORE", sequence, DomainUsage.CORE);
+		KmerIndex index = new KmerIndex(Arrays.asList(antigen, entry("NO_SEQUENCE", null, DomainUsage.CORE), core), 3);
+
+		Assert.assertEquals(2, index.size());
+		int[] candidates = index.findCandidates(sequence, CORE, 0.8, 0.5);
+		Assert.assertEquals(1, candidates.length);
+		Assert.assertSame(core, index.getEntry(candidates[0]));
+		Assert.assertEquals(2, index.findCandidates(sequence, EnumSet.allOf(DomainUsage.class), 0.8, 0.5).length);
+	}
+
+	/**
+	 * Builds queries aligning to an entry with exactly the minimal identity and coverage and checks that the entry is
+	 * never excluded.
+	 */
+	@Test
+	public void testHitsAboveThresholdsAreNeverExcluded() {
+		Random random = new Random(4711);
+		double[] identities = {0.6, 0.7, 0.8, 0.9, 0.95, 1.0};
+		double[] coverages = {0.3, 0.5, 0.8, 1.0};
+		for (int run = 0; run < 3000; run++) {
+			int k = 2 + random.nextInt(3);
+			String template = randomSequence(random, 40 + random.nextInt(120));
+			KmerIndex index = new KmerIndex(Arrays.asList(entry("ENTRY", template, DomainUsage.CORE)), k);
+			double minIdentity = identities[random.nextInt(identities.length)];
+			double minCoverage = coverages[random.nextInt(coverages.length)];
+
+			int span = (int) Math.ceil(minCoverage * template.length());
+			span += random.nextInt(template.length() - span + 1);
+			int begin = random.nextInt(template.length() - span + 1);
+			String query = randomSequence(random, random.nextInt(20))
+					+ alignedQuery(random, template.substring(begin, begin + span), minIdentity)
+					+ randomSequence(random, random.nextInt(20));
+
+			Assert.assertTrue("k=" + k + ", identity " + minIdentity + ", coverage " + minCoverage + ": " + query
+					+ " excludes " + template, index.hasCandidates(query, CORE, minIdentity, minCoverage));
+		}
+	}
+
+	/**
+	 * Changes residues of the span by substitutions, insertions and deletions as long as the identity of the alignment
+	 * stays at least the given one.
+	 */
+	private static String alignedQuery(Random random, String span, double minIdentity) {
+		// the query residues aligned to every template residue, null while unchanged
+		String[] columns = new String[span.length()];
+		int identical = span.length();
+		int alignmentLength = span.length();
+		for (int attempt = 0; attempt < 4 * span.length(); attempt++) {
+			int change = random.nextInt(3);
+			int newIdentical = change == 1 ? identical : identical - 1;
+			int newLength = change == 1 ? alignmentLength + 1 : alignmentLength;
+			if (newIdentical < minIdentity * newLength) {
+				break;
+			}
+			int column = random.nextInt(span.length());
+			if (columns[column] != null) {
+				continue;
+			}
+			if (change == 0) {
+				// substitution by a residue the templates never contain
+				columns[column] = "W";
+			} else if (change == 1) {
+				columns[column] = "W" + span.charAt(column);
+			} else {
+				columns[column] = "";
+			}
+			identical = newIdentical;
+			alignmentLength = newLength;
+		}
+		StringBuilder query = new StringBuilder();
+		for (int i = 0; i < span.length(); i++) {
+			query.append(columns[i] == null ? span.substring(i, i + 1) : columns[i]);
+		}
+		return query.toString();
+	}
+
+	private static String randomSequence(Random random, int length) {
+		StringBuilder sequence = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sequence.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+		}
+		return sequence.toString();
+	}
+
+	private static String repeat(char residue, int length) {
+		char[] residues = new char[length];
+		Arrays.fill(residues, residue);
+		return new String(residues);
+	}
+
+	private static DomainLibraryValues entry(String shortName, String sequence, DomainUsage usage) {
+		DomainLibraryValues values = new DomainLibraryValues();
+		values.setName(shortName);
+		values.setShortName(shortName);
+		values.setSequence(sequence);
+		values.setDomainUsage(usage);
+		return values;
+	}
+}
@@ -0,0 +1,257 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.Peptide;
+
+import com.quattroresearch.antibody.FindMutations;
+import com.quattroresearch.antibody.Mutation;
+import com.quattroresearch.antibody.SingleMutation;
+import com.quattroresearch.antibody.UnknownMutation;
+
+
+/**
+ * 
+ * {@code MutationLibrarySnapshotTest} checks that the indexed mutation library annotates the same mutations and domain
+ * labels as {@link FindMutations#find(List, List)}.
+ * 
+ * @version $Id$
+ */
+public class MutationLibrarySnapshotTest {
+
+	private static final String VH = "EVQLVESGGGLVQ";
+
+	private static final String CH2 = "APELLGGPSVFLF";
+
+	private static final String CH3 = "GQPREPQVYTLPP";
+
+	private static final String RESIDUES = "AGW";
+
+	@Test
+	public void testMultiSiteMutation() throws Exception {
+		List<Mutation> library = Arrays.asList(mutation("LALA", "LALA", 1, site("CH2", 5, 'L', 'A'),
+				site("CH2", 6, 'L', 'A')));
+
+		List<Peptide> peptides = assertSameAnnotation(library, peptide(domain("CH2", CH2, 5, 'A', 6, 'A')));
+		Domain ch2 = peptides.get(0).getDomains().get(0);
+		Assert.assertEquals(2, ch2.getSingleMutations().size());
+		Assert.assertEquals("CH2 (LALA)", ch2.getUserLabel());
+
+		// one of both sites only does not make the mutation
+		peptides = assertSameAnnotation(library, peptide(domain("CH2", CH2, 5, 'A')));
+		Assert.assertTrue(peptides.get(0).getDomains().get(0).getSingleMutations().isEmpty());
+	}
+
+	@Test
+	public void testMutationAcrossDomains() throws Exception {
+		List<Mutation> library = Arrays.asList(mutation("Pair", "P", 1, site("VH", 2, 'V', 'C'),
+				site("CH3", 9, 'V', 'C')));
+
+		List<Peptide> peptides = assertSameAnnotation(library,
+				peptide(domain("VH", VH, 2, 'C'), domain("CH3", CH3, 9, 'C')));
+		Assert.assertEquals(1, peptides.get(0).getDomains().get(0).getSingleMutations().size());
+		Assert.assertEquals(1, peptides.get(0).getDomains().get(1).getSingleMutations().size());
+
+		// the sites have to be in the same peptide
+		peptides = assertSameAnnotation(library, peptide(domain("VH", VH, 2, 'C')),
+				peptide(domain("CH3", CH3, 9, 'C')));
+		Assert.assertTrue(peptides.get(0).getDomains().get(0).getSingleMutations().isEmpty());
+	}
+
+	@Test
+	public void testSubsetMutationIsRemoved() throws Exception {
+		Mutation lala = mutation("LALA", "LALA", 1, site("CH2", 5, 'L', 'A'), site("CH2", 6, 'L', 'A'));
+		Mutation lalapg = mutation("LALA-PG", "PG", 1, site("CH2", 5, 'L', 'A'), site("CH2", 6, 'L', 'A'),
+				site("CH2", 8, 'P', 'G'));
+		List<Mutation> library = Arrays.asList(lala, lalapg);
+
+		List<Peptide> peptides = assertSameAnnotation(library, peptide(domain("CH2", CH2, 5, 'A', 6, 'A', 8, 'G')));
+		Domain ch2 = peptides.get(0).getDomains().get(0);
+		Assert.assertEquals(3, ch2.getSingleMutations().size());
+		for (SingleMutation singleMutation : ch2.getSingleMutations()) {
+			Assert.assertSame(lalapg, singleMutation.getMutation());
+		}
+		Assert.assertEquals("CH2 (PG)", ch2.getUserLabel());
+
+		// without the third site only the subset is found
+		peptides = assertSameAnnotation(library, peptide(domain("CH2", CH2, 5, 'A', 6, 'A')));
+		Assert.assertEquals("CH2 (LALA)", peptides.get(0).getDomains().get(0).getUserLabel());
+	}
+
+	@Test
+	public void testInvisibleAndEmptyMutations() throws Exception {
+		List<Mutation> library = Arrays.asList(mutation("Knob", "T366W", 0, site("CH3", 10, 'T', 'W')),
+				mutation("Empty", "E", 1), mutation("Hole", "Y407V", 1, site("CH3", 9, 'V', 'Y')));
+
+		assertSameAnnotation(library, peptide(domain("CH3", CH3, 10, 'W', 9, 'Y')), peptide(domain("VH", VH)));
+		assertSameAnnotation(library, peptide(domain("CH3", CH3, 10, 'W')));
+		assertSameAnnotation(library, peptide(domain("CH3", CH3)));
+	}
+
+	@Test
+	public void testRandomLibraries() throws Exception {
+		Random random = new Random(815);
+		String[] names = {"VH", "CH2", "CH3"};
+		String[] templates = {VH, CH2, CH3};
+		int annotated = 0;
+		for (int run = 0; run < 500; run++) {
+			List<Mutation> library = new ArrayList<Mutation>();
+			int mutations = 1 + random.nextInt(8);
+			for (int i = 0; i < mutations; i++) {
+				int sites = random.nextInt(4);
+				SingleMutation[] singleMutations = new SingleMutation[sites];
+				for (int j = 0; j < sites; j++) {
+					int domain = random.nextInt(names.length);
+					int position = 1 + random.nextInt(3);
+					singleMutations[j] = site(names[domain], position, templates[domain].charAt(position - 1),
+							RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+				}
+				library.add(mutation("M" + i, "m" + random.nextInt(4), random.nextInt(2), singleMutations));
+			}
+
+			Peptide[] peptides = new Peptide[1 + random.nextInt(2)];
+			for (int i = 0; i < peptides.length; i++) {
+				Domain[] domains = new Domain[1 + random.nextInt(3)];
+				for (int j = 0; j < domains.length; j++) {
+					int domain = random.nextInt(names.length);
+					Object[] changes = new Object[2 * random.nextInt(4)];
+					for (int k = 0; k < changes.length; k += 2) {
+						changes[k] = 1 + random.nextInt(3);
+						changes[k + 1] = RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+					}
+					domains[j] = domain(names[domain], templates[domain], changes);
+				}
+				peptides[i] = peptide(domains);
+			}
+			for (Peptide peptide : assertSameAnnotation(library, peptides)) {
+				for (Domain domain : peptide.getDomains()) {
+					if (!domain.getSingleMutations().isEmpty()) {
+						annotated++;
+					}
+				}
+			}
+		}
+		Assert.assertTrue("too few domains are annotated: " + annotated, annotated > 50);
+	}
+
+	/**
+	 * Annotates copies of the peptides with {@link FindMutations} and the snapshot and compares the results.
+	 * 
+	 * @return the peptides annotated by the snapshot
+	 */
+	private static List<Peptide> assertSameAnnotation(List<Mutation> library, Peptide... peptides) throws Exception {
+		List<Peptide> expected = copy(peptides);
+		FindMutations.find(expected, library);
+		List<Peptide> actual = copy(peptides);
+		new MutationLibrarySnapshot(library, 1).find(actual);
+
+		for (int i = 0; i < expected.size(); i++) {
+			List<Domain> expectedDomains = expected.get(i).getDomains();
+			List<Domain> actualDomains = actual.get(i).getDomains();
+			for (int j = 0; j < expectedDomains.size(); j++) {
+				Domain expectedDomain = expectedDomains.get(j);
+				Domain actualDomain = actualDomains.get(j);
+				String message = library + " in " + expectedDomain.getSequence();
+				Assert.assertEquals(message, expectedDomain.getUserLabel(), actualDomain.getUserLabel());
+				Assert.assertEquals(message, expectedDomain.getSingleMutations().size(),
+						actualDomain.getSingleMutations().size());
+				for (int k = 0; k < expectedDomain.getSingleMutations().size(); k++) {
+					Assert.assertSame(message, expectedDomain.getSingleMutations().get(k),
+							actualDomain.getSingleMutations().get(k));
+				}
+			}
+		}
+		return actual;
+	}
+
+	private static List<Peptide> copy(Peptide... peptides) {
+		List<Peptide> copies = new LinkedList<Peptide>();
+		for (Peptide peptide : peptides) {
+			Peptide copy = new Peptide();
+			for (Domain domain : peptide.getDomains()) {
+				Domain domainCopy = new Domain(domain.getName(), domain.getSequence(), 0,
+						domain.getSequence().length() - 1, 1, domain.getSequence().length());
+				domainCopy.setLibraryValues(domain.getLibraryValues());
+				domainCopy.setAllMutations(new ArrayList<UnknownMutation>(domain.getAllMutations()));
+				copy.getDomains().add(domainCopy);
+			}
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	private static Peptide peptide(Domain... domains) {
+		Peptide peptide = new Peptide();
+		peptide.getDomains().addAll(Arrays.asList(domains));
+		return peptide;
+	}
+
+	/**
+	 * Creates a domain of the template with the given changes.
+	 * 
+	 * @param changes
+	 *            pairs of the 1-based position and the new residue
+	 */
+	private static Domain domain(String name, String template, Object... changes) {
+		StringBuilder sequence = new StringBuilder(template);
+		List<UnknownMutation> unknownMutations = new ArrayList<UnknownMutation>();
+		for (int i = 0; i < changes.length; i += 2) {
+			int position = (Integer) changes[i];
+			char residue = (Character) changes[i + 1];
+			sequence.setCharAt(position - 1, residue);
+			unknownMutations.add(new UnknownMutation(position, template.charAt(position - 1), residue));
+		}
+		Domain domain = new Domain(name, sequence.toString(), 0, sequence.length() - 1, 1, sequence.length());
+		DomainLibraryValues libraryValues = new DomainLibraryValues();
+		libraryValues.setName(name);
+		domain.setLibraryValues(libraryValues);
+		domain.setAllMutations(unknownMutations);
+		return domain;
+	}
+
+	private static Mutation mutation(String name, String shortname, int visible, SingleMutation... singleMutations) {
+		Mutation mutation = new Mutation(name);
+		for (SingleMutation singleMutation : singleMutations) {
+			singleMutation.setMutation(mutation);
+			singleMutation.setShortname(shortname);
+			singleMutation.setVisible(visible);
+			mutation.getSingleMutations().add(singleMutation);
+		}
+		return mutation;
+	}
+
+	private static SingleMutation site(String domainName, int position, char oriAA, char newAA) {
+		return new SingleMutation(domainName, position, oriAA, newAA, null, null, 1, null);
+	}
+}
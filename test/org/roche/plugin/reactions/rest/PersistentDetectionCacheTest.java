@@ -0,0 +1,103 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Peptide;
+
+
+/**
+ * 
+ * {@code PersistentDetectionCacheTest} checks that every input of a detection changes the cache key and that a broken
+ * cache file disables the cache instead of failing the detection.
+ * 
+ * @version $Id$
+ */
+public class PersistentDetectionCacheTest {
+
+	@Test
+	public void testKeyCoversAllInputs() {
+		String key = PersistentDetectionCache.createKey("AAA", false, "lib", "config", "blast");
+		Assert.assertEquals("stable across sessions", key,
+				PersistentDetectionCache.createKey("AAA", false, "lib", "config", "blast"));
+
+		Set<String> keys = new HashSet<String>(Arrays.asList(key,
+				PersistentDetectionCache.createKey("AAC", false, "lib", "config", "blast"),
+				PersistentDetectionCache.createKey("AAA", true, "lib", "config", "blast"),
+				PersistentDetectionCache.createKey("AAA", false, "lib2", "config", "blast"),
+				PersistentDetectionCache.createKey("AAA", false, "lib", "config2", "blast"),
+				PersistentDetectionCache.createKey("AAA", false, "lib", "config", "sw")));
+		Assert.assertEquals(6, keys.size());
+	}
+
+	@Test
+	public void testKeyFieldsAreSeparated() {
+		Assert.assertFalse(PersistentDetectionCache.createKey("AAA", false, "lib", "config", "blast").equals(
+				PersistentDetectionCache.createKey("AAA", false, "libc", "onfig", "blast")));
+	}
+
+	@Test
+	public void testKeyContainsCodeVersion() {
+		String codeVersion = PersistentDetectionCache.getCodeVersion();
+		Assert.assertNotNull(codeVersion);
+		Assert.assertSame(codeVersion, PersistentDetectionCache.getCodeVersion());
+		Assert.assertEquals(2, codeVersion.split(";").length);
+	}
+
+	@Test
+	public void testBrokenFileDisablesCache() throws Exception {
+		File directory = Files.createTempDirectory("detection-cache").toFile();
+		try {
+			File file = new File(directory, "detection-cache.sqlite");
+			FileUtils.writeStringToFile(file, "not a database, not a database, not a database, not a database");
+			PersistentDetectionCache cache = new PersistentDetectionCache(10, true, file);
+			Assert.assertTrue(cache.isEnabled());
+
+			Assert.assertTrue(cache.getAll(Arrays.asList("key")).isEmpty());
+			Assert.assertFalse(cache.isEnabled());
+			// later accesses do not touch the file again
+			cache.putAll(Collections.singletonMap("key", "AAA"), Collections.singletonMap("key", new Peptide()));
+			Assert.assertTrue(cache.getAll(Arrays.asList("key")).isEmpty());
+			Assert.assertEquals(0, cache.getHitCount());
+		} finally {
+			FileUtils.deleteQuietly(directory);
+		}
+	}
+
+	@Test
+	public void testDisabled() {
+		Assert.assertFalse(new PersistentDetectionCache(10, false, null).isEnabled());
+		Assert.assertFalse(new PersistentDetectionCache(0, true, null).isEnabled());
+		Assert.assertTrue(new PersistentDetectionCache(0, true, null).getAll(Arrays.asList("key")).isEmpty());
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.services.ProteaseDescription;
+import org.roche.antibody.services.tools.ProteaseCleavageResult;
+import org.roche.plugin.reactions.rest.ProteaseDigestEngine.SiteMap;
+
+
+/**
+ * 
+ * {@code ProteaseDigestEngineTest} checks that the digest engine finds the same cleavage sites as matching the motif of
+ * every protease with the {@link ProteaseRegistry}.
+ * 
+ * @version $Id$
+ */
+public class ProteaseDigestEngineTest {
+
+	private static final String RESIDUES = "ARNDCEQGHILKMFPSTWYV";
+
+	private static final String ANY = "[ARNDCEQGHILKMFPSTWYVX]*";
+
+	private static final List<ProteaseDescription> PROTEASES = Arrays.asList(
+			new ProteaseDescription(1, "Sortase", "^(" + ANY + "?LPET)G" + ANY + "$", 1, "", "CASE_INSENSITIVE", 0),
+			new ProteaseDescription(2, "TEV", "^" + ANY + "ENLYFQ(G|S)" + ANY + "$", 1, "", "CASE_INSENSITIVE", 0),
+			new ProteaseDescription(3, "PreScission", "^" + ANY + "LEVLFQ(GP)" + ANY + "$", 1, "", "", 0),
+			new ProteaseDescription(4, "Factor Xa", "^" + ANY + "I[ED]GR()" + ANY + "$", 1, "", "CASE_INSENSITIVE",
+					0),
+			new ProteaseDescription(5, "Thrombin", "^" + ANY + "LVPR(GS)" + ANY + "$", 1, "", "CASE_INSENSITIVE", 0),
+			new ProteaseDescription(6, "Enterokinase", "^" + ANY + "(D{4}K)" + ANY + "$", 1, "", "CASE_INSENSITIVE",
+					0),
+			new ProteaseDescription(7, "Optional linker", "^" + ANY + "(GGGS)?LPET(G)" + ANY + "$", 2, "", "",
+					0),
+			new ProteaseDescription(8, "Alternative", "^" + ANY + "(LPET|LPXT)G" + ANY + "$", 1, "",
+					"CASE_INSENSITIVE", 0));
+
+	/** motifs planted into the random sequences, so most proteases cleave some of them */
+	private static final String[] SITES = {"LPETG", "ENLYFQG", "ENLYFQS", "LEVLFQGP", "IEGR", "IDGR", "LVPRGS",
+			"DDDDK", "GGGSLPETG", "lpetg", "enlyfqs", "levlfqgp", "LPXTG", "LPE", "ENLYF"};
+
+	@Test
+	public void testDigestEqualsRegistryOnRandomSequences() {
+		ProteaseDigestEngine engine = new ProteaseDigestEngine(PROTEASES);
+		Random random = new Random(4711);
+		int cleaved = 0;
+		for (int i = 0; i < 2000; i++) {
+			String sequence = randomSequence(random);
+			if (!assertSameSites(engine, sequence).getSites().isEmpty()) {
+				cleaved++;
+			}
+		}
+		Assert.assertTrue("too few sequences are cleaved: " + cleaved, cleaved > 500);
+	}
+
+	@Test
+	public void testDigestOfSeveralChains() {
+		ProteaseDigestEngine engine = new ProteaseDigestEngine(PROTEASES);
+		List<String> sequences = Arrays.asList("GSTLPETGGG", "MKENLYFQSA", "AAAA", "");
+		List<SiteMap> siteMaps = engine.digest(sequences);
+
+		Assert.assertEquals(sequences.size(), siteMaps.size());
+		for (int i = 0; i < sequences.size(); i++) {
+			Assert.assertEquals(sequences.get(i), siteMaps.get(i).getSequence());
+			assertSameSites(engine, sequences.get(i));
+		}
+		Assert.assertTrue(siteMaps.get(0).isCleavedBy(PROTEASES.get(0)));
+		Assert.assertTrue(siteMaps.get(1).isCleavedBy(PROTEASES.get(1)));
+		Assert.assertTrue(siteMaps.get(2).getSites().isEmpty());
+		Assert.assertTrue(siteMaps.get(3).getSites().isEmpty());
+	}
+
+	@Test
+	public void testRequiredLiteral() {
+		Assert.assertEquals("LPET", ProteaseDigestEngine.requiredLiteral("^(" + ANY + "?LPET)G" + ANY + "$"));
+		Assert.assertNull(ProteaseDigestEngine.requiredLiteral("^" + ANY + "ENLYFQ(G|S)" + ANY + "$"));
+		Assert.assertEquals("LPET", ProteaseDigestEngine.requiredLiteral("^" + ANY + "(GGGS)?LPET(G)" + ANY + "$"));
+		Assert.assertEquals("D", ProteaseDigestEngine.requiredLiteral("^" + ANY + "(D{4}K)" + ANY + "$"));
+		Assert.assertNull(ProteaseDigestEngine.requiredLiteral("^" + ANY + "(LPET|LPXT)G" + ANY + "$"));
+		Assert.assertNull(ProteaseDigestEngine.requiredLiteral("^(" + ANY + "$"));
+	}
+
+	private static SiteMap assertSameSites(ProteaseDigestEngine engine, String sequence) {
+		SiteMap siteMap = engine.digest(sequence);
+		for (ProteaseDescription protease : PROTEASES) {
+			ProteaseCleavageResult expected = ProteaseRegistry.getInstance().doProteaseCleavage(sequence, protease);
+			ProteaseCleavageResult actual = siteMap.toCleavageResult(protease);
+			String message = protease.getProteaseName() + " on " + sequence;
+			Assert.assertEquals(message,
+					ProteaseRegistry.getInstance().sequenceHasCleaveSite(sequence, protease),
+					siteMap.isCleavedBy(protease));
+			Assert.assertEquals(message, expected.getLeftCut(), actual.getLeftCut());
+			Assert.assertEquals(message, expected.getRightCut(), actual.getRightCut());
+		}
+		return siteMap;
+	}
+
+	private static String randomSequence(Random random) {
+		StringBuilder sequence = new StringBuilder();
+		int length = random.nextInt(60);
+		List<Integer> plantAt = new ArrayList<Integer>();
+		int planted = random.nextInt(3);
+		for (int i = 0; i < planted; i++) {
+			plantAt.add(random.nextInt(length + 1));
+		}
+		for (int i = 0; i <= length; i++) {
+			for (int position : plantAt) {
+				if (position == i) {
+					sequence.append(SITES[random.nextInt(SITES.length)]);
+				}
+			}
+			if (i < length) {
+				sequence.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+			}
+		}
+		return sequence.toString();
+	}
+}
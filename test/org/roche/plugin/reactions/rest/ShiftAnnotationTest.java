@@ -0,0 +1,177 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.Domain;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+
+import com.quattroresearch.antibody.Mutation;
+import com.quattroresearch.antibody.SingleMutation;
+import com.quattroresearch.antibody.UnknownMutation;
+
+
+/**
+ * 
+ * {@code ShiftAnnotationTest} checks which annotations of domains trimmed by a cleavage are kept and how they are
+ * shifted onto the remaining template.
+ * 
+ * @version $Id$
+ */
+public class ShiftAnnotationTest {
+
+	/** human IgG1 CH1 */
+	private static final String CH1 = "ASTKGPSVFPLAPSSKSTSGGTAALGCLVKDYFPEPVTVSWNSGALTSGVHTFPAVLQSSGLYSLSSVVTVPSSSLGTQTYICNVNHKPSNTKVDKKV";
+
+	private static final String NAME = "IGHG1_CH1";
+
+	@Test
+	public void testLeftTrim() {
+		Domain domain = domain(mutate(mutate(CH1, 10, 'W'), 95, 'W'), 10, 95);
+		trim(domain, 5, 0);
+
+		Assert.assertTrue(ADCUtils.shiftAnnotation(domain, 5, 0));
+		Assert.assertEquals(6, domain.getStartTemplatePos());
+		Assert.assertEquals(98, domain.getEndTemplatePos());
+		Assert.assertEquals(2, domain.getAllMutations().size());
+		Assert.assertEquals(91.0 / 93.0, domain.getIdentity(), 1e-9);
+		Assert.assertEquals(93.0 / 98.0, domain.getCoverage(), 1e-9);
+	}
+
+	@Test
+	public void testRightTrim() {
+		Domain domain = domain(mutate(mutate(CH1, 10, 'W'), 95, 'W'), 10, 95);
+		trim(domain, 0, 5);
+
+		Assert.assertTrue(ADCUtils.shiftAnnotation(domain, 0, 5));
+		Assert.assertEquals(1, domain.getStartTemplatePos());
+		Assert.assertEquals(93, domain.getEndTemplatePos());
+		// the mutation at 95 is cut off
+		Assert.assertEquals(1, domain.getAllMutations().size());
+		Assert.assertEquals(10, domain.getAllMutations().get(0).getPosition());
+		Assert.assertEquals(92.0 / 93.0, domain.getIdentity(), 1e-9);
+		Assert.assertEquals(93.0 / 98.0, domain.getCoverage(), 1e-9);
+	}
+
+	@Test
+	public void testBothTrims() {
+		Domain domain = domain(mutate(mutate(CH1, 2, 'W'), 50, 'W'), 2, 50);
+		trim(domain, 3, 4);
+
+		Assert.assertTrue(ADCUtils.shiftAnnotation(domain, 3, 4));
+		Assert.assertEquals(4, domain.getStartTemplatePos());
+		Assert.assertEquals(94, domain.getEndTemplatePos());
+		Assert.assertEquals(1, domain.getAllMutations().size());
+		Assert.assertEquals(50, domain.getAllMutations().get(0).getPosition());
+		Assert.assertEquals(90.0 / 91.0, domain.getIdentity(), 1e-9);
+
+		// a cleavage trims the ends one after the other
+		domain = domain(mutate(mutate(CH1, 2, 'W'), 50, 'W'), 2, 50);
+		trim(domain, 3, 0);
+		Assert.assertTrue(ADCUtils.shiftAnnotation(domain, 3, 0));
+		trim(domain, 0, 4);
+		Assert.assertTrue(ADCUtils.shiftAnnotation(domain, 0, 4));
+		Assert.assertEquals(4, domain.getStartTemplatePos());
+		Assert.assertEquals(94, domain.getEndTemplatePos());
+		Assert.assertEquals(90.0 / 91.0, domain.getIdentity(), 1e-9);
+	}
+
+	@Test
+	public void testTooShortForTemplate() {
+		Domain domain = domain(CH1);
+		trim(domain, 6, 5);
+
+		Assert.assertFalse(ADCUtils.shiftAnnotation(domain, 6, 5));
+		Assert.assertEquals(1, domain.getStartTemplatePos());
+		Assert.assertEquals(98, domain.getEndTemplatePos());
+	}
+
+	@Test
+	public void testGappedAlignment() {
+		// one residue deleted at 20 and one inserted behind 60 keeps the length
+		String sequence = CH1.substring(0, 19) + CH1.substring(20, 60) + "W" + CH1.substring(60);
+		Domain domain = domain(sequence);
+		trim(domain, 0, 2);
+
+		Assert.assertFalse(ADCUtils.shiftAnnotation(domain, 0, 2));
+	}
+
+	@Test
+	public void testRegisteredMutations() {
+		// registered mutations count from the start of the domain
+		Domain domain = domain(mutate(CH1, 10, 'W'), 10);
+		domain.getSingleMutations().add(singleMutation(10, 'W'));
+		trim(domain, 2, 0);
+		Assert.assertFalse(ADCUtils.shiftAnnotation(domain, 2, 0));
+
+		domain = domain(mutate(CH1, 10, 'W'), 10);
+		domain.getSingleMutations().add(singleMutation(10, 'W'));
+		trim(domain, 0, 3);
+		Assert.assertTrue(ADCUtils.shiftAnnotation(domain, 0, 3));
+		Assert.assertEquals(1, domain.getSingleMutations().size());
+
+		// the label still names a mutation that is cut off
+		domain = domain(mutate(CH1, 96, 'W'), 96);
+		domain.getSingleMutations().add(singleMutation(96, 'W'));
+		trim(domain, 0, 3);
+		Assert.assertFalse(ADCUtils.shiftAnnotation(domain, 0, 3));
+	}
+
+	private static Domain domain(String sequence, int... mutations) {
+		Domain domain = new Domain(NAME, sequence, 0, sequence.length() - 1, 1, CH1.length());
+		DomainLibraryValues libraryValues = new DomainLibraryValues();
+		libraryValues.setName(NAME);
+		libraryValues.setShortName(NAME);
+		libraryValues.setSequence(CH1);
+		libraryValues.setSequenceLength(CH1.length());
+		domain.setLibraryValues(libraryValues);
+		List<UnknownMutation> unknownMutations = new ArrayList<UnknownMutation>();
+		for (int position : mutations) {
+			unknownMutations.add(new UnknownMutation(position, CH1.charAt(position - 1), sequence
+					.charAt(position - 1)));
+		}
+		domain.setAllMutations(unknownMutations);
+		return domain;
+	}
+
+	private static void trim(Domain domain, int start, int end) {
+		String sequence = domain.getSequence();
+		domain.setSequence(sequence.substring(start, sequence.length() - end));
+	}
+
+	private static SingleMutation singleMutation(int position, char newAA) {
+		return new SingleMutation(NAME, position, CH1.charAt(position - 1), newAA, new Mutation("M" + position), "M"
+				+ position, 1, null);
+	}
+
+	private static String mutate(String sequence, int position, char residue) {
+		StringBuilder mutated = new StringBuilder(sequence);
+		mutated.setCharAt(position - 1, residue);
+		return mutated.toString();
+	}
+}
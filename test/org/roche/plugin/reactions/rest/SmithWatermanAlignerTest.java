@@ -0,0 +1,177 @@
+/**
+ * *****************************************************************************
+ * Copyright C 2016, The Pistoia Alliance
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *****************************************************************************
+ */
+package org.roche.plugin.reactions.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roche.antibody.model.antibody.DomainLibraryValues;
+import org.roche.antibody.model.antibody.DomainLibraryValues.DomainUsage;
+
+import com.quattroresearch.antibody.UnknownMutation;
+import com.quattroresearch.blastws.BlastHit;
+
+
+/**
+ * 
+ * {@code SmithWatermanAlignerTest} checks the hits of the in-process aligner on a fixed CH1 library entry.
+ * 
+ * @version $Id$
+ */
+public class SmithWatermanAlignerTest {
+
+	/** human IgG1 CH1, cysteins at 27 and 83 */
+	private static final String CH1 = "ASTKGPSVFPLAPSSKSTSGGTAALGCLVKDYFPEPVTVSWNSGALTSGVHTFPAVLQSSGLYSLSSVVTVPSSSLGTQTYICNVNHKPSNTKVDKKV";
+
+	private static final Set<DomainUsage> CORE = EnumSet.of(DomainUsage.CORE);
+
+	private static final DomainLibraryValues ENTRY = entry("IGHG1_CH1", CH1);
+
+	@Test
+	public void testUngappedHit() {
+		// template 11-90 with V50A behind a flank not similar to the template
+		String query = "WWW" + mutate(CH1.substring(10, 90), 39, 'A');
+
+		BlastHit hit = alignOne(query, Collections.singletonList(ENTRY));
+
+		Assert.assertEquals("IGHG1_CH1", hit.getSequenceID());
+		Assert.assertEquals(Long.valueOf(4), hit.getBegin());
+		Assert.assertEquals(Long.valueOf(83), hit.getEnd());
+		Assert.assertEquals(Integer.valueOf(11), hit.getTemplateBegin());
+		Assert.assertEquals(90, hit.getTemplateEnd());
+		Assert.assertEquals(CH1.length(), hit.getLength());
+		Assert.assertEquals(79.0 / 80.0, hit.getIdentity(), 1e-9);
+		Assert.assertEquals(query.substring(3), hit.getAlignmentLineSequence());
+		Assert.assertEquals(CH1.substring(10, 90), hit.getAlignmentLineTemplate());
+
+		// query position and alignment column of both cysteins
+		Integer[][] cysteins = hit.getConservedCysteins();
+		Assert.assertEquals(2, cysteins.length);
+		Assert.assertEquals(Integer.valueOf(20), cysteins[0][0]);
+		Assert.assertEquals(Integer.valueOf(17), cysteins[0][1]);
+		Assert.assertEquals(Integer.valueOf(76), cysteins[1][0]);
+		Assert.assertEquals(Integer.valueOf(73), cysteins[1][1]);
+		Assert.assertEquals(Arrays.asList(27, 83), hit.getInternalBonds());
+
+		List<UnknownMutation> mutations = hit.getUnknownMutations();
+		Assert.assertEquals(1, mutations.size());
+		Assert.assertEquals(50, mutations.get(0).getPosition());
+		Assert.assertEquals('V', mutations.get(0).getOriAA());
+	}
+
+	@Test
+	public void testGappedHit() {
+		// template 11-90 without 55-56 and with C83S
+		String fragment = mutate(CH1.substring(10, 90), 72, 'S');
+		String query = fragment.substring(0, 44) + fragment.substring(46);
+
+		BlastHit hit = alignOne(query, Collections.singletonList(ENTRY));
+
+		Assert.assertEquals(Long.valueOf(1), hit.getBegin());
+		Assert.assertEquals(Long.valueOf(78), hit.getEnd());
+		Assert.assertEquals(Integer.valueOf(11), hit.getTemplateBegin());
+		Assert.assertEquals(90, hit.getTemplateEnd());
+		Assert.assertEquals(80, hit.getAlignmentLineSequence().length());
+		Assert.assertEquals(2, hit.getAlignmentLineSequence().replaceAll("[^-]", "").length());
+		Assert.assertEquals(77.0 / 80.0, hit.getIdentity(), 1e-9);
+
+		// the cystein behind the gap is not conserved
+		Integer[][] cysteins = hit.getConservedCysteins();
+		Assert.assertEquals(2, cysteins.length);
+		Assert.assertEquals(Integer.valueOf(17), cysteins[0][0]);
+		Assert.assertEquals(Integer.valueOf(17), cysteins[0][1]);
+		Assert.assertNull(cysteins[1][0]);
+		Assert.assertNull(cysteins[1][1]);
+	}
+
+	@Test
+	public void testEValueCutOff() {
+		String query = CH1.substring(20, 40);
+		List<DomainLibraryValues> library = Collections.singletonList(ENTRY);
+		BlastHit hit = alignOne(query, library);
+		double eValue = hit.getEValue();
+		Assert.assertTrue(eValue > 0.0);
+
+		SmithWatermanAligner aligner = new SmithWatermanAligner();
+		Assert.assertEquals(1, aligner.align(query, library, CORE, eValue * 1.01, 0).size());
+		Assert.assertTrue(aligner.align(query, library, CORE, eValue * 0.99, 0).isEmpty());
+
+		// the minimum score is the lowest one within the e-value
+		int minScore = SmithWatermanAligner.minimumScore(query.length(), CH1.length(), eValue);
+		Assert.assertTrue(eValue(minScore, query.length(), CH1.length()) <= eValue * (1 + 1e-9));
+		Assert.assertTrue(eValue(minScore - 1, query.length(), CH1.length()) > eValue);
+	}
+
+	@Test
+	public void testUsagesAndNumberOfAlignments() {
+		DomainLibraryValues variant = entry("IGHG1_CH1_VARIANT", mutate(mutate(CH1, 30, 'W'), 60, 'W'));
+		DomainLibraryValues antigen = entry("ANTIGEN", CH1);
+		antigen.setDomainUsage(DomainUsage.ANTIGEN);
+		List<DomainLibraryValues> library = Arrays.asList(variant, ENTRY, antigen);
+
+		SmithWatermanAligner aligner = new SmithWatermanAligner();
+		List<BlastHit> hits = aligner.align(CH1, library, CORE, 10.0, 0);
+		Assert.assertEquals(2, hits.size());
+		Assert.assertEquals("IGHG1_CH1", hits.get(0).getSequenceID());
+		Assert.assertEquals("IGHG1_CH1_VARIANT", hits.get(1).getSequenceID());
+		Assert.assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+
+		hits = aligner.align(CH1, library, CORE, 10.0, 1);
+		Assert.assertEquals(1, hits.size());
+		Assert.assertEquals("IGHG1_CH1", hits.get(0).getSequenceID());
+	}
+
+	private static BlastHit alignOne(String query, List<DomainLibraryValues> library) {
+		List<BlastHit> hits = new SmithWatermanAligner().align(query, library, CORE, 10.0, 0);
+		Assert.assertEquals(1, hits.size());
+		return hits.get(0);
+	}
+
+	private static double eValue(int score, int queryLength, long databaseLength) {
+		return SmithWatermanAligner.K * queryLength * databaseLength * Math.exp(-SmithWatermanAligner.LAMBDA * score);
+	}
+
+	private static String mutate(String sequence, int index, char residue) {
+		StringBuilder mutated = new StringBuilder(sequence);
+		mutated.setCharAt(index, residue);
+		return mutated.toString();
+	}
+
+	private static DomainLibraryValues entry(String shortName, String sequence) {
+		DomainLibraryValues values = new DomainLibraryValues();
+		values.setName(shortName);
+		values.setShortName(shortName);
+		values.setSequence(sequence);
+		values.setSequenceLength(sequence.length());
+		values.setCysteinPatterns("27-83");
+		values.setDomainUsage(DomainUsage.CORE);
+		return values;
+	}
+}